@@ -0,0 +1,98 @@
+package jenkins.plugins.icn;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.Consts;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.message.BasicNameValuePair;
+import org.json.JSONException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Throughput of the pieces of a request and a response which don't depend on the
+ * network: form encoding, <code>json_post</code> construction, secure prefix
+ * stripping and parsing of ICN responses.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public abstract class CodecBenchmark {
+
+    private static final String FILE = "/opt/IBM/ECMClient/configure/explodedformat/navigator/plugins/SamplePlugin.jar";
+    private static final long MAX_SIZE = LoadPluginBuilder.DescriptorImpl.DEFAULT_MAX_RESPONSE_SIZE * 1024L;
+
+    private byte[] loadResponse;
+    private byte[] saveResponse;
+    private IcnResponse loadResult;
+    private String jsonPost;
+
+    @Setup
+    public void setUp() throws IOException, JSONException {
+        // A loadPlugin response as ICN sends it, with the features and actions of the plug-in
+        StringBuilder load = new StringBuilder("{}&&{\"name\":\"Sample Plugin\",\"id\":\"SamplePlugin\",\"version\":\"2.0.3\","
+                + "\"configClass\":\"com.ibm.ecm.extension.sample.SamplePluginConfigurationPane\",\"features\":[");
+        for (int i = 0; i < 20; i++) {
+            load.append(i == 0 ? "" : ",").append("{\"id\":\"feature").append(i).append("\",\"name\":\"Feature ").append(i)
+                    .append("\",\"iconUrl\":\"featureIcon\",\"preLoad\":false,\"viewerClasses\":[\"a\",\"b\"]}");
+        }
+        load.append("],\"actions\":[{\"id\":\"action\",\"privileges\":[\"privEditDoc\"],\"multiDoc\":true}]}");
+        loadResponse = load.toString().getBytes("UTF-8");
+        saveResponse = "{}&&{\"messages\":[{\"number\":\"1000\",\"text\":\"The configuration was saved.\"}]}".getBytes("UTF-8");
+        loadResult = IcnResponseReader.read(new ByteArrayInputStream(loadResponse), IcnClient.LOAD_FIELDS, MAX_SIZE);
+        jsonPost = IcnClient.jsonPost(FILE, loadResult);
+    }
+
+    /**
+     * Form encoding of the configuration update, the biggest request
+     */
+    @Benchmark
+    public int encodeSaveParams() throws IOException {
+        NameValuePair[] params = new NameValuePair[] {
+                new BasicNameValuePair("action", "update"),
+                new BasicNameValuePair("id", "SamplePlugin"),
+                new BasicNameValuePair("configuration", "PluginConfig"),
+                new BasicNameValuePair("desktop", "admin"),
+                new BasicNameValuePair("json_post", jsonPost) };
+        ByteArrayOutputStream out = new ByteArrayOutputStream(512);
+        new UrlEncodedFormEntity(Arrays.asList(params), Consts.UTF_8).writeTo(out);
+        return out.size();
+    }
+
+    @Benchmark
+    public String buildJsonPost() throws JSONException {
+        return IcnClient.jsonPost(FILE, loadResult);
+    }
+
+    /**
+     * Prefix stripping and parsing of a loadPlugin response, keeping only the needed fields
+     */
+    @Benchmark
+    public IcnResponse parseLoadResponse() throws IOException {
+        return IcnResponseReader.read(new ByteArrayInputStream(loadResponse), IcnClient.LOAD_FIELDS, MAX_SIZE);
+    }
+
+    @Benchmark
+    public IcnResponse parseSaveResponse() throws IOException {
+        return IcnResponseReader.read(new ByteArrayInputStream(saveResponse), IcnClient.SAVE_FIELDS, MAX_SIZE);
+    }
+
+    @Threads(1)
+    public static class SingleThread extends CodecBenchmark {
+    }
+
+    @Threads(Threads.MAX)
+    public static class Concurrent extends CodecBenchmark {
+    }
+}
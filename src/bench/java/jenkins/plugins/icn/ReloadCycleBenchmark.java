@@ -0,0 +1,97 @@
+package jenkins.plugins.icn;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+import jenkins.plugin.icn.IcnStubServer;
+
+/**
+ * Throughput of the whole logon/reload/save cycle against the in-process stub
+ * server, with a new session every time or with a cached one, on one thread
+ * and on as many threads as processors.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public abstract class ReloadCycleBenchmark {
+
+    private static final PrintStream NULL_LOG = new PrintStream(new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    });
+
+    private final List<String> files = Collections.singletonList("/opt/plugins/plugin.jar");
+    private IcnStubServer icn;
+    private IcnHttpClient httpClient;
+    private SessionCache sessions;
+    private String url;
+
+    @Setup
+    public void setUp() throws IOException {
+        icn = new IcnStubServer();
+        icn.respond(IcnStubServer.LOGON, 200, "{}&&{\"security_token\":\"567465876\"}");
+        icn.respond(IcnStubServer.LOAD, 200, "{}&&{\"name\":\"plugin-name\",\"id\":\"plugin-id\","
+                + "\"version\":\"plugin-version\",\"configClass\":\"plugin-config-class\"}");
+        icn.respond(IcnStubServer.SAVE, 200, "{}&&{\"messages\":[{\"text\":\"This means success\"}]}");
+        url = icn.getUrl("node1");
+        httpClient = new IcnHttpClient(64, 64, 10, 60, LoadPluginBuilder.DescriptorImpl.DEFAULT_MAX_RESPONSE_SIZE);
+        sessions = new SessionCache(LoadPluginBuilder.DescriptorImpl.DEFAULT_SESSION_TTL, 10);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        httpClient.close();
+        icn.stop();
+    }
+
+    /**
+     * Logon, reload and save, as a build without cached session
+     */
+    @Benchmark
+    public List<PluginReloadResult> fullCycle() throws InterruptedException {
+        return cycle(null);
+    }
+
+    /**
+     * Reload and save with a cached session, logon only happens once
+     */
+    @Benchmark
+    public List<PluginReloadResult> cachedSessionCycle() throws InterruptedException {
+        return cycle(sessions);
+    }
+
+    private List<PluginReloadResult> cycle(SessionCache cache) throws InterruptedException {
+        IcnClient client = new IcnClient(httpClient, url, NULL_LOG, cache, null, null, null);
+        if (!client.connect("someadmin", "somepwd")) {
+            throw new IllegalStateException("Logon failed");
+        }
+        return client.reloadAll(files, 1, null);
+    }
+
+    @Threads(1)
+    public static class SingleThread extends ReloadCycleBenchmark {
+    }
+
+    @Threads(Threads.MAX)
+    public static class Concurrent extends ReloadCycleBenchmark {
+    }
+}
@@ -0,0 +1,256 @@
+package jenkins.plugins.icn;
+
+import hudson.model.TaskListener;
+import hudson.remoting.Channel;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+import jenkins.security.MasterToSlaveCallable;
+
+/**
+ * An {@link IcnDeployment} run on the agent of the build, so calls to ICN go
+ * from the agent straight to the servers instead of through the controller.
+ * Only the settings go to the agent and only the {@link Outcome} comes back,
+ * the build log is written to remotely as usual.
+ * <p>
+ * Each agent keeps its own HTTP client, session cache, host guards and reloads
+ * in flight, shared by the builds running there, configured with the global
+ * settings of the controller. The HTTP client also sends the plug-in jars of the
+ * workspaces of the agent, see {@link PluginUploader}. The limit of reloads per
+ * host and the sharing of reloads in flight only hold per agent. This state is
+ * dropped, and its connections closed, when the channel to the controller closes.
+ * <p>
+ * When the controller traces the calls to ICN, the agent keeps the lines of its
+ * calls in memory and sends them back with the outcome, to be appended to the
+ * trace of the controller. Lines of builds running at the same time on the agent
+ * may come back with either of them.
+ */
+final class AgentDeployment extends MasterToSlaveCallable<AgentDeployment.Outcome, InterruptedException> {
+
+    private static final long serialVersionUID = 1L;
+
+    /** State of the agent JVM, created by the first deployment run there */
+    private static IcnHttpClient httpClient;
+    private static SessionCache sessions;
+    private static HostGuards guards;
+    private static ReloadFlights flights;
+    private static Settings configured;
+
+    private final ReloadContext context;
+    private final DeployRecords records;
+    private final Settings settings;
+    private final TaskListener listener;
+
+    /**
+     * @param context what to deploy and how
+     * @param records a snapshot of the records of the urls, <code>null</code> to reload all plug-ins
+     * @param descriptor the global settings to apply on the agent
+     * @param listener the listener of the build, to log to
+     */
+    AgentDeployment(ReloadContext context, DeployRecords records, LoadPluginBuilder.DescriptorImpl descriptor,
+            TaskListener listener) {
+        this.context = context;
+        this.records = records;
+        this.settings = new Settings(descriptor);
+        this.listener = listener;
+    }
+
+    @Override
+    public Outcome call() throws InterruptedException {
+        configure(settings);
+        IcnDeployment deployment = new IcnDeployment(context, sessions, httpClient, guards, flights, records);
+        boolean success = deployment.run(listener.getLogger());
+        IcnTrace trace = httpClient.getTrace();
+        return new Outcome(success, deployment.getTimings(), records == null ? null : records.updates(),
+                trace == null ? null : new ArrayList<String>(trace.drain()));
+    }
+
+    /**
+     * @param s the global settings of the controller
+     * @return the HTTP client of this agent, configured with the settings
+     */
+    static synchronized IcnHttpClient getHttpClient(Settings s) {
+        configure(s);
+        return httpClient;
+    }
+
+    /**
+     * Create the state of the agent, or apply the settings if they changed since
+     * the last deployment. Host guards are only reconfigured when their settings changed.
+     */
+    private static synchronized void configure(Settings s) {
+        if (httpClient == null) {
+            sessions = new SessionCache(s.sessionTtl, s.maxSessions);
+            httpClient = new IcnHttpClient(s.maxConnections, s.maxConnectionsPerHost, s.connectTimeout, s.socketTimeout,
+                    s.maxResponseSize);
+            guards = new HostGuards(s.maxReloadsPerHost, s.failureThreshold, s.unavailableTime, s.maxRetries, s.retryDelay,
+                    s.maxRetryDelay);
+            flights = new ReloadFlights();
+            closeWithChannel(httpClient);
+        } else if (!s.equals(configured)) {
+            sessions.configure(s.sessionTtl, s.maxSessions);
+            httpClient.configure(s.maxConnections, s.maxConnectionsPerHost, s.connectTimeout, s.socketTimeout, s.maxResponseSize);
+            if (!s.hasSameGuards(configured)) {
+                guards.configure(s.maxReloadsPerHost, s.failureThreshold, s.unavailableTime, s.maxRetries, s.retryDelay,
+                        s.maxRetryDelay);
+            }
+        }
+        if (s.trace != (httpClient.getTrace() != null)) {
+            httpClient.setTrace(s.trace ? new IcnTrace() : null);
+        }
+        configured = s;
+    }
+
+    /**
+     * Drop the state of the agent when its channel to the controller closes, as when
+     * Jenkins stops. A deployment after a reconnection creates it again.
+     */
+    private static void closeWithChannel(final IcnHttpClient client) {
+        Channel channel = Channel.current();
+        if (channel == null) {
+            // Run in the controller, its client is closed by the descriptor
+            return;
+        }
+        channel.addListener(new Channel.Listener() {
+            @Override
+            public void onClosed(Channel c, IOException cause) {
+                synchronized (AgentDeployment.class) {
+                    if (httpClient == client) {
+                        httpClient = null;
+                        sessions = null;
+                        guards = null;
+                        flights = null;
+                        configured = null;
+                    }
+                }
+                try {
+                    client.close();
+                } catch (IOException e) {
+                    // Nothing more to release
+                }
+            }
+        });
+    }
+
+    /**
+     * The global settings of the controller applied on the agent.
+     */
+    static final class Settings implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int sessionTtl;
+        private final int maxSessions;
+        private final int maxConnections;
+        private final int maxConnectionsPerHost;
+        private final int connectTimeout;
+        private final int socketTimeout;
+        private final int maxResponseSize;
+        private final int maxReloadsPerHost;
+        private final int failureThreshold;
+        private final int unavailableTime;
+        private final int maxRetries;
+        private final int retryDelay;
+        private final int maxRetryDelay;
+        /** <code>true</code> if the controller traces the calls to ICN */
+        private final boolean trace;
+
+        Settings(LoadPluginBuilder.DescriptorImpl descriptor) {
+            this.sessionTtl = descriptor.getSessionTtl();
+            this.maxSessions = descriptor.getMaxSessions();
+            this.maxConnections = descriptor.getMaxConnections();
+            this.maxConnectionsPerHost = descriptor.getMaxConnectionsPerHost();
+            this.connectTimeout = descriptor.getConnectTimeout();
+            this.socketTimeout = descriptor.getSocketTimeout();
+            this.maxResponseSize = descriptor.getMaxResponseSize();
+            this.maxReloadsPerHost = descriptor.getMaxReloadsPerHost();
+            this.failureThreshold = descriptor.getFailureThreshold();
+            this.unavailableTime = descriptor.getUnavailableTime();
+            this.maxRetries = descriptor.getMaxRetries();
+            this.retryDelay = descriptor.getRetryDelay();
+            this.maxRetryDelay = descriptor.getMaxRetryDelay();
+            this.trace = descriptor.getHttpClient().getTrace() != null;
+        }
+
+        /**
+         * @return <code>true</code> if the settings of the {@link HostGuards} are the same
+         */
+        boolean hasSameGuards(Settings other) {
+            return other != null && maxReloadsPerHost == other.maxReloadsPerHost
+                    && failureThreshold == other.failureThreshold && unavailableTime == other.unavailableTime
+                    && maxRetries == other.maxRetries && retryDelay == other.retryDelay
+                    && maxRetryDelay == other.maxRetryDelay;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Settings)) {
+                return false;
+            }
+            Settings other = (Settings) obj;
+            return hasSameGuards(other) && sessionTtl == other.sessionTtl && maxSessions == other.maxSessions
+                    && maxConnections == other.maxConnections && maxConnectionsPerHost == other.maxConnectionsPerHost
+                    && connectTimeout == other.connectTimeout && socketTimeout == other.socketTimeout
+                    && maxResponseSize == other.maxResponseSize && trace == other.trace;
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = sessionTtl;
+            for (int value : new int[] { maxSessions, maxConnections, maxConnectionsPerHost, connectTimeout,
+                    socketTimeout, maxResponseSize, maxReloadsPerHost, failureThreshold, unavailableTime, maxRetries,
+                    retryDelay, maxRetryDelay }) {
+                hash = 31 * hash + value;
+            }
+            return 31 * hash + (trace ? 1 : 0);
+        }
+    }
+
+    /**
+     * What comes back from the agent.
+     */
+    static final class Outcome implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final boolean success;
+        private final List<PhaseTiming> timings;
+        private final DeployRecords records;
+        private final List<String> trace;
+
+        Outcome(boolean success, List<PhaseTiming> timings, DeployRecords records, List<String> trace) {
+            this.success = success;
+            this.timings = timings;
+            this.records = records;
+            this.trace = trace;
+        }
+
+        /**
+         * @return <code>true</code> if the success policy is met
+         */
+        boolean isSuccess() {
+            return success;
+        }
+
+        List<PhaseTiming> getTimings() {
+            return timings;
+        }
+
+        /**
+         * @return the records of what was deployed, to merge, <code>null</code> if none were sent
+         */
+        DeployRecords getRecords() {
+            return records;
+        }
+
+        /**
+         * @return the trace lines of the calls made by the agent, <code>null</code> if they were not traced
+         */
+        List<String> getTrace() {
+            return trace;
+        }
+    }
+}
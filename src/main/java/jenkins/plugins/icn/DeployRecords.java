@@ -0,0 +1,217 @@
+package jenkins.plugins.icn;
+
+import hudson.XmlFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * What was last deployed on each ICN server: for each url and plug-in id, the
+ * file it was loaded from, the digest of its jar and the PluginConfig saved
+ * from what ICN returned.
+ * Records are kept in their own file of the Jenkins home so they survive restarts
+ * without rewriting the global configuration after every build.
+ * <p>
+ * Builds reloading from an agent get an in memory snapshot of the records of
+ * their urls, which collects what they deploy to be merged back afterwards.
+ */
+final class DeployRecords implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Logger LOGGER = Logger.getLogger(DeployRecords.class.getName());
+
+    private final transient XmlFile xmlFile;
+    /**
+     * Records by ICN url, then by plug-in id
+     */
+    private final Map<String, Map<String, Record>> records = new HashMap<String, Map<String, Record>>();
+    /**
+     * Records put in a snapshot, <code>null</code> for the persisted records
+     */
+    private Map<String, Map<String, Record>> updates;
+
+    /**
+     * @param file the file the records are persisted to, read if it exists
+     */
+    DeployRecords(File file) {
+        xmlFile = new XmlFile(file);
+        if (xmlFile.exists()) {
+            try {
+                xmlFile.unmarshal(this);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to read " + file + ", plug-ins will all be reloaded", e);
+            }
+        }
+    }
+
+    private DeployRecords() {
+        xmlFile = null;
+        updates = new HashMap<String, Map<String, Record>>();
+    }
+
+    /**
+     * @param urls the ICN urls
+     * @return an in memory copy of the records of the urls, not persisted when records are put
+     */
+    synchronized DeployRecords snapshot(Collection<String> urls) {
+        DeployRecords snapshot = new DeployRecords();
+        for (String url : urls) {
+            Map<String, Record> byId = records.get(url);
+            if (byId != null) {
+                snapshot.records.put(url, new HashMap<String, Record>(byId));
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * Put and persist the records put in a snapshot since it was taken.
+     * @param snapshot a snapshot of these records
+     */
+    void merge(DeployRecords snapshot) {
+        for (Map.Entry<String, Map<String, Record>> url : snapshot.getUpdates().entrySet()) {
+            for (Record record : url.getValue().values()) {
+                put(url.getKey(), record);
+            }
+        }
+    }
+
+    /**
+     * @return a snapshot with only the records put in this snapshot, to send back
+     */
+    synchronized DeployRecords updates() {
+        DeployRecords updated = new DeployRecords();
+        for (Map.Entry<String, Map<String, Record>> url : getUpdates().entrySet()) {
+            updated.records.put(url.getKey(), new HashMap<String, Record>(url.getValue()));
+            updated.updates.put(url.getKey(), new HashMap<String, Record>(url.getValue()));
+        }
+        return updated;
+    }
+
+    private synchronized Map<String, Map<String, Record>> getUpdates() {
+        return updates == null ? new HashMap<String, Map<String, Record>>() : updates;
+    }
+
+    /**
+     * Find what was deployed from a file on an ICN server.
+     * @param url the ICN url
+     * @param file the plug-in location on the ICN server
+     * @return the record, <code>null</code> if the file was never deployed there
+     */
+    synchronized Record find(String url, String file) {
+        Map<String, Record> byId = records.get(url);
+        if (byId != null) {
+            for (Record r : byId.values()) {
+                if (file.equals(r.getFile())) {
+                    return r;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param url the ICN url
+     * @return what is deployed on the ICN server by plug-in id, a copy
+     */
+    synchronized Map<String, Record> get(String url) {
+        Map<String, Record> byId = records.get(url);
+        return byId == null ? new HashMap<String, Record>() : new HashMap<String, Record>(byId);
+    }
+
+    /**
+     * Record a successful deployment and persist all records.
+     * @param url the ICN url
+     * @param record what was deployed
+     */
+    synchronized void put(String url, Record record) {
+        put(records, url, record);
+        if (updates != null) {
+            put(updates, url, record);
+            return;
+        }
+        try {
+            xmlFile.write(this);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to save " + xmlFile.getFile(), e);
+        }
+    }
+
+    private static void put(Map<String, Map<String, Record>> records, String url, Record record) {
+        Map<String, Record> byId = records.get(url);
+        if (byId == null) {
+            byId = new HashMap<String, Record>();
+            records.put(url, byId);
+        }
+        byId.put(record.getId(), record);
+    }
+
+    /**
+     * A plug-in as deployed on an ICN server.
+     */
+    static final class Record implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String file;
+        private final String digest;
+        private final String id;
+        private final String version;
+        private final String name;
+        private final String configClass;
+
+        /**
+         * @param file the plug-in location on the ICN server
+         * @param digest the digest of the jar, <code>null</code> if unknown
+         * @param id the plug-in id
+         * @param version the plug-in version
+         * @param name the plug-in name
+         * @param configClass the configuration class of the plug-in
+         */
+        Record(String file, String digest, String id, String version, String name, String configClass) {
+            this.file = file;
+            this.digest = digest;
+            this.id = id;
+            this.version = version;
+            this.name = name;
+            this.configClass = configClass;
+        }
+
+        String getFile() {
+            return file;
+        }
+
+        String getDigest() {
+            return digest;
+        }
+
+        String getId() {
+            return id;
+        }
+
+        String getVersion() {
+            return version;
+        }
+
+        /**
+         * @return the plug-in name, <code>null</code> for records written by older versions
+         */
+        String getName() {
+            return name;
+        }
+
+        /**
+         * @return the configuration class, <code>null</code> for records written by older versions
+         */
+        String getConfigClass() {
+            return configClass;
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package jenkins.plugins.icn;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Protects one ICN host from the builds of this Jenkins: a fair limit of plug-ins
+ * being reloaded, from their <code>loadPlugin</code> call until their configuration
+ * is saved, builds over the limit wait in arrival order, and a circuit breaker
+ * failing calls fast while the host is unhealthy.
+ * <p>
+ * The breaker opens after a number of consecutive failed calls. While open,
+ * calls fail without reaching ICN. Once the open time has elapsed, one call is let
+ * through: its success closes the breaker, its failure opens it again.
+ * <p>
+ * Settings are changed in place by {@link #configure(int, int, long)}, so the
+ * breaker state and the slots held by running builds survive a new configuration.
+ */
+final class HostGuard {
+
+    private final String host;
+    private int maxInFlight;
+    private final Slots reloads;
+    private int failureThreshold;
+    private long openMillis;
+    private int failures;
+    private long openUntil;
+    private boolean trialRunning;
+
+    /**
+     * @param host the host, for messages
+     * @param maxInFlight the maximum number of reloads running at the same time on the host
+     * @param failureThreshold the number of consecutive failures opening the breaker, 0 to never open it
+     * @param openMillis how long the breaker stays open before letting a call through
+     */
+    HostGuard(String host, int maxInFlight, int failureThreshold, long openMillis) {
+        this.host = host;
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.reloads = new Slots(this.maxInFlight);
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+    }
+
+    /**
+     * Apply new settings. Reloads running over a lower limit finish, new ones wait
+     * until enough slots were given back. Failures counted so far are kept, an open
+     * breaker stays open until the time set when it opened.
+     * @param maxInFlight the maximum number of reloads running at the same time on the host
+     * @param failureThreshold the number of consecutive failures opening the breaker, 0 to never open it
+     * @param openMillis how long the breaker stays open before letting a call through
+     */
+    void configure(int maxInFlight, int failureThreshold, long openMillis) {
+        int added;
+        synchronized (this) {
+            int max = Math.max(1, maxInFlight);
+            added = max - this.maxInFlight;
+            this.maxInFlight = max;
+            this.failureThreshold = failureThreshold;
+            this.openMillis = openMillis;
+        }
+        if (added > 0) {
+            reloads.release(added);
+        } else if (added < 0) {
+            reloads.reducePermits(-added);
+        }
+    }
+
+    /**
+     * Wait for a reload slot on the host, to be given back with {@link #releaseReload()}.
+     * @param log the {@link PrintStream} to tell about the wait
+     * @throws InterruptedException if the build is interrupted while waiting
+     */
+    void acquireReload(PrintStream log) throws InterruptedException {
+        if (!reloads.tryAcquire()) {
+            log.println("Waiting for one of the " + getMaxInFlight() + " reload slots of " + host + "...");
+            reloads.acquire();
+        }
+    }
+
+    /**
+     * Take a reload slot on the host if one is free, to be given back with {@link #releaseReload()}.
+     * @return <code>true</code> if a slot was taken
+     */
+    boolean tryAcquireReload() {
+        return reloads.tryAcquire();
+    }
+
+    void releaseReload() {
+        reloads.release();
+    }
+
+    private synchronized int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    /**
+     * Check if a call can be made to the host.
+     * @throws IOException if the breaker is open
+     */
+    synchronized void checkAvailable() throws IOException {
+        if (failureThreshold <= 0 || failures < failureThreshold) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (now < openUntil || trialRunning) {
+            throw new IOException("ICN host " + host + " is unavailable after " + failures
+                    + " failed calls, not calling it for now");
+        }
+        // Half open, this call tells if the host is back
+        trialRunning = true;
+    }
+
+    synchronized void onSuccess() {
+        failures = 0;
+        trialRunning = false;
+    }
+
+    /**
+     * The call was given up before ICN answered, because the build was aborted:
+     * it tells nothing about the host.
+     */
+    synchronized void onCancel() {
+        trialRunning = false;
+    }
+
+    synchronized void onFailure() {
+        failures++;
+        trialRunning = false;
+        if (failureThreshold > 0 && failures >= failureThreshold) {
+            openUntil = System.currentTimeMillis() + openMillis;
+        }
+    }
+
+    /**
+     * @return <code>true</code> if calls to the host currently fail fast
+     */
+    synchronized boolean isOpen() {
+        return failureThreshold > 0 && failures >= failureThreshold
+                && (System.currentTimeMillis() < openUntil || trialRunning);
+    }
+
+    /**
+     * A fair semaphore whose number of permits can go down while they are held.
+     */
+    private static final class Slots extends Semaphore {
+
+        private static final long serialVersionUID = 1L;
+
+        Slots(int permits) {
+            super(permits, true);
+        }
+
+        @Override
+        protected void reducePermits(int reduction) {
+            super.reducePermits(reduction);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package jenkins.plugins.icn;
+
+import java.net.URI;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The {@link HostGuard} of each ICN host and the retry policy of the calls,
+ * shared by all builds.
+ */
+final class HostGuards {
+
+    private final ConcurrentMap<String, HostGuard> guards = new ConcurrentHashMap<String, HostGuard>();
+    private volatile int maxReloadsPerHost;
+    private volatile int failureThreshold;
+    private volatile long openMillis;
+    private volatile int maxRetries;
+    private volatile long retryDelay;
+    private volatile long maxRetryDelay;
+
+    /**
+     * @param maxReloadsPerHost the maximum number of reloads running at the same time on a host
+     * @param failureThreshold the number of consecutive failures making a host unavailable, 0 to never
+     * @param openSeconds how long a host stays unavailable before calls are tried again
+     * @param maxRetries the number of retries of a call failing with a 5xx or a timeout
+     * @param retryDelay the delay before the first retry in seconds, doubled at each retry
+     * @param maxRetryDelay the maximum delay between retries in seconds
+     */
+    HostGuards(int maxReloadsPerHost, int failureThreshold, int openSeconds, int maxRetries, int retryDelay, int maxRetryDelay) {
+        configure(maxReloadsPerHost, failureThreshold, openSeconds, maxRetries, retryDelay, maxRetryDelay);
+    }
+
+    /**
+     * Apply new settings. Guards are kept with their breaker state and the slots
+     * held by running builds, they are only reconfigured if their settings changed.
+     */
+    synchronized void configure(int maxReloadsPerHost, int failureThreshold, int openSeconds, int maxRetries, int retryDelay,
+            int maxRetryDelay) {
+        int reloads = Math.max(1, maxReloadsPerHost);
+        int threshold = Math.max(0, failureThreshold);
+        long open = TimeUnit.SECONDS.toMillis(Math.max(0, openSeconds));
+        boolean changed = reloads != this.maxReloadsPerHost || threshold != this.failureThreshold || open != this.openMillis;
+        this.maxReloadsPerHost = reloads;
+        this.failureThreshold = threshold;
+        this.openMillis = open;
+        this.maxRetries = Math.max(0, maxRetries);
+        this.retryDelay = TimeUnit.SECONDS.toMillis(Math.max(0, retryDelay));
+        this.maxRetryDelay = Math.max(this.retryDelay, TimeUnit.SECONDS.toMillis(Math.max(0, maxRetryDelay)));
+        if (changed) {
+            for (HostGuard guard : guards.values()) {
+                guard.configure(reloads, threshold, open);
+            }
+        }
+    }
+
+    /**
+     * @param url an ICN url
+     * @return the guard of the host of the url
+     */
+    HostGuard get(String url) {
+        String host = hostOf(url);
+        HostGuard guard = guards.get(host);
+        if (guard == null) {
+            // Not while the settings change, the new guard could miss them
+            synchronized (this) {
+                guard = guards.get(host);
+                if (guard == null) {
+                    guard = new HostGuard(host, maxReloadsPerHost, failureThreshold, openMillis);
+                    guards.put(host, guard);
+                }
+            }
+        }
+        return guard;
+    }
+
+    int getMaxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * Exponential backoff with full jitter, so builds failing together don't retry together.
+     * @param retry the retry about to be made, starting at 1
+     * @return the delay before the retry in milliseconds
+     */
+    long getRetryDelay(int retry) {
+        long ceiling = retryDelay << Math.min(retry - 1, 30);
+        if (ceiling <= 0 || ceiling > maxRetryDelay) {
+            ceiling = maxRetryDelay;
+        }
+        return ceiling <= 0 ? 0 : ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    /**
+     * @param url an ICN url
+     * @return the host and port of the url, the url itself if it has no host. Never <code>null</code>
+     */
+    static String hostOf(String url) {
+        if (url == null) {
+            return "";
+        }
+        try {
+            URI uri = new URI(url);
+            if (uri.getHost() != null) {
+                return uri.getPort() == -1 ? uri.getHost() : uri.getHost() + ":" + uri.getPort();
+            }
+        } catch (Exception e) {
+            // fall back to the whole url
+        }
+        return url;
+    }
+}
@@ -0,0 +1,852 @@
+package jenkins.plugins.icn;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.PrintStream;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import org.apache.commons.io.input.CountingInputStream;
+import org.apache.http.Consts;
+import org.apache.http.HttpEntity;
+import org.apache.http.NoHttpResponseException;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.CookieStore;
+import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.cookie.Cookie;
+import org.apache.http.impl.client.BasicCookieStore;
+import org.apache.http.message.BasicNameValuePair;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Client for the ICN administration services needed to reload a plug-in.
+ * <p>
+ * An instance wraps one ICN session: call {@link #connect(String, String)} once,
+ * then any number of plug-ins can be reloaded and saved with the same
+ * cookies and security token. Reloads can run concurrently, the session
+ * cookies are kept in a thread safe store.
+ */
+class IcnClient {
+
+    /**
+     * ICN desktop to use for the admin, any desktop can be used but hard coded
+     * admin will always work and make configuration easier for users than asking them for one
+     */
+    private static final String DESKTOP = "admin";
+    private static final String SAVE_URL = "jaxrs/admin/configuration";
+    private static final String LOAD_URL = "jaxrs/admin/loadPlugin";
+    private static final String LOGON_URL = "jaxrs/logon";
+    /**
+     * Fields kept from the responses of each service, everything else is skipped
+     */
+    private static final Set<String> LOGON_FIELDS = Collections.singleton("security_token");
+    static final Set<String> LOAD_FIELDS = new HashSet<String>(Arrays.asList("name", "id", "version", "configClass",
+            WarmUp.RESOURCE_FIELDS[0], WarmUp.RESOURCE_FIELDS[1]));
+    static final Set<String> SAVE_FIELDS = Collections.emptySet();
+
+    private final IcnHttpClient httpClient;
+    private final CookieStore cookies = new BasicCookieStore();
+    private final String url;
+    private final PrintStream log;
+    private final SessionCache sessions;
+    private final List<PhaseTiming> timings;
+    private final HostGuards guards;
+    private final HostGuard guard;
+    private final Timeouts timeouts;
+    /** Resources of the plug-ins reloaded and saved so far, to warm up */
+    private final Set<String> resources = new LinkedHashSet<String>();
+    private String username;
+    private String password;
+    private volatile String securityToken;
+    /** Set when the session comes from the cache, it may have expired on the server */
+    private volatile boolean reusedSession;
+
+    /**
+     * @param httpClient the shared {@link IcnHttpClient} to use
+     * @param url the ICN url, ending with a /
+     * @param log the logger as {@link PrintStream}
+     * @param sessions the cache of ICN sessions shared between builds, <code>null</code>
+     *                 to always log on
+     * @param timings the list to add the timing of each call to, thread safe.
+     *                <code>null</code> to not record them
+     * @param guards the guards limiting reloads and failing fast per host, and the retry
+     *               policy of the calls. <code>null</code> for no limit and no retry
+     * @param timeouts the maximum durations of the calls, started with the deployment.
+     *                 <code>null</code> to only rely on the timeouts of the HTTP client
+     */
+    IcnClient(IcnHttpClient httpClient, String url, PrintStream log, SessionCache sessions, List<PhaseTiming> timings,
+            HostGuards guards, Timeouts timeouts) {
+        this.httpClient = httpClient;
+        this.url = url;
+        this.log = log;
+        this.sessions = sessions;
+        this.timings = timings;
+        this.guards = guards;
+        this.guard = guards == null ? null : guards.get(url);
+        this.timeouts = timeouts;
+    }
+
+    /**
+     * Get an ICN session for the given user, reusing a cached one if possible,
+     * or logging on otherwise.
+     * @param username the ICN administrator
+     * @param password the password of the administrator
+     * @return <code>true</code> if the client has a session. Exception is already
+     *         logged if <code>false</code> is returned.
+     */
+    boolean connect(String username, String password) {
+        this.username = username;
+        this.password = password;
+        SessionCache.Session session = sessions == null ? null : sessions.get(url, username, password);
+        if (session != null) {
+            log.println("Reusing ICN session of " + username);
+            for (Cookie cookie : session.getCookies()) {
+                cookies.addCookie(cookie);
+            }
+            securityToken = session.getSecurityToken();
+            reusedSession = true;
+            return true;
+        }
+        return logon();
+    }
+
+    /**
+     * Log on against ICN, this will store the needed cookies in the session cookie store
+     * and keep the security token header. Both are needed for a successful authentication.
+     * @return <code>true</code> if the logon succeeded. Exception is already
+     *         logged if <code>false</code> is returned.
+     */
+    private boolean logon() {
+        log.println("Connecting to ICN as " + username + "...");
+
+        String res = null;
+        IcnResponse json = null;
+        long start = System.currentTimeMillis();
+        Response response = null;
+        try {
+            response = post(LOGON_URL, null, LOGON_FIELDS, new NameValuePair[] {
+                    new BasicNameValuePair("userid", username),
+                    new BasicNameValuePair("password", password),
+                    new BasicNameValuePair("desktop", DESKTOP) });
+            json = response.body;
+            if (json == null) {
+                log.println("KO");
+                log.println(LOGON_URL + " returned " + response.statusLine);
+                return false;
+            }
+
+            if (!json.has("security_token")) {
+                log.println("ERROR: Exception while logging into ICN. Response was " + json);
+            } else {
+                res = json.get("security_token");
+                if (res != null && !"".equals(res)) {
+                    log.println("OK");
+                } else {
+                    log.println("KO");
+                }
+            }
+
+        } catch (Exception e) {
+            log.println("KO");
+            e.printStackTrace(log.append(e.getMessage()));
+            log.println("Login response was: " + json);
+        } finally {
+            record(PhaseTiming.Phase.LOGON, null, start, response);
+        }
+        securityToken = res != null && !"".equals(res) ? res : null;
+        reusedSession = false;
+        if (securityToken != null && sessions != null) {
+            sessions.put(url, username, password, securityToken, cookies.getCookies());
+        }
+        return securityToken != null;
+    }
+
+    /**
+     * Log on again after ICN refused a cached session. Reloads running in
+     * parallel share the session, so only the first one to notice logs on again.
+     * @param expiredToken the token which was refused
+     * @return <code>true</code> if there is a new session to retry with
+     */
+    private synchronized boolean relogon(String expiredToken) {
+        if (!expiredToken.equals(securityToken)) {
+            // Another thread already logged on again
+            return securityToken != null;
+        }
+        log.println("ICN session of " + username + " has expired.");
+        if (sessions != null) {
+            sessions.invalidate(url, username, expiredToken);
+        }
+        return logon();
+    }
+
+    /**
+     * Reload and save all given plug-ins with the current session. The
+     * <code>loadPlugin</code> calls are run with at most <code>concurrency</code>
+     * requests in flight, and configurations are saved one after the other, in the
+     * order of the given files, as the reloads end. A configuration identical to the
+     * one saved by the last deployment is not saved again.
+     * <p>
+     * Each plug-in holds a reload slot of the host from its reload until its
+     * configuration is saved. When no slot is free, the reloads already done are
+     * saved first, so a deployment only waits for slots when it holds none.
+     *
+     * @param files the plug-in locations on the ICN server
+     * @param concurrency the maximum number of reloads running at the same time
+     * @param saved what was last deployed from each file, <code>null</code> to always save
+     * @return one result per file, in the same order
+     * @throws InterruptedException if the build is interrupted while waiting for the reloads
+     */
+    List<PluginReloadResult> reloadAll(List<String> files, int concurrency, Map<String, DeployRecords.Record> saved)
+            throws InterruptedException {
+        List<PluginReloadResult> results = new ArrayList<PluginReloadResult>(files.size());
+        List<Future<IcnResponse>> loads = new ArrayList<Future<IcnResponse>>(files.size());
+        ExecutorService executor = concurrency <= 1 || files.size() <= 1 ? null
+                : Executors.newFixedThreadPool(Math.min(concurrency, files.size()));
+        try {
+            for (final String file : files) {
+                if (guard != null) {
+                    while (!guard.tryAcquireReload()) {
+                        if (results.size() < loads.size()) {
+                            results.add(saveNext(files, loads, results.size(), saved));
+                        } else {
+                            guard.acquireReload(log);
+                            break;
+                        }
+                    }
+                }
+                FutureTask<IcnResponse> load = new FutureTask<IcnResponse>(new Callable<IcnResponse>() {
+                    @Override
+                    public IcnResponse call() {
+                        return reload(file);
+                    }
+                });
+                loads.add(load);
+                if (executor == null) {
+                    load.run();
+                } else {
+                    executor.execute(load);
+                }
+            }
+            while (results.size() < loads.size()) {
+                results.add(saveNext(files, loads, results.size(), saved));
+            }
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+            if (guard != null) {
+                // Interrupted: give back the slots of the reloads not saved
+                for (int i = results.size(); i < loads.size(); i++) {
+                    guard.releaseReload();
+                }
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Wait for the reload of a plug-in and save its configuration, then give back its reload slot.
+     * @return the result of the plug-in
+     */
+    private PluginReloadResult saveNext(List<String> files, List<Future<IcnResponse>> loads, int index,
+            Map<String, DeployRecords.Record> saved) throws InterruptedException {
+        String file = files.get(index);
+        IcnResponse loadResult;
+        try {
+            loadResult = loads.get(index).get();
+        } catch (ExecutionException e) {
+            // reload catches everything it can, keep going with the other plug-ins
+            e.getCause().printStackTrace(log);
+            loadResult = null;
+        }
+        try {
+            return save(file, loadResult, saved);
+        } finally {
+            if (guard != null) {
+                guard.releaseReload();
+            }
+        }
+    }
+
+    private PluginReloadResult save(String file, IcnResponse loadResult, Map<String, DeployRecords.Record> saved) {
+        if (loadResult == null) {
+            return PluginReloadResult.failed(file, PluginReloadResult.Status.RELOAD_FAILED);
+        }
+        if (saved != null && isCurrent(file, loadResult, saved.get(file))) {
+            log.println("Configuration of plug-in " + loadResult.get("id") + " is already current, not saving it.");
+            resources.addAll(WarmUp.resources(loadResult));
+            return PluginReloadResult.of(file, loadResult, PluginReloadResult.Status.OK);
+        }
+        boolean ok = false;
+        try {
+            ok = save(file, loadResult);
+        } catch (Exception e) {
+            log.println("ERROR: Exception while reloading the plugin: " + e.getMessage());
+            e.printStackTrace(log);
+        }
+        if (ok) {
+            resources.addAll(WarmUp.resources(loadResult));
+        }
+        return PluginReloadResult.of(file, loadResult, ok ? PluginReloadResult.Status.OK : PluginReloadResult.Status.SAVE_FAILED);
+    }
+
+    /**
+     * Request the resources of the plug-ins reloaded and saved by this client, and
+     * the other paths of the warm-up, with the current session. Failed requests
+     * are logged but don't fail the reload.
+     * @param warmUp the paths to request besides the plug-in resources, and the concurrency
+     * @throws InterruptedException if the build is interrupted while waiting for the requests
+     */
+    void warmUp(WarmUp warmUp) throws InterruptedException {
+        Set<String> paths = new LinkedHashSet<String>(resources);
+        for (String path : warmUp.getPaths()) {
+            paths.add(path.startsWith("/") ? path.substring(1) : path);
+        }
+        if (paths.isEmpty()) {
+            return;
+        }
+        log.println("Warming up " + paths.size() + " ICN resources...");
+        long start = System.currentTimeMillis();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(warmUp.getConcurrency(), paths.size()));
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>(paths.size());
+            for (final String path : paths) {
+                futures.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        warmUp(path);
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    e.getCause().printStackTrace(log);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        log.println("Warm-up done in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    private void warmUp(String path) {
+        long start = System.currentTimeMillis();
+        Response response = null;
+        try {
+            response = get(path);
+            log.println((response.status == 200 ? "" : "WARNING: ") + path + " returned " + response.status + " in "
+                    + (System.currentTimeMillis() - start) + " ms, " + response.size + " bytes");
+        } catch (IOException e) {
+            log.println("WARNING: " + path + " failed: " + e.getMessage());
+        } catch (IllegalArgumentException e) {
+            log.println("WARNING: " + path + " is not a valid path: " + e.getMessage());
+        } finally {
+            record(PhaseTiming.Phase.WARM_UP, path, start, response);
+        }
+    }
+
+    /**
+     * Measure the latency of the paths of a gate with the current session, one request
+     * at a time. A first round is not measured, so the measures before and after a
+     * reload both start with the resources loaded. Failed requests are not measured.
+     * @param gate the paths, the number of samples and the percentile to compute
+     * @param when when the samples are taken, for the log
+     * @return the percentile of the latencies in milliseconds, -1 if no request succeeded
+     * @throws InterruptedException if the build is interrupted
+     */
+    long sampleLatency(LatencyGate gate, String when) throws InterruptedException {
+        List<String> paths = new ArrayList<String>(gate.getPaths().size());
+        for (String path : gate.getPaths()) {
+            paths.add(path.startsWith("/") ? path.substring(1) : path);
+        }
+        log.println("Sampling the latency of " + paths.size() + " ICN paths " + when + "...");
+        long[] latencies = new long[paths.size() * gate.getSamples()];
+        int n = 0;
+        for (int round = -1; round < gate.getSamples(); round++) {
+            for (String path : paths) {
+                long start = System.currentTimeMillis();
+                try {
+                    Response response = get(path);
+                    if (response.status != 200) {
+                        if (round < 0) {
+                            log.println("WARNING: " + path + " returned " + response.status + ", it is not measured");
+                        }
+                    } else if (round >= 0) {
+                        latencies[n++] = System.currentTimeMillis() - start;
+                    }
+                } catch (IOException e) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        throw new InterruptedException(e.getMessage());
+                    }
+                    if (round < 0) {
+                        log.println("WARNING: " + path + " failed: " + e.getMessage());
+                    }
+                } catch (IllegalArgumentException e) {
+                    if (round < 0) {
+                        log.println("WARNING: " + path + " is not a valid path: " + e.getMessage());
+                    }
+                }
+            }
+        }
+        long latency = gate.percentileOf(Arrays.copyOf(latencies, n));
+        log.println("p" + gate.getPercentile() + " latency " + when + ": "
+                + (latency < 0 ? "unknown, no request succeeded" : latency + " ms over " + n + " requests"));
+        return latency;
+    }
+
+    /**
+     * Reload the plugin from the given path, in a reload slot of the host taken by the caller.
+     * @param file the location of the plug-in jar on the ICN server
+     * @return the result of the call, will be needed to save the configuration
+     */
+    IcnResponse reload(String file) {
+        log.println("Reloading plugin " + file + "...");
+
+        IcnResponse res = null;
+        long start = System.currentTimeMillis();
+        Response response = null;
+        try {
+            response = execute(LOAD_URL, LOAD_FIELDS, new NameValuePair[] {
+                    new BasicNameValuePair("fileName", file),
+                    new BasicNameValuePair("desktop", DESKTOP) });
+            if (response.status != 200) {
+                log.println("KO");
+                log.println(LOAD_URL + " returned " + response.statusLine);
+            } else {
+                res = response.body;
+
+                if (!res.has("name") || !res.has("id") || !res.has("version") || !res.has("configClass")) {
+                    log.println("KO");
+                    log.println("Response does not have correct attributes: " + res);
+                    log.println("It should contain the following attributes: name, id, version, configClass");
+                    res = null;
+                } else {
+                    log.println("OK");
+                    log.println("Plug-in " + res.get("name") + "(id: " + res.get("id") + ")" + " successfully reloaded.");
+                }
+
+
+            }
+        } catch (Exception e) {
+            log.println("KO");
+            e.printStackTrace(log.append(e.getMessage()));
+        } finally {
+            record(PhaseTiming.Phase.LOAD, file, start, response);
+        }
+        return res;
+    }
+
+    /**
+     * Save the configuration pre-created by the load plugin call.
+     *
+     * @param file the location of the plug-in jar on the ICN server
+     * @param loadResult the response of the load operation containing plugin information
+     * @return <code>true</code> if the save is successful
+     * @throws JSONException
+     */
+    boolean save(String file, IcnResponse loadResult) throws JSONException {
+        log.println("Saving configuration...");
+
+        boolean res = false;
+        String json_post = jsonPost(file, loadResult);
+
+        IcnResponse json = null;
+        long start = System.currentTimeMillis();
+        Response response = null;
+        try {
+            response = execute(SAVE_URL, SAVE_FIELDS, new NameValuePair[] {
+                    new BasicNameValuePair("action", "update"),
+                    new BasicNameValuePair("id", loadResult.get("id")),
+                    new BasicNameValuePair("configuration", "PluginConfig"),
+                    new BasicNameValuePair("desktop", DESKTOP),
+                    new BasicNameValuePair("json_post", json_post) });
+            if (response.status != 200) {
+                log.println("KO");
+                log.println(SAVE_URL + " returned " + response.statusLine);
+            } else {
+                json = response.body;
+                if (!json.hasMessages()) {
+                    log.println("KO");
+                    log.println("Response does not have messages: " + json);
+                } else {
+                    log.println("Returned message is:");
+                    for (String message : json.getMessages()) {
+                        log.println(message);
+                    }
+                    res = true;
+                }
+            }
+        } catch (Exception e) {
+            log.println("KO");
+            e.printStackTrace(log.append(e.getMessage()));
+            log.println("configuration response was: " + json);
+        } finally {
+            record(PhaseTiming.Phase.SAVE, file, start, response);
+        }
+        return res;
+    }
+
+    /**
+     * Compare field by field the configuration {@link #save(String, IcnResponse)} would
+     * send with the one saved by the last deployment.
+     * @param file the location of the plug-in jar on the ICN server
+     * @param loadResult the response of the load operation containing plugin information
+     * @param saved what was last deployed from the file, <code>null</code> if unknown
+     * @return <code>true</code> if saving the configuration would not change it
+     */
+    static boolean isCurrent(String file, IcnResponse loadResult, DeployRecords.Record saved) {
+        return saved != null
+                && file.equals(saved.getFile())
+                && equal(loadResult.get("id"), saved.getId())
+                && equal(loadResult.get("version"), saved.getVersion())
+                && equal(loadResult.get("name"), saved.getName())
+                && equal(loadResult.get("configClass"), saved.getConfigClass());
+    }
+
+    private static boolean equal(String returned, String saved) {
+        return returned != null && returned.equals(saved);
+    }
+
+    /**
+     * Build the plug-in configuration sent to ICN to save it.
+     * @param file the location of the plug-in jar on the ICN server
+     * @param loadResult the response of the load operation containing plugin information
+     * @return the configuration as JSON
+     * @throws JSONException
+     */
+    static String jsonPost(String file, IcnResponse loadResult) throws JSONException {
+        JSONObject json_post = new JSONObject();
+        json_post.put("enabled", true);
+        json_post.put("filename", file);
+        json_post.put("version", loadResult.get("version"));
+        json_post.put("dependencies", new JSONArray());
+        json_post.put("name", loadResult.get("name"));
+        json_post.put("id", loadResult.get("id"));
+        json_post.put("configClass", loadResult.get("configClass"));
+        return json_post.toString();
+    }
+
+    private void record(PhaseTiming.Phase phase, String file, long start, Response response) {
+        if (timings != null) {
+            timings.add(new PhaseTiming(url, phase, file, System.currentTimeMillis() - start,
+                    response == null ? PhaseTiming.NO_RESPONSE : response.status, response == null ? 0 : response.size));
+        }
+    }
+
+    /**
+     * Call an ICN service with the current session. If the session came from
+     * the cache and ICN says it has expired, log on again and retry once.
+     * @param service the service path, relative to the ICN url
+     * @param fields the fields to keep from the response
+     * @param params the form parameters
+     * @return the response of the service
+     * @throws IOException if the call failed
+     */
+    private Response execute(String service, Set<String> fields, NameValuePair[] params) throws IOException {
+        // Read with the token: another call may log on again while this one is in flight
+        boolean reused = reusedSession;
+        String token = securityToken;
+        Response response = post(service, token, fields, params);
+        if (reused && response.isSessionExpired() && relogon(token)) {
+            response = post(service, securityToken, fields, params);
+        }
+        return response;
+    }
+
+    /**
+     * Post a form to an ICN service, retrying with an exponential backoff when ICN
+     * answers with a 5xx, can't be reached, or doesn't answer in time to another call
+     * than <code>loadPlugin</code>. Fails without calling ICN while the host is unavailable.
+     * @param service the service path, relative to the ICN url
+     * @param token the security token to send as header, <code>null</code> for the logon
+     * @param fields the fields to keep from the response
+     * @param params the form parameters
+     * @return the response, with its body if the status is 200
+     * @throws IOException if the call failed or the response could not be read
+     */
+    private Response post(String service, String token, Set<String> fields, NameValuePair[] params) throws IOException {
+        int maxRetries = guards == null ? 0 : guards.getMaxRetries();
+        for (int retry = 1; ; retry++) {
+            String failure;
+            try {
+                Response response = postOnce(service, token, fields, params, retry);
+                if (response.status < 500 || retry > maxRetries) {
+                    return response;
+                }
+                failure = "returned " + response.statusLine;
+            } catch (IOException e) {
+                if (!isTransient(service, e) || retry > maxRetries) {
+                    throw e;
+                }
+                failure = "failed: " + e;
+            }
+            long delay = guards.getRetryDelay(retry);
+            log.println(service + " " + failure + ", retrying in " + delay + " ms (" + retry + "/" + maxRetries + ")");
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting to retry " + service);
+            }
+        }
+    }
+
+    /**
+     * Get a resource from ICN with the current session, its content is read and dropped.
+     * @param path the path of the resource, relative to the ICN url
+     * @return the response, without body
+     * @throws IOException if the call failed
+     */
+    private Response get(String path) throws IOException {
+        checkCanCall(path);
+        HttpGet httpGet = new HttpGet(url + path);
+        if (securityToken != null) {
+            httpGet.addHeader("security_token", securityToken);
+        }
+        RequestWatchdog.Watch watch = RequestWatchdog.watch(httpGet, deadlineOf(PhaseTiming.Phase.WARM_UP));
+        IcnTrace trace = httpClient.getTrace();
+        long start = System.currentTimeMillis();
+        Response response = null;
+        try {
+            response = get(httpGet);
+            return response;
+        } catch (IOException e) {
+            throw aborted(path, watch, e);
+        } finally {
+            watch.close();
+            if (trace != null) {
+                trace.record(start, url, "GET", path, null, 1, response == null ? PhaseTiming.NO_RESPONSE : response.status,
+                        0, response == null ? 0 : response.size, null);
+            }
+        }
+    }
+
+    private Response get(HttpGet httpGet) throws IOException {
+        CloseableHttpResponse httpResponse = httpClient.execute(httpGet, cookies);
+        try {
+            HttpEntity entity = httpResponse.getEntity();
+            long size = 0;
+            if (entity != null) {
+                InputStream in = entity.getContent();
+                try {
+                    byte[] buffer = new byte[8192];
+                    int n;
+                    while ((n = in.read(buffer)) != -1) {
+                        size += n;
+                    }
+                } finally {
+                    in.close();
+                }
+            }
+            return new Response(httpResponse.getStatusLine().getStatusCode(), String.valueOf(httpResponse.getStatusLine()),
+                    null, size);
+        } finally {
+            httpResponse.close();
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the call may work if made again: ICN could not be
+     *         reached, or did not answer in time. A <code>loadPlugin</code> which got
+     *         no answer may still be running in ICN, it is only made again if ICN
+     *         could not be reached, not to initialize the plug-in twice
+     */
+    private static boolean isTransient(String service, IOException e) {
+        if (e instanceof ConnectTimeoutException || e instanceof ConnectException) {
+            return true;
+        }
+        return !LOAD_URL.equals(service) && (e instanceof SocketTimeoutException || e instanceof NoHttpResponseException);
+    }
+
+    /**
+     * @param attempt the attempt of the call, starting at 1, for the trace
+     */
+    private Response postOnce(String service, String token, Set<String> fields, NameValuePair[] params, int attempt)
+            throws IOException {
+        checkCanCall(service);
+        HttpPost httpPost = new HttpPost(url + service);
+        httpPost.setEntity(new UrlEncodedFormEntity(Arrays.asList(params), Consts.UTF_8));
+        if (token != null) {
+            httpPost.addHeader("security_token", token);
+        }
+        // Last before the call: when half open, this makes it the trial call
+        if (guard != null) {
+            guard.checkAvailable();
+        }
+        RequestWatchdog.Watch watch = RequestWatchdog.watch(httpPost, deadlineOf(phaseOf(service)));
+        IcnTrace trace = httpClient.getTrace();
+        long start = System.currentTimeMillis();
+        int status = PhaseTiming.NO_RESPONSE;
+        IcnResponse body = null;
+        long size = 0;
+        try {
+            CloseableHttpResponse httpResponse;
+            try {
+                httpResponse = httpClient.execute(httpPost, cookies);
+            } catch (IOException e) {
+                if (guard != null) {
+                    if (watch.isInterrupted()) {
+                        guard.onCancel();
+                    } else {
+                        guard.onFailure();
+                    }
+                }
+                throw e;
+            } catch (RuntimeException e) {
+                // Not a failure of ICN, but a trial call must not stay running
+                if (guard != null) {
+                    guard.onCancel();
+                }
+                throw e;
+            }
+            try {
+                status = httpResponse.getStatusLine().getStatusCode();
+                if (guard != null) {
+                    if (status >= 500) {
+                        guard.onFailure();
+                    } else {
+                        guard.onSuccess();
+                    }
+                }
+                HttpEntity entity = httpResponse.getEntity();
+                if (entity != null) {
+                    CountingInputStream in = new CountingInputStream(entity.getContent());
+                    try {
+                        if (status == 200) {
+                            body = IcnResponseReader.read(in, fields, httpClient.getMaxResponseSize());
+                        } else {
+                            // Read it anyway so the connection can be reused
+                            IcnResponseReader.discard(in, httpClient.getMaxResponseSize());
+                        }
+                    } finally {
+                        size = in.getByteCount();
+                        in.close();
+                    }
+                }
+                return new Response(status, String.valueOf(httpResponse.getStatusLine()), body, size);
+            } finally {
+                httpResponse.close();
+            }
+        } catch (IOException e) {
+            throw aborted(service, watch, e);
+        } finally {
+            watch.close();
+            if (trace != null) {
+                trace.record(start, url, "POST", service, fileOf(params), attempt, status,
+                        httpPost.getEntity().getContentLength(), size, body);
+            }
+        }
+    }
+
+    /**
+     * @return the plug-in location sent in the form, <code>null</code> if there is none
+     */
+    private static String fileOf(NameValuePair[] params) {
+        for (NameValuePair param : params) {
+            if ("fileName".equals(param.getName())) {
+                return param.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Don't start a call when the build was interrupted or the deployment is past its deadline.
+     */
+    private void checkCanCall(String service) throws InterruptedIOException {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new InterruptedIOException("Interrupted, not calling " + service);
+        }
+        if (timeouts != null && timeouts.isOver()) {
+            throw new InterruptedIOException("The deployment took longer than allowed, not calling " + service);
+        }
+    }
+
+    private long deadlineOf(PhaseTiming.Phase phase) {
+        return timeouts == null ? 0 : timeouts.deadlineOf(phase);
+    }
+
+    private static PhaseTiming.Phase phaseOf(String service) {
+        if (LOGON_URL.equals(service)) {
+            return PhaseTiming.Phase.LOGON;
+        }
+        return LOAD_URL.equals(service) ? PhaseTiming.Phase.LOAD : PhaseTiming.Phase.SAVE;
+    }
+
+    /**
+     * @return the exception to throw for a failed call, telling if the watchdog aborted it
+     */
+    private static IOException aborted(String path, RequestWatchdog.Watch watch, IOException e) {
+        if (watch.isExpired()) {
+            InterruptedIOException timeout = new InterruptedIOException(path + " took longer than allowed, request aborted");
+            timeout.initCause(e);
+            return timeout;
+        }
+        if (watch.isInterrupted()) {
+            InterruptedIOException interrupted = new InterruptedIOException(path + " aborted as the build was interrupted");
+            interrupted.initCause(e);
+            return interrupted;
+        }
+        return e;
+    }
+
+    /**
+     * Response of an ICN service, with the fields read from the body.
+     */
+    private static final class Response {
+        private final int status;
+        private final String statusLine;
+        private final IcnResponse body;
+        /** Number of bytes read from the response body */
+        private final long size;
+
+        Response(int status, String statusLine, IcnResponse body, long size) {
+            this.status = status;
+            this.statusLine = statusLine;
+            this.body = body;
+            this.size = size;
+        }
+
+        /**
+         * ICN answers with a 401 when the session cookie is unknown, and with an
+         * error message about the session when the security token is no longer valid.
+         */
+        boolean isSessionExpired() {
+            if (status == 401) {
+                return true;
+            }
+            if (body != null) {
+                for (String error : body.getErrors()) {
+                    if (error.toLowerCase(Locale.ENGLISH).contains("session")) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+    }
+}
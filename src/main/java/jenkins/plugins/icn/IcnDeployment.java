@@ -0,0 +1,420 @@
+package jenkins.plugins.icn;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Reload of a list of plug-ins on one or several ICN nodes. Each node gets
+ * its own session, nodes are processed in parallel on a bounded pool and
+ * the outcome is decided by a {@link SuccessPolicy}. Plug-ins another build
+ * is already reloading on a node are not reloaded again, the build waits for
+ * the result of the other one, see {@link ReloadFlights}.
+ */
+class IcnDeployment {
+
+    private final List<String> urls;
+    private final String username;
+    private final String password;
+    private final List<String> files;
+    private final int concurrency;
+    private final int nodeConcurrency;
+    private final SuccessPolicy successPolicy;
+    private final SessionCache sessions;
+    private final IcnHttpClient httpClient;
+    private final HostGuards guards;
+    private final ReloadFlights flights;
+    private final Map<String, String> digests;
+    private final boolean forceReload;
+    private final DeployRecords records;
+    private final boolean skipCurrentSave;
+    private final WarmUp warmUp;
+    private final LatencyGate gate;
+    private final Timeouts timeouts;
+    /** The timeouts with the deadline of the current run */
+    private volatile Timeouts started;
+    private final List<PhaseTiming> timings = Collections.synchronizedList(new ArrayList<PhaseTiming>());
+
+    /**
+     * @param context what to deploy and how
+     * @param sessions the cache of ICN sessions, <code>null</code> to always log on
+     * @param httpClient the shared HTTP client
+     * @param guards the guards of the ICN hosts and the retry policy, <code>null</code> for none
+     * @param flights the reloads in flight in other builds to join, <code>null</code> to not share reloads
+     * @param records what was last deployed, to skip unchanged plug-ins and roll back. <code>null</code> to
+     *                reload them all and not record them
+     */
+    IcnDeployment(ReloadContext context, SessionCache sessions, IcnHttpClient httpClient, HostGuards guards,
+            ReloadFlights flights, DeployRecords records) {
+        this.urls = context.getUrls();
+        this.username = context.getUsername();
+        this.password = context.getPassword();
+        this.files = context.getFiles();
+        this.concurrency = context.getConcurrency();
+        this.nodeConcurrency = context.getNodeConcurrency();
+        this.successPolicy = context.getSuccessPolicy();
+        this.sessions = sessions;
+        this.httpClient = httpClient;
+        this.guards = guards;
+        this.flights = flights;
+        this.digests = context.getDigests();
+        this.forceReload = context.isForceReload();
+        this.records = records;
+        this.skipCurrentSave = context.isSkipCurrentSave();
+        this.warmUp = context.getWarmUp();
+        this.gate = context.getGate();
+        this.timeouts = context.getTimeouts();
+    }
+
+    /**
+     * Run the deployment on all nodes.
+     * @param log the {@link PrintStream} to print information to
+     * @return <code>true</code> if the success policy is met
+     * @throws InterruptedException if the build is interrupted while waiting for the nodes
+     */
+    boolean run(PrintStream log) throws InterruptedException {
+        started = timeouts == null ? null : timeouts.start();
+        if (urls.size() == 1) {
+            // Single node, print directly to the build log as things happen
+            NodeResult result = reloadNode(urls.get(0), log);
+            if (result.isLoggedOn()) {
+                PluginReloadResult.printTable(result.getResults(), log);
+            }
+            return result.isSuccess();
+        }
+
+        List<NodeResult> results = new ArrayList<NodeResult>(urls.size());
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(nodeConcurrency, urls.size()));
+        try {
+            List<Future<NodeResult>> futures = new ArrayList<Future<NodeResult>>(urls.size());
+            for (final String url : urls) {
+                futures.add(executor.submit(new Callable<NodeResult>() {
+                    @Override
+                    public NodeResult call() throws Exception {
+                        return reloadBufferedNode(url);
+                    }
+                }));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    results.add(futures.get(i).get());
+                } catch (ExecutionException e) {
+                    log.println("ERROR: Exception while reloading plug-ins on " + urls.get(i) + ": " + e.getCause().getMessage());
+                    e.getCause().printStackTrace(log);
+                    results.add(new NodeResult(urls.get(i), false, Collections.<PluginReloadResult>emptyList(), ""));
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        int succeeded = 0;
+        for (NodeResult result : results) {
+            log.println("===== " + result.getUrl() + " =====");
+            log.print(result.getOutput());
+            if (result.isLoggedOn()) {
+                PluginReloadResult.printTable(result.getResults(), log);
+            }
+            if (result.isSuccess()) {
+                succeeded++;
+            }
+        }
+        boolean success = successPolicy.isMet(succeeded, results.size());
+        log.println("Plug-ins reloaded on " + succeeded + " of " + results.size() + " nodes, success policy \""
+                + successPolicy.getDisplayName() + "\" is " + (success ? "met" : "not met"));
+        return success;
+    }
+
+    /**
+     * @return the timings of all calls made to ICN, once {@link #run(PrintStream)} returned
+     */
+    List<PhaseTiming> getTimings() {
+        synchronized (timings) {
+            return new ArrayList<PhaseTiming>(timings);
+        }
+    }
+
+    /**
+     * Reload a node keeping its output aside, so the logs of parallel nodes don't
+     * get mixed in the build log.
+     */
+    private NodeResult reloadBufferedNode(String url) throws InterruptedException, UnsupportedEncodingException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PrintStream nodeLog = new PrintStream(out, true, "UTF-8");
+        NodeResult result = reloadNode(url, nodeLog);
+        nodeLog.flush();
+        return new NodeResult(url, result.isLoggedOn(), result.getResults(), out.toString("UTF-8"));
+    }
+
+    private NodeResult reloadNode(String url, PrintStream log) throws InterruptedException {
+        // Plug-ins whose jar is the one already deployed are not sent to ICN again
+        Map<String, PluginReloadResult> results = new HashMap<String, PluginReloadResult>();
+        List<String> changed = new ArrayList<String>(files.size());
+        for (String file : files) {
+            DeployRecords.Record record = findUnchanged(url, file);
+            if (record != null) {
+                log.println("Plug-in " + record.getId() + " (" + file + ") is unchanged since its last reload, skipping it.");
+                results.put(file, PluginReloadResult.unchanged(file, record));
+            } else {
+                changed.add(file);
+            }
+        }
+
+        // Plug-ins already being reloaded by another build are not sent to ICN twice
+        List<String> led = new ArrayList<String>(changed.size());
+        Map<String, ReloadFlights.Flight> leading = new LinkedHashMap<String, ReloadFlights.Flight>();
+        Map<String, ReloadFlights.Flight> following = new LinkedHashMap<String, ReloadFlights.Flight>();
+        for (String file : changed) {
+            if (flights == null) {
+                led.add(file);
+                continue;
+            }
+            ReloadFlights.Ticket ticket = flights.join(url, file, digests.get(file));
+            if (ticket.isLeader()) {
+                led.add(file);
+                leading.put(file, ticket.getFlight());
+            } else {
+                log.println("Plug-in " + file + " is being reloaded by another build, waiting for its result.");
+                following.put(file, ticket.getFlight());
+            }
+        }
+
+        try {
+            if (!led.isEmpty()) {
+                // Logon once, then reload and save configuration of all plug-ins
+                IcnClient client = new IcnClient(httpClient, url, log, sessions, timings, guards, started);
+                if (!client.connect(username, password)) {
+                    return new NodeResult(url, false, Collections.<PluginReloadResult>emptyList(), "");
+                }
+                Map<String, DeployRecords.Record> previous = gate == null || records == null ? null : records.get(url);
+                long before = gate == null ? -1 : client.sampleLatency(gate, "before the reload");
+                List<PluginReloadResult> reloaded = client.reloadAll(led, concurrency, saved(url, led));
+                boolean reloadedAny = false;
+                for (int i = 0; i < led.size(); i++) {
+                    String file = led.get(i);
+                    record(url, file, digests.get(file), reloaded.get(i));
+                    results.put(file, reloaded.get(i));
+                    reloadedAny |= reloaded.get(i).getStatus() == PluginReloadResult.Status.OK;
+                }
+                // Checked before the builds waiting for the reloads get their results
+                if (before >= 0 && reloadedAny) {
+                    long after = client.sampleLatency(gate, "after the reload");
+                    if (after >= 0 && gate.isRegression(before, after)) {
+                        log.println("ERROR: p" + gate.getPercentile() + " latency went from " + before + " ms to " + after
+                                + " ms, more than " + gate.getThreshold() + "% slower.");
+                        rollBack(client, url, led, previous, results, log);
+                    }
+                }
+                completeFlights(client, url, leading, results, log);
+                // Once builds waiting for the reloads have their results
+                if (warmUp != null) {
+                    client.warmUp(warmUp);
+                }
+            }
+        } finally {
+            // Don't leave other builds waiting for reloads this one won't do
+            for (ReloadFlights.Flight flight : leading.values()) {
+                flights.abandon(flight);
+            }
+        }
+
+        for (Map.Entry<String, ReloadFlights.Flight> entry : following.entrySet()) {
+            PluginReloadResult result = flights.await(entry.getValue());
+            log.println("Reload of " + entry.getKey() + " by another build ended with " + result.getStatus());
+            results.put(entry.getKey(), result);
+        }
+
+        List<PluginReloadResult> ordered = new ArrayList<PluginReloadResult>(files.size());
+        for (String file : files) {
+            ordered.add(results.get(file));
+        }
+        return new NodeResult(url, true, ordered, "");
+    }
+
+    /**
+     * Hand the results of the reloads led by this build to the builds waiting for
+     * them, then reload again the plug-ins whose jar changed in the meantime, for
+     * the builds waiting for that, until no follow-up is left.
+     * @param leading the flights led by this build by file, emptied as they are completed
+     */
+    private void completeFlights(IcnClient client, String url, Map<String, ReloadFlights.Flight> leading,
+            Map<String, PluginReloadResult> results, PrintStream log) throws InterruptedException {
+        Map<String, PluginReloadResult> completed = results;
+        while (!leading.isEmpty()) {
+            Map<String, ReloadFlights.Flight> followUps = new LinkedHashMap<String, ReloadFlights.Flight>();
+            for (Map.Entry<String, ReloadFlights.Flight> entry : leading.entrySet()) {
+                ReloadFlights.Flight followUp = flights.complete(entry.getValue(), completed.get(entry.getKey()));
+                if (followUp != null) {
+                    followUps.put(entry.getKey(), followUp);
+                }
+            }
+            leading.clear();
+            leading.putAll(followUps);
+            if (leading.isEmpty()) {
+                return;
+            }
+
+            List<String> again = new ArrayList<String>(leading.keySet());
+            log.println("Jar of " + again + " changed during the reload, reloading again for the builds waiting for it...");
+            List<PluginReloadResult> reloaded = client.reloadAll(again, concurrency, saved(url, again));
+            completed = new HashMap<String, PluginReloadResult>();
+            for (int i = 0; i < again.size(); i++) {
+                String file = again.get(i);
+                record(url, file, leading.get(file).getDigest(), reloaded.get(i));
+                completed.put(file, reloaded.get(i));
+            }
+        }
+    }
+
+    /**
+     * Reload the jars deployed before the plug-ins of this build which made ICN slower,
+     * and save their configuration again. A plug-in without a previous jar in another
+     * location, or whose rollback fails, stays deployed, but is reloaded and checked
+     * again by the next build.
+     * @param reloaded the files reloaded by this build
+     * @param previous what was deployed before the reload by plug-in id, <code>null</code> if unknown
+     * @param results the results of the reloads by file, the reloaded plug-ins are marked as rolled back
+     */
+    private void rollBack(IcnClient client, String url, List<String> reloaded, Map<String, DeployRecords.Record> previous,
+            Map<String, PluginReloadResult> results, PrintStream log) throws InterruptedException {
+        List<DeployRecords.Record> rollBacks = new ArrayList<DeployRecords.Record>();
+        List<String> files = new ArrayList<String>();
+        List<PluginReloadResult> replaced = new ArrayList<PluginReloadResult>();
+        for (String file : reloaded) {
+            PluginReloadResult result = results.get(file);
+            if (result.getStatus() != PluginReloadResult.Status.OK) {
+                continue;
+            }
+            results.put(file, result.rolledBack());
+            DeployRecords.Record record = previous == null ? null : previous.get(result.getId());
+            if (record == null || record.getFile().equals(file)) {
+                log.println("WARNING: No previous jar of plug-in " + result.getId() + " to roll back to, " + file
+                        + " stays deployed.");
+                record(url, file, null, result);
+            } else {
+                rollBacks.add(record);
+                files.add(record.getFile());
+                replaced.add(result);
+            }
+        }
+        if (files.isEmpty()) {
+            return;
+        }
+
+        log.println("Rolling back to " + files + "...");
+        List<PluginReloadResult> rolledBack = client.reloadAll(files, concurrency, null);
+        for (int i = 0; i < files.size(); i++) {
+            if (rolledBack.get(i).getStatus() == PluginReloadResult.Status.OK) {
+                record(url, files.get(i), rollBacks.get(i).getDigest(), rolledBack.get(i));
+            } else {
+                log.println("ERROR: Rollback to " + files.get(i) + " failed with " + rolledBack.get(i).getStatus() + ".");
+                // The slower jar may still be deployed, the next build reloads and checks it again
+                record(url, replaced.get(i).getFile(), null, replaced.get(i));
+            }
+        }
+    }
+
+    /**
+     * Record what was deployed, also without digest as the saved configuration is
+     * needed to skip the next save.
+     */
+    private void record(String url, String file, String digest, PluginReloadResult result) {
+        if (records != null && result.getStatus() == PluginReloadResult.Status.OK) {
+            records.put(url, new DeployRecords.Record(file, digest, result.getId(), result.getVersion(),
+                    result.getName(), result.getConfigClass()));
+        }
+    }
+
+    /**
+     * @return what was last deployed from the files, to not save their configuration
+     *         again if it didn't change. <code>null</code> to always save
+     */
+    private Map<String, DeployRecords.Record> saved(String url, List<String> reloaded) {
+        if (records == null || !skipCurrentSave) {
+            return null;
+        }
+        Map<String, DeployRecords.Record> saved = new HashMap<String, DeployRecords.Record>();
+        for (String file : reloaded) {
+            DeployRecords.Record record = records.find(url, file);
+            if (record != null) {
+                saved.put(file, record);
+            }
+        }
+        return saved;
+    }
+
+    /**
+     * @return the record of the last deployment of the file if its jar has not changed since,
+     *         <code>null</code> if the plug-in has to be reloaded
+     */
+    private DeployRecords.Record findUnchanged(String url, String file) {
+        String digest = digests.get(file);
+        if (forceReload || records == null || digest == null) {
+            return null;
+        }
+        DeployRecords.Record record = records.find(url, file);
+        return record != null && digest.equals(record.getDigest()) ? record : null;
+    }
+
+    /**
+     * Outcome of the reload on one ICN node.
+     */
+    static final class NodeResult {
+        private final String url;
+        private final boolean loggedOn;
+        private final List<PluginReloadResult> results;
+        private final String output;
+
+        NodeResult(String url, boolean loggedOn, List<PluginReloadResult> results, String output) {
+            this.url = url;
+            this.loggedOn = loggedOn;
+            this.results = results;
+            this.output = output;
+        }
+
+        String getUrl() {
+            return url;
+        }
+
+        boolean isLoggedOn() {
+            return loggedOn;
+        }
+
+        List<PluginReloadResult> getResults() {
+            return results;
+        }
+
+        /**
+         * @return the log of the node when it was run in parallel with others
+         */
+        String getOutput() {
+            return output;
+        }
+
+        /**
+         * @return <code>true</code> if all plug-ins were reloaded and saved, or unchanged, on this node
+         */
+        boolean isSuccess() {
+            if (!loggedOn) {
+                return false;
+            }
+            for (PluginReloadResult r : results) {
+                if (!r.isSuccess()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package jenkins.plugins.icn;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.CookieStore;
+import org.apache.http.client.config.CookieSpecs;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * HTTP client shared by all ICN sessions. Connections are pooled and kept
+ * alive between builds so that TCP and TLS handshakes are not paid on every
+ * reload. Each session keeps its own cookies, given with each request.
+ */
+final class IcnHttpClient implements Closeable {
+
+    /**
+     * How long a connection is kept alive when the server doesn't say
+     */
+    private static final long DEFAULT_KEEP_ALIVE = TimeUnit.SECONDS.toMillis(30);
+    /**
+     * Connections idle for longer than this are closed by a background thread
+     */
+    private static final long MAX_IDLE_SECONDS = 60;
+
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final CloseableHttpClient client;
+    private volatile RequestConfig requestConfig;
+    private volatile long maxResponseSize;
+    private volatile IcnTrace trace;
+
+    /**
+     * @param maxConnections the maximum number of connections, all servers together
+     * @param maxConnectionsPerRoute the maximum number of connections to one server
+     * @param connectTimeout the connect timeout in seconds, 0 for none
+     * @param socketTimeout the timeout waiting for data in seconds, 0 for none
+     * @param maxResponseSize the maximum size of an ICN response in kilobytes
+     */
+    IcnHttpClient(int maxConnections, int maxConnectionsPerRoute, int connectTimeout, int socketTimeout, int maxResponseSize) {
+        connectionManager = new PoolingHttpClientConnectionManager();
+        configure(maxConnections, maxConnectionsPerRoute, connectTimeout, socketTimeout, maxResponseSize);
+        client = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setKeepAliveStrategy(new ConnectionKeepAliveStrategy() {
+                    @Override
+                    public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+                        long duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+                        return duration > 0 ? duration : DEFAULT_KEEP_ALIVE;
+                    }
+                })
+                .evictExpiredConnections()
+                .evictIdleConnections(MAX_IDLE_SECONDS, TimeUnit.SECONDS)
+                .build();
+    }
+
+    /**
+     * Apply new limits and timeouts, they are used by the next requests.
+     */
+    void configure(int maxConnections, int maxConnectionsPerRoute, int connectTimeout, int socketTimeout, int maxResponseSize) {
+        this.maxResponseSize = Math.max(1, maxResponseSize) * 1024L;
+        connectionManager.setMaxTotal(Math.max(1, maxConnections));
+        connectionManager.setDefaultMaxPerRoute(Math.max(1, maxConnectionsPerRoute));
+        int connectMillis = (int) TimeUnit.SECONDS.toMillis(Math.max(0, connectTimeout));
+        requestConfig = RequestConfig.custom()
+                .setCookieSpec(CookieSpecs.DEFAULT)
+                .setConnectTimeout(connectMillis)
+                // Waiting for a connection of the pool is bounded the same way
+                .setConnectionRequestTimeout(connectMillis)
+                .setSocketTimeout((int) TimeUnit.SECONDS.toMillis(Math.max(0, socketTimeout)))
+                .build();
+    }
+
+    /**
+     * @return the maximum size of an ICN response in bytes, bigger responses are refused
+     */
+    long getMaxResponseSize() {
+        return maxResponseSize;
+    }
+
+    /**
+     * @return the trace the calls to ICN are written to, <code>null</code> if they are not traced
+     */
+    IcnTrace getTrace() {
+        return trace;
+    }
+
+    /**
+     * Write the next calls to ICN to the given trace.
+     * @param trace the trace, <code>null</code> to stop tracing
+     * @return the trace used until now, to be closed
+     */
+    IcnTrace setTrace(IcnTrace trace) {
+        IcnTrace previous = this.trace;
+        this.trace = trace;
+        return previous;
+    }
+
+    /**
+     * Execute a request with the cookies of a session. The response has to be closed
+     * to give the connection back to the pool.
+     * @param request the request to execute
+     * @param cookies the cookies of the ICN session, updated with the ones set by the server
+     * @return the response
+     * @throws IOException if the request failed
+     */
+    CloseableHttpResponse execute(HttpUriRequest request, CookieStore cookies) throws IOException {
+        HttpClientContext context = HttpClientContext.create();
+        context.setCookieStore(cookies);
+        context.setRequestConfig(requestConfig);
+        return client.execute(request, context);
+    }
+
+    @Override
+    public void close() throws IOException {
+        client.close();
+    }
+}
@@ -0,0 +1,98 @@
+package jenkins.plugins.icn;
+
+import hudson.Extension;
+import hudson.model.RootAction;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import jenkins.model.Jenkins;
+import net.sf.json.JSONObject;
+
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+/**
+ * Latency histograms of the calls to ICN, by host and phase, for all builds since
+ * Jenkins started. Served as JSON on <code>/icn-metrics/</code> for monitoring:
+ * <pre>{"icnhost:9080": {"LOGON": {"count": 12, "p95": 500, ...}, "LOAD": {...}}}</pre>
+ */
+@Extension
+public class IcnMetrics implements RootAction {
+
+    private final ConcurrentMap<String, Map<PhaseTiming.Phase, LatencyHistogram>> histograms =
+            new ConcurrentHashMap<String, Map<PhaseTiming.Phase, LatencyHistogram>>();
+
+    /**
+     * @return the instance registered in Jenkins, <code>null</code> if Jenkins is not running
+     */
+    static IcnMetrics get() {
+        Jenkins jenkins = Jenkins.getInstance();
+        return jenkins == null ? null : jenkins.getExtensionList(RootAction.class).get(IcnMetrics.class);
+    }
+
+    /**
+     * Add the timings of a reload to the histograms.
+     * @param timings the timings of all calls of the reload
+     */
+    void record(Iterable<PhaseTiming> timings) {
+        for (PhaseTiming timing : timings) {
+            histogram(timing.getHost(), timing.getPhase()).add(timing.getDuration());
+        }
+    }
+
+    private LatencyHistogram histogram(String host, PhaseTiming.Phase phase) {
+        Map<PhaseTiming.Phase, LatencyHistogram> byPhase = histograms.get(host);
+        if (byPhase == null) {
+            Map<PhaseTiming.Phase, LatencyHistogram> created = new ConcurrentHashMap<PhaseTiming.Phase, LatencyHistogram>();
+            for (PhaseTiming.Phase p : PhaseTiming.Phase.values()) {
+                created.put(p, new LatencyHistogram());
+            }
+            byPhase = histograms.putIfAbsent(host, created);
+            if (byPhase == null) {
+                byPhase = created;
+            }
+        }
+        return byPhase.get(phase);
+    }
+
+    /**
+     * @return the histograms as JSON, hosts sorted by name
+     */
+    JSONObject toJSON() {
+        JSONObject json = new JSONObject();
+        for (Map.Entry<String, Map<PhaseTiming.Phase, LatencyHistogram>> host : new TreeMap<String, Map<PhaseTiming.Phase, LatencyHistogram>>(histograms).entrySet()) {
+            JSONObject phases = new JSONObject();
+            for (PhaseTiming.Phase phase : PhaseTiming.Phase.values()) {
+                phases.put(phase.name(), host.getValue().get(phase).toJSON());
+            }
+            json.put(host.getKey(), phases);
+        }
+        return json;
+    }
+
+    public void doIndex(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        Jenkins.getInstance().checkPermission(Jenkins.READ);
+        rsp.setContentType("application/json;charset=UTF-8");
+        rsp.getWriter().print(toJSON().toString(2));
+    }
+
+    @Override
+    public String getIconFileName() {
+        // Not shown in the side panel, meant for monitoring tools
+        return null;
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "ICN reload metrics";
+    }
+
+    @Override
+    public String getUrlName() {
+        return "icn-metrics";
+    }
+}
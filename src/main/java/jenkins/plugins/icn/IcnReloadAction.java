@@ -0,0 +1,89 @@
+package jenkins.plugins.icn;
+
+import hudson.model.Run;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import jenkins.model.RunAction2;
+
+/**
+ * Timings of the calls made to ICN by a build, shown on the build page and used
+ * by the trend chart of the job. A build running several reload steps has one
+ * action holding the timings of all of them.
+ */
+public class IcnReloadAction implements RunAction2 {
+
+    private final List<PhaseTiming> timings = new ArrayList<PhaseTiming>();
+    private transient Run<?, ?> run;
+
+    /**
+     * Add the timings of a reload to the action of the build, creating it if needed.
+     * @param run the build
+     * @param timings the timings of the reload
+     */
+    static void addTo(Run<?, ?> run, List<PhaseTiming> timings) {
+        synchronized (run) {
+            IcnReloadAction action = run.getAction(IcnReloadAction.class);
+            if (action == null) {
+                action = new IcnReloadAction();
+                run.addAction(action);
+            }
+            synchronized (action.timings) {
+                action.timings.addAll(timings);
+            }
+        }
+    }
+
+    public List<PhaseTiming> getTimings() {
+        synchronized (timings) {
+            return Collections.unmodifiableList(new ArrayList<PhaseTiming>(timings));
+        }
+    }
+
+    /**
+     * @return the time spent in each phase by all calls of the build, in milliseconds
+     */
+    public Map<PhaseTiming.Phase, Long> getTotals() {
+        Map<PhaseTiming.Phase, Long> totals = new EnumMap<PhaseTiming.Phase, Long>(PhaseTiming.Phase.class);
+        for (PhaseTiming.Phase phase : PhaseTiming.Phase.values()) {
+            totals.put(phase, 0L);
+        }
+        for (PhaseTiming timing : getTimings()) {
+            totals.put(timing.getPhase(), totals.get(timing.getPhase()) + timing.getDuration());
+        }
+        return totals;
+    }
+
+    public Run<?, ?> getRun() {
+        return run;
+    }
+
+    @Override
+    public void onAttached(Run<?, ?> r) {
+        run = r;
+    }
+
+    @Override
+    public void onLoad(Run<?, ?> r) {
+        run = r;
+    }
+
+    @Override
+    public String getIconFileName() {
+        return "clock.png";
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "ICN reload timings";
+    }
+
+    @Override
+    public String getUrlName() {
+        return "icnReloadTimings";
+    }
+}
@@ -0,0 +1,115 @@
+package jenkins.plugins.icn;
+
+import hudson.Extension;
+import hudson.model.Action;
+import hudson.model.Job;
+import hudson.model.Run;
+import hudson.util.ChartUtil;
+import hudson.util.DataSetBuilder;
+import hudson.util.Graph;
+
+import java.awt.Color;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+
+import jenkins.model.TransientActionFactory;
+
+import org.jfree.chart.ChartFactory;
+import org.jfree.chart.JFreeChart;
+import org.jfree.chart.plot.CategoryPlot;
+import org.jfree.chart.plot.PlotOrientation;
+
+/**
+ * Trend of the time spent in each phase of the ICN reloads of a job, shown on
+ * the job page.
+ */
+public class IcnReloadProjectAction implements Action {
+
+    /**
+     * Number of builds shown by the trend
+     */
+    private static final int MAX_BUILDS = 30;
+
+    private final Job<?, ?> job;
+
+    IcnReloadProjectAction(Job<?, ?> job) {
+        this.job = job;
+    }
+
+    public Job<?, ?> getJob() {
+        return job;
+    }
+
+    /**
+     * @return the trend chart, served as <code>trend/png</code>
+     */
+    public Graph getTrend() {
+        Run<?, ?> last = job.getLastBuild();
+        Calendar timestamp = last == null ? Calendar.getInstance() : last.getTimestamp();
+        return new Graph(timestamp, 500, 200) {
+            @Override
+            protected JFreeChart createGraph() {
+                DataSetBuilder<String, ChartUtil.NumberOnlyBuildLabel> data = new DataSetBuilder<String, ChartUtil.NumberOnlyBuildLabel>();
+                int builds = 0;
+                for (Run<?, ?> run = job.getLastBuild(); run != null && builds < MAX_BUILDS; run = run.getPreviousBuild()) {
+                    IcnReloadAction action = run.getAction(IcnReloadAction.class);
+                    if (action == null) {
+                        continue;
+                    }
+                    ChartUtil.NumberOnlyBuildLabel label = new ChartUtil.NumberOnlyBuildLabel(run);
+                    for (Map.Entry<PhaseTiming.Phase, Long> total : action.getTotals().entrySet()) {
+                        data.add(total.getValue(), total.getKey().name(), label);
+                    }
+                    builds++;
+                }
+                JFreeChart chart = ChartFactory.createStackedAreaChart(null, null, "ms", data.build(),
+                        PlotOrientation.VERTICAL, true, true, false);
+                chart.setBackgroundPaint(Color.WHITE);
+                CategoryPlot plot = chart.getCategoryPlot();
+                plot.setBackgroundPaint(Color.WHITE);
+                plot.setRangeGridlinePaint(Color.GRAY);
+                return chart;
+            }
+        };
+    }
+
+    @Override
+    public String getIconFileName() {
+        // Only shown as a floating box on the job page
+        return null;
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "ICN reload trend";
+    }
+
+    @Override
+    public String getUrlName() {
+        return "icnReloadTrend";
+    }
+
+    /**
+     * Adds the trend to jobs whose last build reloaded ICN plug-ins, freestyle or Pipeline.
+     */
+    @Extension
+    @SuppressWarnings("rawtypes")
+    public static final class Factory extends TransientActionFactory<Job> {
+
+        @Override
+        public Class<Job> type() {
+            return Job.class;
+        }
+
+        @Override
+        public Collection<? extends Action> createFor(Job target) {
+            Run<?, ?> last = target.getLastBuild();
+            if (last == null || last.getAction(IcnReloadAction.class) == null) {
+                return Collections.emptyList();
+            }
+            return Collections.singleton(new IcnReloadProjectAction(target));
+        }
+    }
+}
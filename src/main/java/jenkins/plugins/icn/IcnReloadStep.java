@@ -0,0 +1,314 @@
+package jenkins.plugins.icn;
+
+import hudson.AbortException;
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.util.ListBoxModel;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.jenkinsci.plugins.workflow.steps.AbstractStepDescriptorImpl;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepExecutionImpl;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepImpl;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+import com.google.inject.Inject;
+
+/**
+ * Pipeline step reloading ICN plug-ins, as <code>icnReloadPlugin</code>. It takes the
+ * same parameters as the {@link LoadPluginBuilder} build step.
+ * <p>
+ * The step is asynchronous: ICN is called from one of the {@link ReloadStepThreads}
+ * and the Pipeline resumes when the reload is done. Used outside of a <code>node</code>
+ * block, it holds no executor while ICN reloads the plug-ins.
+ * <p>
+ * Pipeline is an optional dependency: this is the only class using it, the
+ * {@link LoadPluginBuilder} works without it.
+ */
+public class IcnReloadStep extends AbstractStepImpl {
+
+    private final String url;
+    private final String username;
+    private final String password;
+    private final String file;
+    private int concurrency = LoadPluginBuilder.DEFAULT_CONCURRENCY;
+    private int nodeConcurrency = LoadPluginBuilder.DEFAULT_NODE_CONCURRENCY;
+    private SuccessPolicy successPolicy = SuccessPolicy.ALL;
+    private String uploadUrl;
+    private String serverDirectory;
+    private boolean forceReload;
+    private boolean runOnAgent;
+    private boolean warmUp;
+    private String warmUpPaths;
+    private boolean latencyGate;
+    private String gatePaths;
+    private int gateThreshold = LoadPluginBuilder.DEFAULT_GATE_THRESHOLD;
+
+    @DataBoundConstructor
+    public IcnReloadStep(String url, String username, String password, String file) {
+        this.url = url;
+        this.username = username;
+        this.password = password;
+        this.file = file;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public String getPassword() {
+        return password;
+    }
+
+    public String getFile() {
+        return file;
+    }
+
+    public int getConcurrency() {
+        return concurrency;
+    }
+
+    @DataBoundSetter
+    public void setConcurrency(int concurrency) {
+        this.concurrency = concurrency;
+    }
+
+    public int getNodeConcurrency() {
+        return nodeConcurrency;
+    }
+
+    @DataBoundSetter
+    public void setNodeConcurrency(int nodeConcurrency) {
+        this.nodeConcurrency = nodeConcurrency;
+    }
+
+    public SuccessPolicy getSuccessPolicy() {
+        return successPolicy;
+    }
+
+    @DataBoundSetter
+    public void setSuccessPolicy(SuccessPolicy successPolicy) {
+        this.successPolicy = successPolicy;
+    }
+
+    public String getUploadUrl() {
+        return uploadUrl;
+    }
+
+    @DataBoundSetter
+    public void setUploadUrl(String uploadUrl) {
+        this.uploadUrl = uploadUrl;
+    }
+
+    public String getServerDirectory() {
+        return serverDirectory;
+    }
+
+    @DataBoundSetter
+    public void setServerDirectory(String serverDirectory) {
+        this.serverDirectory = serverDirectory;
+    }
+
+    public boolean isForceReload() {
+        return forceReload;
+    }
+
+    @DataBoundSetter
+    public void setForceReload(boolean forceReload) {
+        this.forceReload = forceReload;
+    }
+
+    public boolean isRunOnAgent() {
+        return runOnAgent;
+    }
+
+    @DataBoundSetter
+    public void setRunOnAgent(boolean runOnAgent) {
+        this.runOnAgent = runOnAgent;
+    }
+
+    public boolean isWarmUp() {
+        return warmUp;
+    }
+
+    @DataBoundSetter
+    public void setWarmUp(boolean warmUp) {
+        this.warmUp = warmUp;
+    }
+
+    public String getWarmUpPaths() {
+        return warmUpPaths;
+    }
+
+    @DataBoundSetter
+    public void setWarmUpPaths(String warmUpPaths) {
+        this.warmUpPaths = warmUpPaths;
+    }
+
+    public boolean isLatencyGate() {
+        return latencyGate;
+    }
+
+    @DataBoundSetter
+    public void setLatencyGate(boolean latencyGate) {
+        this.latencyGate = latencyGate;
+    }
+
+    public String getGatePaths() {
+        return gatePaths;
+    }
+
+    @DataBoundSetter
+    public void setGatePaths(String gatePaths) {
+        this.gatePaths = gatePaths;
+    }
+
+    public int getGateThreshold() {
+        return gateThreshold;
+    }
+
+    @DataBoundSetter
+    public void setGateThreshold(int gateThreshold) {
+        this.gateThreshold = gateThreshold;
+    }
+
+    /**
+     * @return the build step doing the same reload
+     */
+    LoadPluginBuilder toBuilder() {
+        LoadPluginBuilder builder = new LoadPluginBuilder(url, username, password, file);
+        builder.setConcurrency(concurrency);
+        builder.setNodeConcurrency(nodeConcurrency);
+        builder.setSuccessPolicy(successPolicy);
+        builder.setUploadUrl(uploadUrl);
+        builder.setServerDirectory(serverDirectory);
+        builder.setForceReload(forceReload);
+        builder.setRunOnAgent(runOnAgent);
+        builder.setWarmUp(warmUp);
+        builder.setWarmUpPaths(warmUpPaths);
+        builder.setLatencyGate(latencyGate);
+        builder.setGatePaths(gatePaths);
+        builder.setGateThreshold(gateThreshold);
+        return builder;
+    }
+
+    /**
+     * Runs the reload on one of the {@link ReloadStepThreads} and completes the step
+     * when it is done. The deadline of the deployment starts when the step does, the
+     * wait for a thread counts.
+     */
+    public static final class Execution extends AbstractStepExecutionImpl {
+
+        private static final long serialVersionUID = 1L;
+
+        @Inject
+        private transient IcnReloadStep step;
+        private transient volatile Future<?> task;
+        /** Set by the first of the reload and {@link #stop(Throwable)} to complete the step */
+        private final AtomicBoolean completed = new AtomicBoolean();
+
+        @Override
+        public boolean start() throws Exception {
+            final StepContext context = getContext();
+            final TaskListener listener = context.get(TaskListener.class);
+            final Run<?, ?> run = context.get(Run.class);
+            EnvVars contextEnv = context.get(EnvVars.class);
+            final EnvVars env = contextEnv == null ? new EnvVars() : contextEnv;
+            // Only available inside a node block, needed to upload jars or digest them there
+            final FilePath workspace = context.get(FilePath.class);
+            final LoadPluginBuilder builder = step.toBuilder();
+            final Timeouts timeouts = builder.getDescriptor().getTimeouts().start();
+            task = ReloadStepThreads.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (builder.reload(run, env, workspace, workspace == null ? null : workspace.getChannel(), listener,
+                                timeouts)) {
+                            complete(null);
+                        } else {
+                            complete(new AbortException("ICN plug-in reload failed"));
+                        }
+                    } catch (Throwable t) {
+                        complete(t);
+                    }
+                }
+            }, listener.getLogger());
+            return false;
+        }
+
+        @Override
+        public void stop(Throwable cause) throws Exception {
+            // First, the reload may end while it is interrupted
+            complete(cause);
+            Future<?> t = task;
+            if (t != null) {
+                t.cancel(true);
+            }
+        }
+
+        /**
+         * Complete the step, unless it already was.
+         * @param failure why the step failed, <code>null</code> if it succeeded
+         */
+        private void complete(Throwable failure) {
+            if (!completed.compareAndSet(false, true)) {
+                return;
+            }
+            if (failure == null) {
+                getContext().onSuccess(null);
+            } else {
+                getContext().onFailure(failure);
+            }
+        }
+
+        @Override
+        public void onResume() {
+            // The reload was running in this Jenkins process, its outcome is lost
+            getContext().onFailure(new AbortException("Jenkins was restarted while reloading ICN plug-ins, "
+                    + "check the state of the plug-ins in ICN and run the step again"));
+        }
+    }
+
+    /**
+     * Only loaded when Pipeline is installed, the dependency on it is optional.
+     */
+    @Extension(optional = true)
+    public static final class DescriptorImpl extends AbstractStepDescriptorImpl {
+
+        public DescriptorImpl() {
+            super(Execution.class);
+        }
+
+        @Override
+        public String getFunctionName() {
+            return "icnReloadPlugin";
+        }
+
+        @Override
+        public String getDisplayName() {
+            return "Refresh plug-ins in ICN";
+        }
+
+        @Override
+        public Set<Class<?>> getRequiredContext() {
+            return new HashSet<Class<?>>(Arrays.<Class<?>>asList(Run.class, TaskListener.class));
+        }
+
+        public ListBoxModel doFillSuccessPolicyItems() {
+            return SuccessPolicy.listBoxModel();
+        }
+    }
+}
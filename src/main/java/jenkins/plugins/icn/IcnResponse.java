@@ -0,0 +1,92 @@
+package jenkins.plugins.icn;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The parts of an ICN JSON response the plug-in needs: some top level
+ * scalar fields, and the texts of the <code>messages</code> and
+ * <code>errors</code> arrays. Everything else is skipped while reading.
+ */
+final class IcnResponse {
+
+    private final Map<String, String> fields = new LinkedHashMap<String, String>();
+    /** <code>null</code> until a messages array is read */
+    private List<String> messages;
+    private final List<String> errors = new ArrayList<String>();
+
+    void put(String name, String value) {
+        fields.put(name, value);
+    }
+
+    /**
+     * @return <code>true</code> if the field was in the response, with a non null value
+     */
+    boolean has(String name) {
+        return fields.containsKey(name);
+    }
+
+    /**
+     * @return the value of the field, as a string whatever its JSON type, or <code>null</code>
+     */
+    String get(String name) {
+        return fields.get(name);
+    }
+
+    /**
+     * @return the fields read from the response, in their order
+     */
+    Map<String, String> getFields() {
+        return Collections.unmodifiableMap(fields);
+    }
+
+    /**
+     * @return <code>true</code> if the response has a <code>messages</code> array, even empty
+     */
+    boolean hasMessages() {
+        return messages != null;
+    }
+
+    /**
+     * @return the texts of the <code>messages</code> array
+     */
+    List<String> getMessages() {
+        return messages == null ? Collections.<String>emptyList() : Collections.unmodifiableList(messages);
+    }
+
+    /**
+     * @return the texts of the <code>errors</code> array
+     */
+    List<String> getErrors() {
+        return Collections.unmodifiableList(errors);
+    }
+
+    List<String> messages() {
+        if (messages == null) {
+            messages = new ArrayList<String>();
+        }
+        return messages;
+    }
+
+    List<String> errors() {
+        return errors;
+    }
+
+    /**
+     * Only what was kept from the response, mostly to be logged when something is missing.
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder().append(fields);
+        if (messages != null) {
+            sb.append(" messages=").append(messages);
+        }
+        if (!errors.isEmpty()) {
+            sb.append(" errors=").append(errors);
+        }
+        return sb.toString();
+    }
+}
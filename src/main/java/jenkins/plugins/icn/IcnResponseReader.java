@@ -0,0 +1,403 @@
+package jenkins.plugins.icn;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Streaming reader for ICN JSON responses. The response is read once, in
+ * small chunks: the secure <code>{}&amp;&amp;</code> prefix is skipped, only
+ * the wanted top level fields and the texts of <code>messages</code> and
+ * <code>errors</code> are kept, everything else is skipped without being
+ * copied. Responses bigger than the given limit are refused, so memory stays
+ * flat whatever the server sends.
+ */
+final class IcnResponseReader {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int EOF = -1;
+
+    private final Reader in;
+    private final char[] buffer = new char[4096];
+    private int pos;
+    private int limit;
+    /** A character read ahead and given back, or -2 if none */
+    private int pushedBack = -2;
+
+    private IcnResponseReader(Reader in) {
+        this.in = in;
+    }
+
+    /**
+     * Read an ICN response.
+     * @param body the response body, it is read until the end but not closed
+     * @param fields the top level fields to keep
+     * @param maxBytes the maximum size of the body
+     * @return the fields found in the response
+     * @throws IOException if the body can't be read, is not a JSON object or is too big
+     */
+    static IcnResponse read(InputStream body, Set<String> fields, long maxBytes) throws IOException {
+        LimitedInputStream limited = new LimitedInputStream(body, maxBytes);
+        IcnResponseReader reader = new IcnResponseReader(new InputStreamReader(limited, UTF_8));
+        IcnResponse response = reader.readResponse(fields);
+        // Whatever follows is read so the connection can be reused, within the limit
+        limited.drain();
+        return response;
+    }
+
+    /**
+     * Read and discard a body, within the limit, so the connection can be reused.
+     * @throws IOException if the body can't be read or is too big
+     */
+    static void discard(InputStream body, long maxBytes) throws IOException {
+        new LimitedInputStream(body, maxBytes).drain();
+    }
+
+    private IcnResponse readResponse(Set<String> fields) throws IOException {
+        IcnResponse response = new IcnResponse();
+        expect('{');
+        // Unsecure the json if prefix is activated in servlet: {}&&{...}
+        int c = nextNonWhitespace();
+        if (c == '}') {
+            // A bare {} may be followed by a newline
+            c = nextNonWhitespace();
+            if (c == EOF) {
+                return response;
+            }
+            if (c != '&' || next() != '&') {
+                throw syntaxError("secure prefix {}&&");
+            }
+            expect('{');
+            c = nextNonWhitespace();
+        }
+        pushBack(c);
+        readObject(response, fields);
+        return response;
+    }
+
+    /**
+     * Read the members of the top level object, the opening brace being already read.
+     */
+    private void readObject(IcnResponse response, Set<String> fields) throws IOException {
+        int c = nextNonWhitespace();
+        if (c == '}') {
+            return;
+        }
+        pushBack(c);
+        while (true) {
+            expect('"');
+            String name = readString();
+            expect(':');
+            if (fields.contains(name)) {
+                String value = readScalar();
+                if (value != null) {
+                    response.put(name, value);
+                }
+            } else if ("messages".equals(name)) {
+                readTexts(response.messages());
+            } else if ("errors".equals(name)) {
+                readTexts(response.errors());
+            } else {
+                skipValue();
+            }
+            c = nextNonWhitespace();
+            if (c == '}') {
+                return;
+            }
+            if (c != ',') {
+                throw syntaxError("',' or '}'");
+            }
+        }
+    }
+
+    /**
+     * Read an array of objects, keeping their <code>text</code> member.
+     */
+    private void readTexts(List<String> texts) throws IOException {
+        int c = nextNonWhitespace();
+        if (c != '[') {
+            pushBack(c);
+            skipValue();
+            return;
+        }
+        c = nextNonWhitespace();
+        if (c == ']') {
+            return;
+        }
+        pushBack(c);
+        while (true) {
+            c = nextNonWhitespace();
+            if (c == '{') {
+                String text = readText();
+                if (text != null) {
+                    texts.add(text);
+                }
+            } else {
+                pushBack(c);
+                skipValue();
+            }
+            c = nextNonWhitespace();
+            if (c == ']') {
+                return;
+            }
+            if (c != ',') {
+                throw syntaxError("',' or ']'");
+            }
+        }
+    }
+
+    /**
+     * Read an object of an array, the opening brace being already read, and
+     * return its <code>text</code> member.
+     */
+    private String readText() throws IOException {
+        String text = null;
+        int c = nextNonWhitespace();
+        if (c == '}') {
+            return null;
+        }
+        pushBack(c);
+        while (true) {
+            expect('"');
+            String name = readString();
+            expect(':');
+            if ("text".equals(name)) {
+                text = readScalar();
+            } else {
+                skipValue();
+            }
+            c = nextNonWhitespace();
+            if (c == '}') {
+                return text;
+            }
+            if (c != ',') {
+                throw syntaxError("',' or '}'");
+            }
+        }
+    }
+
+    /**
+     * Read a string, number or boolean as a string. Objects and arrays are
+     * skipped and <code>null</code> is returned for them and for null.
+     */
+    private String readScalar() throws IOException {
+        int c = nextNonWhitespace();
+        if (c == '"') {
+            return readString();
+        }
+        pushBack(c);
+        if (c == '{' || c == '[') {
+            skipValue();
+            return null;
+        }
+        String literal = readLiteral();
+        return "null".equals(literal) ? null : literal;
+    }
+
+    /**
+     * Skip any value. Nested objects and arrays are skipped by counting
+     * brackets, so deep nesting doesn't use the stack.
+     */
+    private void skipValue() throws IOException {
+        int c = nextNonWhitespace();
+        if (c == '"') {
+            skipString();
+        } else if (c == '{' || c == '[') {
+            int depth = 1;
+            while (depth > 0) {
+                c = next();
+                switch (c) {
+                case EOF:
+                    throw syntaxError("end of value");
+                case '"':
+                    skipString();
+                    break;
+                case '{':
+                case '[':
+                    depth++;
+                    break;
+                case '}':
+                case ']':
+                    depth--;
+                    break;
+                default:
+                    break;
+                }
+            }
+        } else {
+            pushBack(c);
+            readLiteral();
+        }
+    }
+
+    private String readLiteral() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        while (true) {
+            int c = next();
+            if (c == EOF || c == ',' || c == '}' || c == ']' || Character.isWhitespace(c)) {
+                pushBack(c);
+                break;
+            }
+            sb.append((char) c);
+        }
+        if (sb.length() == 0) {
+            throw syntaxError("a value");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Read a string, the opening quote being already read.
+     */
+    private String readString() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        while (true) {
+            int c = next();
+            switch (c) {
+            case EOF:
+                throw syntaxError("end of string");
+            case '"':
+                return sb.toString();
+            case '\\':
+                sb.append(readEscaped());
+                break;
+            default:
+                sb.append((char) c);
+            }
+        }
+    }
+
+    private void skipString() throws IOException {
+        while (true) {
+            int c = next();
+            if (c == EOF) {
+                throw syntaxError("end of string");
+            } else if (c == '"') {
+                return;
+            } else if (c == '\\') {
+                readEscaped();
+            }
+        }
+    }
+
+    private char readEscaped() throws IOException {
+        int c = next();
+        switch (c) {
+        case 'b':
+            return '\b';
+        case 'f':
+            return '\f';
+        case 'n':
+            return '\n';
+        case 'r':
+            return '\r';
+        case 't':
+            return '\t';
+        case 'u':
+            int code = 0;
+            for (int i = 0; i < 4; i++) {
+                int digit = Character.digit(next(), 16);
+                if (digit < 0) {
+                    throw syntaxError("unicode escape");
+                }
+                code = (code << 4) + digit;
+            }
+            return (char) code;
+        case EOF:
+            throw syntaxError("escaped character");
+        default:
+            // \" \\ \/ and anything else stands for itself
+            return (char) c;
+        }
+    }
+
+    private void expect(char expected) throws IOException {
+        int c = nextNonWhitespace();
+        if (c != expected) {
+            throw syntaxError("'" + expected + "'");
+        }
+    }
+
+    private int nextNonWhitespace() throws IOException {
+        int c;
+        do {
+            c = next();
+        } while (c != EOF && Character.isWhitespace(c));
+        return c;
+    }
+
+    private void pushBack(int c) {
+        pushedBack = c;
+    }
+
+    private int next() throws IOException {
+        if (pushedBack != -2) {
+            int c = pushedBack;
+            pushedBack = -2;
+            return c;
+        }
+        if (pos == limit) {
+            limit = in.read(buffer, 0, buffer.length);
+            pos = 0;
+            if (limit <= 0) {
+                limit = 0;
+                return EOF;
+            }
+        }
+        return buffer[pos++];
+    }
+
+    private IOException syntaxError(String expected) {
+        return new IOException("Invalid ICN response, expecting " + expected);
+    }
+
+    /**
+     * Stream failing as soon as more than the allowed number of bytes is read.
+     */
+    private static final class LimitedInputStream extends FilterInputStream {
+        private final long maxBytes;
+        private long count;
+
+        LimitedInputStream(InputStream in, long maxBytes) {
+            super(in);
+            this.maxBytes = maxBytes;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                count(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count(n);
+            }
+            return n;
+        }
+
+        void drain() throws IOException {
+            byte[] b = new byte[4096];
+            while (read(b, 0, b.length) != -1) {
+                // discard
+            }
+        }
+
+        private void count(int n) throws IOException {
+            count += n;
+            if (count > maxBytes) {
+                throw new IOException("ICN response is bigger than " + maxBytes + " bytes");
+            }
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package jenkins.plugins.icn;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Append-only trace of the calls made to ICN, to replay the latencies and
+ * responses of a real server offline. Each call is one line of JSON, written
+ * once the response is read:
+ * <pre>{"t":1485734400000,"url":"http://icn:9080/navigator/","method":"POST",
+ * "path":"jaxrs/admin/loadPlugin","file":"/opt/plugins/sample.jar","attempt":1,"status":200,
+ * "ms":1843,"req":87,"rsp":2310,"fields":{"id":"Sample",...},"messages":[],"errors":[]}</pre>
+ * <code>t</code> is when the call started, <code>ms</code> how long it took until
+ * the response was read, <code>req</code> and <code>rsp</code> the sizes of the
+ * request and response bodies. The status is -1 when there was no response.
+ * Each retry of a call is a line of its own, with the same url, method, path and
+ * file as the attempt before and the next <code>attempt</code> number.
+ * <p>
+ * Only the fields the plug-in reads from the responses are written, with the
+ * security token replaced. Form parameters, cookies and headers never are, so
+ * user names and passwords don't end up in the trace.
+ * <p>
+ * On an agent the lines are kept in memory instead, to be sent back to the
+ * controller with the outcome of the deployment and appended to its trace.
+ */
+final class IcnTrace implements Closeable {
+
+    private static final Logger LOGGER = Logger.getLogger(IcnTrace.class.getName());
+
+    /**
+     * The value written instead of the secret fields of the responses
+     */
+    static final String REDACTED = "*";
+    /**
+     * Fields of the responses which are never written
+     */
+    private static final Set<String> SECRET_FIELDS = Collections.singleton("security_token");
+
+    private final File file;
+    private final Writer writer;
+    /** Lines not sent yet, <code>null</code> if they are written to a file */
+    private List<String> lines;
+    private boolean failed;
+
+    /**
+     * @param file the trace file, created if needed and appended to otherwise
+     * @throws IOException if the file can't be opened
+     */
+    IcnTrace(File file) throws IOException {
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Can't create " + dir);
+        }
+        this.file = file;
+        this.writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8"));
+    }
+
+    /**
+     * A trace kept in memory until its lines are taken with {@link #drain()}.
+     */
+    IcnTrace() {
+        this.file = null;
+        this.writer = null;
+        this.lines = new ArrayList<String>();
+    }
+
+    /**
+     * @return the trace file, <code>null</code> if the trace is kept in memory
+     */
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * Write a call to the trace. Failures are logged once and never fail the call.
+     * @param start when the call started, in milliseconds since the epoch
+     * @param url the ICN url
+     * @param method the HTTP method
+     * @param path the path called, relative to the ICN url
+     * @param pluginFile the plug-in location sent to ICN, <code>null</code> if there was none
+     * @param attempt the attempt of the call, 1 for the first one and more for its retries
+     * @param status the HTTP status, {@link PhaseTiming#NO_RESPONSE} if there was none
+     * @param requestSize the size of the request body in bytes
+     * @param responseSize the number of bytes read from the response
+     * @param body what was read from the response, <code>null</code> if it was not
+     */
+    void record(long start, String url, String method, String path, String pluginFile, int attempt, int status,
+            long requestSize, long responseSize, IcnResponse body) {
+        long duration = System.currentTimeMillis() - start;
+        String line;
+        try {
+            JSONObject json = new JSONObject();
+            json.put("t", start);
+            json.put("url", url);
+            json.put("method", method);
+            json.put("path", path);
+            if (pluginFile != null) {
+                json.put("file", pluginFile);
+            }
+            json.put("attempt", attempt);
+            json.put("status", status);
+            json.put("ms", duration);
+            json.put("req", requestSize);
+            json.put("rsp", responseSize);
+            if (body != null) {
+                JSONObject fields = new JSONObject();
+                for (Map.Entry<String, String> field : body.getFields().entrySet()) {
+                    fields.put(field.getKey(), SECRET_FIELDS.contains(field.getKey()) ? REDACTED : field.getValue());
+                }
+                json.put("fields", fields);
+                if (body.hasMessages()) {
+                    json.put("messages", new JSONArray(body.getMessages()));
+                }
+                json.put("errors", new JSONArray(body.getErrors()));
+            }
+            line = json.toString();
+        } catch (JSONException e) {
+            line = null;
+        }
+        if (line != null) {
+            write(Collections.singletonList(line));
+        }
+    }
+
+    /**
+     * Write lines traced somewhere else, as on an agent.
+     * @param traced the lines, as returned by {@link #drain()}
+     */
+    synchronized void write(List<String> traced) {
+        if (lines != null) {
+            lines.addAll(traced);
+            return;
+        }
+        for (String line : traced) {
+            try {
+                writer.write(line);
+                writer.write('\n');
+                // Whole lines only, so a trace is usable even if Jenkins stops abruptly
+                writer.flush();
+            } catch (IOException e) {
+                if (!failed) {
+                    failed = true;
+                    LOGGER.log(Level.WARNING, "Failed to write the ICN trace " + file, e);
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return the lines kept in memory since the last call, an empty list for a trace file
+     */
+    synchronized List<String> drain() {
+        if (lines == null || lines.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<String> drained = lines;
+        lines = new ArrayList<String>();
+        return drained;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (writer != null) {
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package jenkins.plugins.icn;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Check that a reload did not make ICN slower: the latency of some ICN paths is
+ * sampled with the session of the build before and after the reload, and a
+ * percentile of the samples may only grow by a given share. Plug-ins failing the
+ * gate are rolled back to the jar deployed before them.
+ */
+final class LatencyGate implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Milliseconds a percentile may always grow by, so a few milliseconds of noise
+     * on fast paths are not taken for a regression
+     */
+    static final long MIN_REGRESSION = 50;
+
+    private final List<String> paths;
+    private final int samples;
+    private final int percentile;
+    private final int threshold;
+
+    /**
+     * @param paths the paths to sample, relative to the ICN url
+     * @param samples the number of requests per path and sampling
+     * @param percentile the percentile of the samples compared, from 1 to 100
+     * @param threshold how much slower, in percent, the paths may get after the reload
+     */
+    LatencyGate(List<String> paths, int samples, int percentile, int threshold) {
+        this.paths = paths;
+        this.samples = Math.max(1, samples);
+        this.percentile = Math.min(100, Math.max(1, percentile));
+        this.threshold = Math.max(0, threshold);
+    }
+
+    List<String> getPaths() {
+        return paths;
+    }
+
+    int getSamples() {
+        return samples;
+    }
+
+    int getPercentile() {
+        return percentile;
+    }
+
+    int getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * @param latencies the latencies of the sampled requests in milliseconds, sorted in place
+     * @return the percentile of the latencies, -1 if there are none
+     */
+    long percentileOf(long[] latencies) {
+        if (latencies.length == 0) {
+            return -1;
+        }
+        Arrays.sort(latencies);
+        return latencies[Math.max(0, (int) Math.ceil(latencies.length * percentile / 100.0) - 1)];
+    }
+
+    /**
+     * @param before the percentile before the reload in milliseconds
+     * @param after the percentile after the reload in milliseconds
+     * @return <code>true</code> if the reload made ICN slower than allowed
+     */
+    boolean isRegression(long before, long after) {
+        return after - before > Math.max(MIN_REGRESSION, before * threshold / 100);
+    }
+}
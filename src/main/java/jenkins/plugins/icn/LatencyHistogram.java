@@ -0,0 +1,76 @@
+package jenkins.plugins.icn;
+
+import net.sf.json.JSONObject;
+
+/**
+ * Histogram of call durations with fixed buckets, cheap to update and small
+ * enough to keep one per ICN host and phase for the life of Jenkins.
+ */
+final class LatencyHistogram {
+
+    /**
+     * Upper bounds of the buckets in milliseconds, a last bucket holds everything slower
+     */
+    static final long[] BOUNDS = { 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000, 120000, 300000 };
+
+    private final long[] counts = new long[BOUNDS.length + 1];
+    private long count;
+    private long sum;
+    private long min = Long.MAX_VALUE;
+    private long max;
+
+    synchronized void add(long millis) {
+        int i = 0;
+        while (i < BOUNDS.length && millis > BOUNDS[i]) {
+            i++;
+        }
+        counts[i]++;
+        count++;
+        sum += millis;
+        min = Math.min(min, millis);
+        max = Math.max(max, millis);
+    }
+
+    synchronized long getCount() {
+        return count;
+    }
+
+    /**
+     * @param percentile the percentile, between 0 and 100
+     * @return the upper bound of the bucket holding the percentile, or the
+     *         maximum if it is lower. 0 if nothing was recorded
+     */
+    synchronized long getPercentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(count * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BOUNDS.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(BOUNDS[i], max);
+            }
+        }
+        return max;
+    }
+
+    synchronized JSONObject toJSON() {
+        JSONObject json = new JSONObject();
+        json.put("count", count);
+        json.put("sum", sum);
+        json.put("min", count == 0 ? 0 : min);
+        json.put("max", max);
+        json.put("mean", count == 0 ? 0 : sum / count);
+        json.put("p50", getPercentile(50));
+        json.put("p95", getPercentile(95));
+        json.put("p99", getPercentile(99));
+        JSONObject buckets = new JSONObject();
+        for (int i = 0; i < BOUNDS.length; i++) {
+            buckets.put("le" + BOUNDS[i], counts[i]);
+        }
+        buckets.put("inf", counts[BOUNDS.length]);
+        json.put("buckets", buckets);
+        return json;
+    }
+}
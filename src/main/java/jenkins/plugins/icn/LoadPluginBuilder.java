@@ -1,30 +1,41 @@
 package jenkins.plugins.icn;
 import hudson.EnvVars;
 import hudson.Extension;
+import hudson.FilePath;
 import hudson.Launcher;
+import hudson.init.Terminator;
 import hudson.model.BuildListener;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.remoting.Channel;
+import hudson.remoting.VirtualChannel;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.Builder;
 import hudson.util.FormValidation;
+import hudson.util.ListBoxModel;
+import jenkins.model.Jenkins;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.PrintStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import javax.servlet.ServletException;
 
-import org.apache.commons.httpclient.HttpClient;
-import org.apache.commons.httpclient.NameValuePair;
-import org.apache.commons.httpclient.cookie.CookiePolicy;
-import org.apache.commons.httpclient.methods.PostMethod;
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
+import net.sf.json.JSONObject;
+
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerRequest;
 
 /**
  * Implementation of a {@link Builder} step to refresh an ICN plug-in.
@@ -37,21 +48,34 @@ import org.kohsuke.stapler.QueryParameter;
 public class LoadPluginBuilder extends Builder {
 
     /**
-     * ICN desktop to use for the admin, any desktop can be used but hard coded
-     * admin will always work and make configuration easier for users than asking them for one 
+     * Default number of loadPlugin calls running at the same time when several
+     * plug-ins are reloaded, one at a time as ICN serializes them anyway
+     */
+    public static final int DEFAULT_CONCURRENCY = 1;
+    /**
+     * Default number of ICN nodes processed at the same time when several urls are given
      */
-    private static final String DESKTOP = "admin";
-    private static final String SAVE_URL = "jaxrs/admin/configuration";
-    private static final String LOAD_URL = "jaxrs/admin/loadPlugin";
-    private static final String LOGON_URL = "jaxrs/logon";
+    public static final int DEFAULT_NODE_CONCURRENCY = 4;
+    /**
+     * Default share, in percent, ICN may get slower by after a reload when the latency gate is on
+     */
+    public static final int DEFAULT_GATE_THRESHOLD = 50;
     private String url;
     private String file;
     private String username;
     private String password;
-    private transient String eUrl;
-    private transient String eFile;
-    private transient String eUsername;
-    private transient String ePassword;
+    private int concurrency = DEFAULT_CONCURRENCY;
+    private int nodeConcurrency = DEFAULT_NODE_CONCURRENCY;
+    private SuccessPolicy successPolicy = SuccessPolicy.ALL;
+    private String uploadUrl;
+    private String serverDirectory;
+    private boolean forceReload;
+    private boolean runOnAgent;
+    private boolean warmUp;
+    private String warmUpPaths;
+    private boolean latencyGate;
+    private String gatePaths;
+    private int gateThreshold = DEFAULT_GATE_THRESHOLD;
     
     // Fields in config.jelly must match the parameter names in the "DataBoundConstructor"
     @DataBoundConstructor
@@ -78,235 +102,307 @@ public class LoadPluginBuilder extends Builder {
         return file;
     }
     
+    public int getConcurrency() {
+        // Jobs saved before the field existed load it with 0, XStream doesn't run the initializer
+        return concurrency < 1 ? DEFAULT_CONCURRENCY : concurrency;
+    }
+    
+    @DataBoundSetter
+    public void setConcurrency(int concurrency) {
+        this.concurrency = concurrency;
+    }
+    
+    public int getNodeConcurrency() {
+        return nodeConcurrency < 1 ? DEFAULT_NODE_CONCURRENCY : nodeConcurrency;
+    }
+    
+    @DataBoundSetter
+    public void setNodeConcurrency(int nodeConcurrency) {
+        this.nodeConcurrency = nodeConcurrency;
+    }
+    
+    public SuccessPolicy getSuccessPolicy() {
+        return successPolicy == null ? SuccessPolicy.ALL : successPolicy;
+    }
+    
+    @DataBoundSetter
+    public void setSuccessPolicy(SuccessPolicy successPolicy) {
+        this.successPolicy = successPolicy;
+    }
+    
+    public String getUploadUrl() {
+        return uploadUrl;
+    }
+    
+    @DataBoundSetter
+    public void setUploadUrl(String uploadUrl) {
+        this.uploadUrl = uploadUrl;
+    }
+    
+    public String getServerDirectory() {
+        return serverDirectory;
+    }
+    
+    @DataBoundSetter
+    public void setServerDirectory(String serverDirectory) {
+        this.serverDirectory = serverDirectory;
+    }
+    
+    public boolean isForceReload() {
+        return forceReload;
+    }
+    
+    @DataBoundSetter
+    public void setForceReload(boolean forceReload) {
+        this.forceReload = forceReload;
+    }
+    
+    public boolean isRunOnAgent() {
+        return runOnAgent;
+    }
+    
+    @DataBoundSetter
+    public void setRunOnAgent(boolean runOnAgent) {
+        this.runOnAgent = runOnAgent;
+    }
+    
+    public boolean isWarmUp() {
+        return warmUp;
+    }
+    
+    @DataBoundSetter
+    public void setWarmUp(boolean warmUp) {
+        this.warmUp = warmUp;
+    }
+    
+    public String getWarmUpPaths() {
+        return warmUpPaths;
+    }
+    
+    @DataBoundSetter
+    public void setWarmUpPaths(String warmUpPaths) {
+        this.warmUpPaths = warmUpPaths;
+    }
+    
+    public boolean isLatencyGate() {
+        return latencyGate;
+    }
+    
+    @DataBoundSetter
+    public void setLatencyGate(boolean latencyGate) {
+        this.latencyGate = latencyGate;
+    }
+    
+    public String getGatePaths() {
+        return gatePaths;
+    }
+    
+    @DataBoundSetter
+    public void setGatePaths(String gatePaths) {
+        this.gatePaths = gatePaths;
+    }
+    
+    public int getGateThreshold() {
+        return gateThreshold;
+    }
+    
+    @DataBoundSetter
+    public void setGateThreshold(int gateThreshold) {
+        this.gateThreshold = gateThreshold;
+    }
+    
 
     @Override
     public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws IOException, InterruptedException {
-
-        boolean result = false;
-        
-        HttpClient httpclient = new HttpClient();
-        httpclient.getParams().setCookiePolicy(CookiePolicy.BROWSER_COMPATIBILITY);
+        return reload(build, build.getEnvironment(listener), build.getWorkspace(), launcher.getChannel(), listener);
+    }
+    
+    /**
+     * Reload the plug-ins as configured in this step, used by the freestyle build step
+     * and by the {@link IcnReloadStep} Pipeline step. Timings of the calls to ICN are
+     * added to the build and to the {@link IcnMetrics}.
+     * <p>
+     * Concurrent builds of a job run this on the same instance, what a build
+     * expands or computes stays in its own {@link ReloadContext}.
+     * @param run the build
+     * @param env the variables to expand in the configuration
+     * @param workspace the workspace of the build, <code>null</code> if there is none
+     * @param channel the channel of the node running the build, <code>null</code> for the controller
+     * @param listener the listener of the build
+     * @return <code>true</code> if the reload succeeded
+     * @throws InterruptedException if the build is interrupted
+     */
+    boolean reload(Run<?, ?> run, EnvVars env, FilePath workspace, VirtualChannel channel, TaskListener listener)
+            throws InterruptedException {
+        return reload(run, env, workspace, channel, listener, getDescriptor().getTimeouts());
+    }
+    
+    /**
+     * Reload the plug-ins as configured in this step, within the given timeouts.
+     * @param timeouts the timeouts of the calls, already started if the deadline of
+     *                 the deployment started before, as when the reload waited for a thread
+     * @see #reload(Run, EnvVars, FilePath, VirtualChannel, TaskListener)
+     */
+    boolean reload(Run<?, ?> run, EnvVars env, FilePath workspace, VirtualChannel channel, TaskListener listener,
+            Timeouts timeouts) throws InterruptedException {
         PrintStream log = listener.getLogger();
         
         // Variable substitution and safety checks
-        EnvVars env = build.getEnvironment(listener);
-        eFile = env.expand(file);
-        eUsername = env.expand(username);
-        ePassword = env.expand(password);
-        eUrl = env.expand(url);
+        String eFile = env.expand(file);
+        String eUsername = env.expand(username);
+        String ePassword = env.expand(password);
+        String eUrl = env.expand(url);
         
         // Apply safety checks on variables
-        if (!safetyChecks(log)) {
+        if (checkEmpty(eFile, "file", log)
+                || checkEmpty(eUsername, "udername", log)
+                || checkEmpty(ePassword, "password", log)
+                || checkEmpty(eUrl, "url", log)) {
+            return false;
+        }
+        List<String> files = splitList(eFile);
+        if (files.isEmpty()) {
+            log.println("file can't be empty.");
+            return false;
+        }
+        List<String> urls = new ArrayList<String>();
+        for (String u : splitList(eUrl)) {
+            urls.add(withSlash(u));
+        }
+        if (urls.isEmpty()) {
+            log.println("url can't be empty.");
             return false;
         }
         
-        // Logon, reload and save configuration
-        String security_token = logon(httpclient, log);
-        if (security_token != null) {
-            JSONObject loadResult = reload(httpclient, log, security_token);
-            if (loadResult != null) {
-                try {
-                    result = save(httpclient, log, loadResult, security_token);
-                } catch (Exception e) {
-                    log.println("ERROR: Exception while reloading the plugin: " + e.getMessage());
-                    e.printStackTrace(log);
+        // Upload mode, files are jars of the workspace to send first
+        Map<String, String> digests;
+        String eUploadUrl = uploadUrl == null ? "" : env.expand(uploadUrl).trim();
+        DescriptorImpl descriptor = getDescriptor();
+        PluginInspector inspector = descriptor.isInspectPlugins() ? descriptor.getPluginInspector() : null;
+        if (!eUploadUrl.isEmpty()) {
+            if (workspace == null) {
+                log.println("ERROR: The build has no workspace to upload plug-ins from.");
+                return false;
+            }
+            String eServerDirectory = serverDirectory == null ? "" : env.expand(serverDirectory).trim();
+            PluginUploader uploader = new PluginUploader(withSlash(eUploadUrl), eServerDirectory.isEmpty() ? "" : withSlash(eServerDirectory),
+                    descriptor.getHttpClient(), new AgentDeployment.Settings(descriptor),
+                    forceReload ? null : descriptor.getDeployRecords(), urls, inspector);
+            files = uploader.upload(workspace, files, log);
+            if (files == null) {
+                return false;
+            }
+            digests = uploader.getDigests();
+        } else {
+            // Jars readable from the node are digested to skip unchanged ones, and checked before ICN is called
+            digests = digests(files, channel);
+            for (String f : files) {
+                if (inspector != null && digests.containsKey(f) && !inspector.inspect(new FilePath(channel, f), digests.get(f), log)) {
+                    return false;
                 }
             }
         }
-        return result;
-    }
-    
-    private boolean safetyChecks(PrintStream log) {
-        if (checkEmpty(eFile, "file", log)) return false;
-        if (checkEmpty(eUsername, "udername", log)) return false;
-        if (checkEmpty(ePassword, "password", log)) return false;
-        if (checkEmpty(eUrl, "url", log)) return false;
-        if (!eUrl.endsWith("/")) {
-        	eUrl += "/";
-        }
-        return true;
-    }
-
-    private boolean checkEmpty(String s, String name, PrintStream log) {
-        if (s == null || s.isEmpty()) {
-            log.println(name + " can't be empty.");
-            return true;
+        
+        // Forced reloads are recorded too, so a later build doesn't take the jar they replaced for the deployed one
+        DeployRecords records = descriptor.getDeployRecords();
+        WarmUp eWarmUp = warmUp ? new WarmUp(splitList(warmUpPaths == null ? "" : env.expand(warmUpPaths)),
+                descriptor.getWarmUpConcurrency()) : null;
+        List<String> eGatePaths = latencyGate ? splitList(gatePaths == null ? "" : env.expand(gatePaths))
+                : Collections.<String>emptyList();
+        LatencyGate gate = eGatePaths.isEmpty() ? null : new LatencyGate(eGatePaths, descriptor.getGateSamples(),
+                descriptor.getGatePercentile(), gateThreshold);
+        ReloadContext context = new ReloadContext(urls, eUsername, ePassword, files, digests, forceReload, getConcurrency(),
+                getNodeConcurrency(), getSuccessPolicy(), descriptor.isSkipCurrentSave(), eWarmUp, gate,
+                timeouts);
+        boolean success;
+        List<PhaseTiming> timings;
+        if (runOnAgent && channel instanceof Channel) {
+            // ICN is called from the agent, only the outcome comes back
+            log.println("Calling ICN from the agent of the build.");
+            AgentDeployment deployment = new AgentDeployment(context, records.snapshot(urls),
+                    descriptor, listener);
+            AgentDeployment.Outcome outcome;
+            try {
+                outcome = channel.call(deployment);
+            } catch (IOException e) {
+                log.println("ERROR: Can't reload plug-ins from the agent: " + e.getMessage());
+                e.printStackTrace(log);
+                return false;
+            }
+            if (outcome.getRecords() != null) {
+                records.merge(outcome.getRecords());
+            }
+            IcnTrace trace = descriptor.getHttpClient().getTrace();
+            if (trace != null && outcome.getTrace() != null) {
+                trace.write(outcome.getTrace());
+            }
+            success = outcome.isSuccess();
+            timings = outcome.getTimings();
         } else {
-            return false;
+            IcnDeployment deployment = new IcnDeployment(context, descriptor.getSessionCache(),
+                    descriptor.getHttpClient(), descriptor.getHostGuards(), descriptor.getReloadFlights(), records);
+            success = deployment.run(log);
+            timings = deployment.getTimings();
+        }
+        
+        IcnReloadAction.addTo(run, timings);
+        IcnMetrics metrics = IcnMetrics.get();
+        if (metrics != null) {
+            metrics.record(timings);
         }
+        return success;
     }
     
     /**
-     * Log on against ICN, this will store the needed cookies and return the 
-     * security token header. Both are needed for a successful authentication.
-     * @param httpClient the {@link HttpClient} connection to use, this will have
-     *                   to be used for all future calls since it gets the
-     *                   authentication cookies.
-     * @param log the logger as {@link PrintStream}
-     * @return the security token, <code>null</code> if anything went wrong.
-     *         Exception is already logged if <code>null</code> is returned.
+     * Split a multi-valued parameter (plug-in locations or ICN urls), values
+     * can be separated by new lines or commas.
+     * @param values the expanded parameter
+     * @return the list of values, empty if the parameter only has separators
      */
-    private String logon(HttpClient httpClient, PrintStream log) {
-        log.println("Connecting to ICN as " + eUsername + "...");
-        
-        String res = null;
-        
-        PostMethod httpPost = new PostMethod(eUrl + LOGON_URL);
-        httpPost.addParameter(new NameValuePair("userid", eUsername));
-        httpPost.addParameter(new NameValuePair("password", ePassword));
-        httpPost.addParameter(new NameValuePair("desktop", DESKTOP));
-        String json = null;
-        try {
-            httpClient.executeMethod(httpPost);
-            System.out.println(httpPost.getStatusLine());
-            json = new BufferedReader(new InputStreamReader(httpPost.getResponseBodyAsStream())).readLine();
-            // Unsecure the json if prefix is activated in servlet
-            if (json.startsWith("{}&&")) {
-                json = json.substring(4);
-            }
-            JSONObject jsonObj = new JSONObject(json);
-            
-            if (!jsonObj.has("security_token")) {
-                log.println("ERROR: Exception while logging into ICN. Response was " + json);
-            } else {
-                res = (String) jsonObj.get("security_token");
-                if (res != null && !"".equals(res)) {
-                    log.println("OK");
-                } else {
-                    log.println("KO");
-                }
+    static List<String> splitList(String values) {
+        List<String> res = new ArrayList<String>();
+        for (String f : values.split("[\\r\\n,]+")) {
+            f = f.trim();
+            if (!f.isEmpty()) {
+                res.add(f);
             }
-            
-        } catch (Exception e) {
-            log.println("KO");
-            e.printStackTrace(log.append(e.getMessage()));
-            log.println("Login response was: " + json);
-        } finally {
-            httpPost.releaseConnection();
         }
         return res;
     }
     
-    
     /**
-     * Reload the plugin from the given path.
-     * @param httpClient the {@link HttpClient} to use, it needs to have the authentication
-     *                   cookies, brought by a call to the logon method.
-     * @param log The {@link PrintStream} to print information to
-     * @param security_token the security token to use as header. This is returned by the
-     *                       logon method.
-     * @return the result of the call, will be needed to save the configuration
+     * Digest the plug-in jars which can be read from the node running the build,
+     * through a share with the ICN server for instance. Others are always reloaded.
+     * @param files the plug-in locations on the ICN server
+     * @param channel the channel of the node running the build, <code>null</code> for the controller
+     * @return the digests by location
      */
-    private JSONObject reload(HttpClient httpClient, PrintStream log, String security_token) {
-        log.println("Reloading plugin " + eFile + "...");
-        
-        JSONObject res = null;
-        
-        PostMethod httpPost = new PostMethod(eUrl + LOAD_URL);
-        httpPost.addParameter(new NameValuePair("fileName", eFile));
-        httpPost.addParameter(new NameValuePair("desktop", DESKTOP));
-
-        httpPost.addRequestHeader("security_token", security_token);
-        
-        String json = null;
-        try {
-            httpClient.executeMethod(httpPost);
-            if (httpPost.getStatusCode()!= 200) {
-                log.println("KO");
-                log.println(LOAD_URL + " returned " + httpPost.getStatusLine());
-            } else {
-                json = new BufferedReader(new InputStreamReader(httpPost.getResponseBodyAsStream())).readLine();
-                // Unsecure the json if prefix is activated in servlet
-                if (json.startsWith("{}&&")) {
-                    json = json.substring(4);
-                }
-                res = new JSONObject(json);
-                
-                if (!res.has("name") || !res.has("id") || !res.has("version") || !res.has("configClass")) {
-                    log.println("KO");
-                    log.println("Response does not have correct attributes: " + json);
-                    log.println("It should contain the following attributes: name, id, version, configClass");
-                    res = null;
-                } else {
-                    log.println("OK");
-                    log.println("Plug-in " + res.getString("name") + "(id: " + res.getString("id") + ")" + " successfully reloaded.");
+    private static Map<String, String> digests(List<String> files, VirtualChannel channel) throws InterruptedException {
+        Map<String, String> digests = new HashMap<String, String>();
+        for (String file : files) {
+            FilePath jar = new FilePath(channel, file);
+            try {
+                if (jar.exists() && !jar.isDirectory()) {
+                    digests.put(file, jar.digest());
                 }
-                
-                
+            } catch (IOException e) {
+                // Not readable from here, the plug-in is reloaded
             }
-        } catch (Exception e) {
-            log.println("KO");
-            e.printStackTrace(log.append(e.getMessage()));
-            log.println("LoadPlugin response was: " + json);
-        } finally {
-            httpPost.releaseConnection();
         }
-        return res;
+        return digests;
     }
     
+    private static String withSlash(String s) {
+        return s.endsWith("/") ? s : s + "/";
+    }
     
-    /**
-     * Save the configuration pre-created by the load plugin call.
-     * 
-     * @param httpClient the {@link HttpClient} to use, it needs to have the authentication
-     *                   cookies, brought by a call to the logon method.
-     * @param log the {@link PrintStream} to use to print information
-     * @param loadResult the resulting {@link JSONObject} from the save operation containing plugin information
-     * @param security_token the security token to use as header. This is returned by the
-     *                       logon method.
-     * @return <code>true</code> if the save is successful
-     * @throws JSONException
-     */
-    private boolean save(HttpClient httpClient, PrintStream log, JSONObject loadResult, String security_token) throws JSONException {
-        log.println("Saving configuration...");
-        
-        boolean res = false;
-        
-        PostMethod httpPost = new PostMethod(eUrl + SAVE_URL);
-        httpPost.addParameter(new NameValuePair("action", "update"));
-        httpPost.addParameter(new NameValuePair("id", loadResult.getString("id")));
-        httpPost.addParameter(new NameValuePair("configuration", "PluginConfig"));
-        httpPost.addParameter(new NameValuePair("desktop", DESKTOP));
-        JSONObject json_post = new JSONObject();
-        json_post.put("enabled", true);
-        json_post.put("filename", eFile);
-        json_post.put("version", loadResult.getString("version"));
-        json_post.put("dependencies", new JSONArray());
-        json_post.put("name", loadResult.getString("name"));
-        json_post.put("id", loadResult.getString("id"));
-        json_post.put("configClass", loadResult.getString("configClass"));
-        httpPost.addParameter(new NameValuePair("json_post", json_post.toString()));
-        
-        httpPost.addRequestHeader("security_token", security_token);
-        String json = null;
-        try {
-            httpClient.executeMethod(httpPost);
-            if (httpPost.getStatusCode() != 200) {
-                log.println("KO");
-                log.println(SAVE_URL + " returned " + httpPost.getStatusLine());
-            } else {
-                json = new BufferedReader(new InputStreamReader(httpPost.getResponseBodyAsStream())).readLine();
-                // Unsecure the json if prefix is activated in servlet
-                if (json.startsWith("{}&&")) {
-                    json = json.substring(4);
-                }
-                JSONObject jsonObj = new JSONObject(json);
-                log.println("JSON conversion OK");
-                JSONArray messages = jsonObj.getJSONArray("messages");
-                log.println("Returned message is:");
-                for (int i = 0; i < messages.length(); i++) {
-                    log.println(messages.getJSONObject(i).getString("text"));
-                }
-                res = true;
-            }
-        } catch (Exception e) {
-            log.println("KO");
-            e.printStackTrace(log.append(e.getMessage()));
-            log.println("configuration response was: " + json);
-        } finally {
-            httpPost.releaseConnection();
+    private static boolean checkEmpty(String s, String name, PrintStream log) {
+        if (s == null || s.isEmpty()) {
+            log.println(name + " can't be empty.");
+            return true;
+        } else {
+            return false;
         }
-        return res;
     }
     
     // Overridden for better type safety.
@@ -327,12 +423,493 @@ public class LoadPluginBuilder extends Builder {
      */
     @Extension // This indicates to Jenkins that this is an implementation of an extension point.
     public static final class DescriptorImpl extends BuildStepDescriptor<Builder> {
+        private static final Logger LOGGER = Logger.getLogger(LoadPluginBuilder.class.getName());
+
+        public static final int DEFAULT_SESSION_TTL = 15;
+        public static final int DEFAULT_MAX_SESSIONS = 50;
+        public static final int DEFAULT_MAX_CONNECTIONS = 50;
+        public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 8;
+        public static final int DEFAULT_CONNECT_TIMEOUT = 10;
+        public static final int DEFAULT_SOCKET_TIMEOUT = 300;
+        public static final int DEFAULT_MAX_RESPONSE_SIZE = 1024;
+        public static final int DEFAULT_MAX_RELOADS_PER_HOST = 2;
+        public static final int DEFAULT_MAX_RETRIES = 2;
+        public static final int DEFAULT_RETRY_DELAY = 1;
+        public static final int DEFAULT_MAX_RETRY_DELAY = 30;
+        public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+        public static final int DEFAULT_UNAVAILABLE_TIME = 60;
+        public static final int DEFAULT_WARM_UP_CONCURRENCY = 4;
+        public static final int DEFAULT_LOGON_TIMEOUT = 60;
+        public static final int DEFAULT_LOAD_TIMEOUT = 900;
+        public static final int DEFAULT_SAVE_TIMEOUT = 120;
+        public static final int DEFAULT_DEPLOY_TIMEOUT = 60;
+        public static final int DEFAULT_GATE_SAMPLES = 10;
+        public static final int DEFAULT_GATE_PERCENTILE = 90;
+        
+        /**
+         * Minutes an ICN session is reused by other builds after the logon, 0 to always log on
+         */
+        private int sessionTtl = DEFAULT_SESSION_TTL;
+        /**
+         * Maximum number of ICN sessions kept, least recently used ones are dropped first
+         */
+        private int maxSessions = DEFAULT_MAX_SESSIONS;
+        /**
+         * Maximum number of HTTP connections to all ICN servers
+         */
+        private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+        /**
+         * Maximum number of HTTP connections to one ICN server
+         */
+        private int maxConnectionsPerHost = DEFAULT_MAX_CONNECTIONS_PER_HOST;
+        /**
+         * Seconds to wait for a connection to ICN, 0 to wait forever
+         */
+        private int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+        /**
+         * Seconds to wait for data from ICN, 0 to wait forever
+         */
+        private int socketTimeout = DEFAULT_SOCKET_TIMEOUT;
+        /**
+         * Maximum size of an ICN response in kilobytes
+         */
+        private int maxResponseSize = DEFAULT_MAX_RESPONSE_SIZE;
+        /**
+         * Maximum number of loadPlugin calls running at the same time on one ICN host, all builds together
+         */
+        private int maxReloadsPerHost = DEFAULT_MAX_RELOADS_PER_HOST;
+        /**
+         * Number of retries of a call failing with a 5xx or a timeout, 0 to never retry
+         */
+        private int maxRetries = DEFAULT_MAX_RETRIES;
+        /**
+         * Seconds before the first retry, doubled at each retry and randomized
+         */
+        private int retryDelay = DEFAULT_RETRY_DELAY;
+        /**
+         * Maximum seconds between two retries
+         */
+        private int maxRetryDelay = DEFAULT_MAX_RETRY_DELAY;
+        /**
+         * Number of consecutive failed calls after which an ICN host is considered unavailable, 0 to never
+         */
+        private int failureThreshold = DEFAULT_FAILURE_THRESHOLD;
+        /**
+         * Seconds calls to an unavailable ICN host fail without calling it
+         */
+        private int unavailableTime = DEFAULT_UNAVAILABLE_TIME;
+        /**
+         * Don't save a plug-in configuration identical to the one saved by the last deployment
+         */
+        private boolean skipCurrentSave = true;
+        /**
+         * Maximum number of warm-up requests running at the same time on one ICN node
+         */
+        private int warmUpConcurrency = DEFAULT_WARM_UP_CONCURRENCY;
+        /**
+         * Check plug-in jars readable from the build before calling ICN
+         */
+        private boolean inspectPlugins = true;
+        /**
+         * Maximum seconds of a logon, whatever happens on the connection, 0 for no limit
+         */
+        private int logonTimeout = DEFAULT_LOGON_TIMEOUT;
+        /**
+         * Maximum seconds of a loadPlugin call, 0 for no limit
+         */
+        private int loadTimeout = DEFAULT_LOAD_TIMEOUT;
+        /**
+         * Maximum seconds of a configuration save or a warm-up request, 0 for no limit
+         */
+        private int saveTimeout = DEFAULT_SAVE_TIMEOUT;
+        /**
+         * Maximum minutes of the calls to ICN of a build step, 0 for no limit
+         */
+        private int deployTimeout = DEFAULT_DEPLOY_TIMEOUT;
+        /**
+         * Requests per path each time the latency gate samples ICN
+         */
+        private int gateSamples = DEFAULT_GATE_SAMPLES;
+        /**
+         * Percentile of the latency samples compared by the latency gate
+         */
+        private int gatePercentile = DEFAULT_GATE_PERCENTILE;
+        /**
+         * File the calls to ICN are traced to, relative to the Jenkins home, empty to not trace them
+         */
+        private String traceFile;
+        private transient SessionCache sessionCache;
+        private transient IcnHttpClient httpClient;
+        private transient DeployRecords deployRecords;
+        private transient HostGuards hostGuards;
+        private transient ReloadFlights reloadFlights;
+        private transient PluginInspector pluginInspector;
+        
         /**
          * In order to load the persisted global configuration, you have to 
          * call load() in the constructor.
          */
         public DescriptorImpl() {
             load();
+            sessionCache = new SessionCache(sessionTtl, maxSessions);
+            httpClient = new IcnHttpClient(maxConnections, maxConnectionsPerHost, connectTimeout, socketTimeout, getMaxResponseSize());
+            openTrace();
+            hostGuards = new HostGuards(maxReloadsPerHost, failureThreshold, unavailableTime, maxRetries, retryDelay, maxRetryDelay);
+            deployRecords = new DeployRecords(new File(Jenkins.getInstance().getRootDir(), DeployRecords.class.getName() + ".xml"));
+            reloadFlights = new ReloadFlights();
+            pluginInspector = new PluginInspector();
+        }
+        
+        @Override
+        public boolean configure(StaplerRequest req, JSONObject formData) throws FormException {
+            req.bindJSON(this, formData);
+            sessionCache.configure(sessionTtl, maxSessions);
+            httpClient.configure(maxConnections, maxConnectionsPerHost, connectTimeout, socketTimeout, getMaxResponseSize());
+            hostGuards.configure(maxReloadsPerHost, failureThreshold, unavailableTime, maxRetries, retryDelay, maxRetryDelay);
+            openTrace();
+            save();
+            return super.configure(req, formData);
+        }
+        
+        /**
+         * Trace the calls to ICN to the configured file, or stop tracing them.
+         */
+        private void openTrace() {
+            File file = getTraceFile().isEmpty() ? null : new File(Jenkins.getInstance().getRootDir(), getTraceFile());
+            IcnTrace current = httpClient.getTrace();
+            if (current == null ? file == null : current.getFile().equals(file)) {
+                return;
+            }
+            IcnTrace trace = null;
+            if (file != null) {
+                try {
+                    trace = new IcnTrace(file);
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Failed to open " + file + ", calls to ICN are not traced", e);
+                }
+            }
+            closeTrace(httpClient.setTrace(trace));
+        }
+        
+        private static void closeTrace(IcnTrace trace) {
+            if (trace != null) {
+                try {
+                    trace.close();
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Failed to close " + trace.getFile(), e);
+                }
+            }
+        }
+        
+        /**
+         * Close the pooled connections to ICN when Jenkins stops.
+         */
+        @Terminator
+        public static void shutdown() throws IOException {
+            Jenkins jenkins = Jenkins.getInstance();
+            DescriptorImpl descriptor = jenkins == null ? null : jenkins.getDescriptorByType(DescriptorImpl.class);
+            if (descriptor != null) {
+                descriptor.httpClient.close();
+                closeTrace(descriptor.httpClient.setTrace(null));
+            }
+        }
+        
+        public int getSessionTtl() {
+            return sessionTtl;
+        }
+        
+        public void setSessionTtl(int sessionTtl) {
+            this.sessionTtl = sessionTtl;
+        }
+        
+        public int getMaxSessions() {
+            return maxSessions;
+        }
+        
+        public void setMaxSessions(int maxSessions) {
+            this.maxSessions = maxSessions;
+        }
+        
+        public int getMaxConnections() {
+            return maxConnections;
+        }
+        
+        public void setMaxConnections(int maxConnections) {
+            this.maxConnections = maxConnections;
+        }
+        
+        public int getMaxConnectionsPerHost() {
+            return maxConnectionsPerHost;
+        }
+        
+        public void setMaxConnectionsPerHost(int maxConnectionsPerHost) {
+            this.maxConnectionsPerHost = maxConnectionsPerHost;
+        }
+        
+        public int getConnectTimeout() {
+            return connectTimeout;
+        }
+        
+        public void setConnectTimeout(int connectTimeout) {
+            this.connectTimeout = connectTimeout;
+        }
+        
+        public int getSocketTimeout() {
+            return socketTimeout;
+        }
+        
+        public void setSocketTimeout(int socketTimeout) {
+            this.socketTimeout = socketTimeout;
+        }
+        
+        public int getMaxResponseSize() {
+            // The global configuration is loaded over the initialized fields, a value under 1
+            // only comes from the form. It falls back to the default, as in the other getters doing so
+            return maxResponseSize < 1 ? DEFAULT_MAX_RESPONSE_SIZE : maxResponseSize;
+        }
+        
+        public void setMaxResponseSize(int maxResponseSize) {
+            this.maxResponseSize = maxResponseSize;
+        }
+        
+        public int getMaxReloadsPerHost() {
+            return maxReloadsPerHost;
+        }
+        
+        public void setMaxReloadsPerHost(int maxReloadsPerHost) {
+            this.maxReloadsPerHost = maxReloadsPerHost;
+        }
+        
+        public int getMaxRetries() {
+            return maxRetries;
+        }
+        
+        public void setMaxRetries(int maxRetries) {
+            this.maxRetries = maxRetries;
+        }
+        
+        public int getRetryDelay() {
+            return retryDelay;
+        }
+        
+        public void setRetryDelay(int retryDelay) {
+            this.retryDelay = retryDelay;
+        }
+        
+        public int getMaxRetryDelay() {
+            return maxRetryDelay;
+        }
+        
+        public void setMaxRetryDelay(int maxRetryDelay) {
+            this.maxRetryDelay = maxRetryDelay;
+        }
+        
+        public int getFailureThreshold() {
+            return failureThreshold;
+        }
+        
+        public void setFailureThreshold(int failureThreshold) {
+            this.failureThreshold = failureThreshold;
+        }
+        
+        public int getUnavailableTime() {
+            return unavailableTime;
+        }
+        
+        public void setUnavailableTime(int unavailableTime) {
+            this.unavailableTime = unavailableTime;
+        }
+        
+        public boolean isSkipCurrentSave() {
+            return skipCurrentSave;
+        }
+        
+        public void setSkipCurrentSave(boolean skipCurrentSave) {
+            this.skipCurrentSave = skipCurrentSave;
+        }
+        
+        public boolean isInspectPlugins() {
+            return inspectPlugins;
+        }
+        
+        public void setInspectPlugins(boolean inspectPlugins) {
+            this.inspectPlugins = inspectPlugins;
+        }
+        
+        public int getWarmUpConcurrency() {
+            return warmUpConcurrency < 1 ? DEFAULT_WARM_UP_CONCURRENCY : warmUpConcurrency;
+        }
+        
+        public void setWarmUpConcurrency(int warmUpConcurrency) {
+            this.warmUpConcurrency = warmUpConcurrency;
+        }
+        
+        public int getLogonTimeout() {
+            return logonTimeout;
+        }
+        
+        public void setLogonTimeout(int logonTimeout) {
+            this.logonTimeout = logonTimeout;
+        }
+        
+        public int getLoadTimeout() {
+            return loadTimeout;
+        }
+        
+        public void setLoadTimeout(int loadTimeout) {
+            this.loadTimeout = loadTimeout;
+        }
+        
+        public int getSaveTimeout() {
+            return saveTimeout;
+        }
+        
+        public void setSaveTimeout(int saveTimeout) {
+            this.saveTimeout = saveTimeout;
+        }
+        
+        public int getDeployTimeout() {
+            return deployTimeout;
+        }
+        
+        public void setDeployTimeout(int deployTimeout) {
+            this.deployTimeout = deployTimeout;
+        }
+        
+        public int getGateSamples() {
+            return gateSamples < 1 ? DEFAULT_GATE_SAMPLES : gateSamples;
+        }
+        
+        public void setGateSamples(int gateSamples) {
+            this.gateSamples = gateSamples;
+        }
+        
+        public int getGatePercentile() {
+            return gatePercentile < 1 || gatePercentile > 100 ? DEFAULT_GATE_PERCENTILE : gatePercentile;
+        }
+        
+        public void setGatePercentile(int gatePercentile) {
+            this.gatePercentile = gatePercentile;
+        }
+        
+        public String getTraceFile() {
+            return traceFile == null ? "" : traceFile.trim();
+        }
+        
+        public void setTraceFile(String traceFile) {
+            this.traceFile = traceFile;
+        }
+        
+        Timeouts getTimeouts() {
+            return new Timeouts(logonTimeout, loadTimeout, saveTimeout, deployTimeout);
+        }
+        
+        SessionCache getSessionCache() {
+            return sessionCache;
+        }
+        
+        IcnHttpClient getHttpClient() {
+            return httpClient;
+        }
+        
+        HostGuards getHostGuards() {
+            return hostGuards;
+        }
+        
+        ReloadFlights getReloadFlights() {
+            return reloadFlights;
+        }
+        
+        PluginInspector getPluginInspector() {
+            return pluginInspector;
+        }
+        
+        DeployRecords getDeployRecords() {
+            return deployRecords;
+        }
+        
+        public FormValidation doCheckSessionTtl(@QueryParameter String value) {
+            return FormValidation.validateNonNegativeInteger(value);
+        }
+        
+        public FormValidation doCheckMaxSessions(@QueryParameter String value) {
+            return FormValidation.validateNonNegativeInteger(value);
+        }
+        
+        public FormValidation doCheckMaxConnections(@QueryParameter String value) {
+            return FormValidation.validatePositiveInteger(value);
+        }
+        
+        public FormValidation doCheckMaxConnectionsPerHost(@QueryParameter String value) {
+            return FormValidation.validatePositiveInteger(value);
+        }
+        
+        public FormValidation doCheckConnectTimeout(@QueryParameter String value) {
+            return FormValidation.validateNonNegativeInteger(value);
+        }
+        
+        public FormValidation doCheckSocketTimeout(@QueryParameter String value) {
+            return FormValidation.validateNonNegativeInteger(value);
+        }
+        
+        public FormValidation doCheckMaxResponseSize(@QueryParameter String value) {
+            return FormValidation.validatePositiveInteger(value);
+        }
+        
+        public FormValidation doCheckWarmUpConcurrency(@QueryParameter String value) {
+            return FormValidation.validatePositiveInteger(value);
+        }
+        
+        public FormValidation doCheckGateSamples(@QueryParameter String value) {
+            return FormValidation.validatePositiveInteger(value);
+        }
+        
+        public FormValidation doCheckGatePercentile(@QueryParameter String value) {
+            FormValidation validation = FormValidation.validatePositiveInteger(value);
+            if (validation.kind == FormValidation.Kind.OK && Integer.parseInt(value) > 100) {
+                return FormValidation.error("Please set a percentile from 1 to 100");
+            }
+            return validation;
+        }
+        
+        public FormValidation doCheckLogonTimeout(@QueryParameter String value) {
+            return FormValidation.validateNonNegativeInteger(value);
+        }
+        
+        public FormValidation doCheckLoadTimeout(@QueryParameter String value) {
+            return FormValidation.validateNonNegativeInteger(value);
+        }
+        
+        public FormValidation doCheckSaveTimeout(@QueryParameter String value) {
+            return FormValidation.validateNonNegativeInteger(value);
+        }
+        
+        public FormValidation doCheckDeployTimeout(@QueryParameter String value) {
+            return FormValidation.validateNonNegativeInteger(value);
+        }
+        
+        public FormValidation doCheckMaxReloadsPerHost(@QueryParameter String value) {
+            return FormValidation.validatePositiveInteger(value);
+        }
+        
+        public FormValidation doCheckMaxRetries(@QueryParameter String value) {
+            return FormValidation.validateNonNegativeInteger(value);
+        }
+        
+        public FormValidation doCheckRetryDelay(@QueryParameter String value) {
+            return FormValidation.validateNonNegativeInteger(value);
+        }
+        
+        public FormValidation doCheckMaxRetryDelay(@QueryParameter String value) {
+            return FormValidation.validateNonNegativeInteger(value);
+        }
+        
+        public FormValidation doCheckFailureThreshold(@QueryParameter String value) {
+            return FormValidation.validateNonNegativeInteger(value);
+        }
+        
+        public FormValidation doCheckUnavailableTime(@QueryParameter String value) {
+            return FormValidation.validateNonNegativeInteger(value);
         }
 
         /**
@@ -346,8 +923,10 @@ public class LoadPluginBuilder extends Builder {
         public FormValidation doCheckUrl(@QueryParameter String value) {
             if (value.length() == 0)
                 return FormValidation.error("Please set a URL");
-            if (!value.endsWith("/") && value.startsWith("http"))
-                return FormValidation.warning("URL should end with a /");
+            for (String u : splitList(value)) {
+                if (!u.endsWith("/") && u.startsWith("http"))
+                    return FormValidation.warning("URL should end with a /");
+            }
             return FormValidation.ok();
         }
         
@@ -371,6 +950,22 @@ public class LoadPluginBuilder extends Builder {
                 return FormValidation.error("Please set a File");
             return FormValidation.ok();
         }
+        
+        public FormValidation doCheckConcurrency(@QueryParameter String value) {
+            return FormValidation.validatePositiveInteger(value);
+        }
+        
+        public FormValidation doCheckNodeConcurrency(@QueryParameter String value) {
+            return FormValidation.validatePositiveInteger(value);
+        }
+        
+        public FormValidation doCheckGateThreshold(@QueryParameter String value) {
+            return FormValidation.validateNonNegativeInteger(value);
+        }
+        
+        public ListBoxModel doFillSuccessPolicyItems() {
+            return SuccessPolicy.listBoxModel();
+        }
 
         public boolean isApplicable(Class<? extends AbstractProject> aClass) {
             // Indicates that this builder can be used with all kinds of project types 
@@ -0,0 +1,77 @@
+package jenkins.plugins.icn;
+
+import java.io.Serializable;
+
+/**
+ * Timing of one call to ICN during a reload: which phase, how long it took,
+ * the HTTP status and the size of the response.
+ */
+public final class PhaseTiming implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Status recorded when the call failed without an HTTP response
+     */
+    public static final int NO_RESPONSE = -1;
+
+    public enum Phase {
+        LOGON, LOAD, SAVE, WARM_UP
+    }
+
+    private final String url;
+    private final Phase phase;
+    private final String file;
+    private final long duration;
+    private final int status;
+    private final long responseSize;
+
+    /**
+     * @param url the ICN url
+     * @param phase the phase of the reload
+     * @param file the plug-in location, <code>null</code> for the logon, the requested path for a warm-up
+     * @param duration the duration in milliseconds, including a new logon if the session had expired
+     * @param status the HTTP status, {@link #NO_RESPONSE} if there was none
+     * @param responseSize the number of bytes read from the response
+     */
+    PhaseTiming(String url, Phase phase, String file, long duration, int status, long responseSize) {
+        this.url = url;
+        this.phase = phase;
+        this.file = file;
+        this.duration = duration;
+        this.status = status;
+        this.responseSize = responseSize;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * @return the host and port of the ICN url, used to aggregate timings by server.
+     *         The url itself if it has no host, never <code>null</code>
+     */
+    public String getHost() {
+        return HostGuards.hostOf(url);
+    }
+
+    public Phase getPhase() {
+        return phase;
+    }
+
+    public String getFile() {
+        return file;
+    }
+
+    public long getDuration() {
+        return duration;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public long getResponseSize() {
+        return responseSize;
+    }
+}
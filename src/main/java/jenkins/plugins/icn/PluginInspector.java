@@ -0,0 +1,91 @@
+package jenkins.plugins.icn;
+
+import hudson.FilePath;
+import hudson.remoting.VirtualChannel;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import jenkins.MasterToSlaveFileCallable;
+import jenkins.plugins.icn.PluginJar.Inspection;
+
+/**
+ * Check of a plug-in jar before it is sent to ICN, so a broken artifact fails the
+ * build at once instead of after a logon and a slow loadPlugin call which makes ICN
+ * initialize it for nothing. See {@link PluginJar} for what is checked.
+ * <p>
+ * The jar is read on the node holding it, through its central directory. Results
+ * are kept by digest, an artifact is only inspected once. A jar which can't be read,
+ * because the node is gone or the file is locked, is inspected again the next time.
+ */
+final class PluginInspector {
+
+    private static final int MAX_INSPECTIONS = 256;
+
+    /** Results by digest of the jar, least recently used ones are dropped first */
+    private final Map<String, Inspection> inspections = new LinkedHashMap<String, Inspection>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Inspection> eldest) {
+            return size() > MAX_INSPECTIONS;
+        }
+    };
+
+    /**
+     * Inspect a plug-in jar, unless a jar with the same content already was.
+     * @param jar the jar, on the node holding it
+     * @param digest the digest of the jar, <code>null</code> to inspect it anyway
+     * @param log the {@link PrintStream} to print problems to
+     * @return <code>true</code> if the jar can be sent to ICN
+     * @throws InterruptedException if the build is interrupted
+     */
+    boolean inspect(FilePath jar, String digest, PrintStream log) throws InterruptedException {
+        Inspection inspection = digest == null ? null : cached(digest);
+        if (inspection == null) {
+            try {
+                inspection = jar.act(new Inspect());
+            } catch (IOException e) {
+                // Not kept, the jar may be readable by the next build
+                log.println("ERROR: " + jar.getRemote() + " can't be checked, it can't be read: " + e.getMessage());
+                return false;
+            }
+            if (digest != null) {
+                synchronized (inspections) {
+                    inspections.put(digest, inspection);
+                }
+            }
+        }
+        if (!inspection.isValid()) {
+            log.println("ERROR: " + jar.getRemote() + " is not a valid ICN plug-in, " + inspection.getProblem() + ".");
+            return false;
+        }
+        if (inspection.getWarning() != null) {
+            log.println("WARNING: " + jar.getRemote() + " may not be a valid ICN plug-in, " + inspection.getWarning() + ".");
+        }
+        log.println("Checked " + jar.getRemote() + ", plug-in class " + inspection.getPluginClass());
+        return true;
+    }
+
+    private Inspection cached(String digest) {
+        synchronized (inspections) {
+            return inspections.get(digest);
+        }
+    }
+
+    /**
+     * Inspection of one jar, run on the node holding it.
+     */
+    private static final class Inspect extends MasterToSlaveFileCallable<Inspection> {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public Inspection invoke(File f, VirtualChannel channel) throws IOException, InterruptedException {
+            return PluginJar.inspect(f);
+        }
+    }
+}
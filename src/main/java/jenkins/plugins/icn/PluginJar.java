@@ -0,0 +1,252 @@
+package jenkins.plugins.icn;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.io.UTFDataFormatException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Check of a plug-in jar of this machine: the manifest must name the plug-in class
+ * in its <code>Plugin-Class</code> entry, and that class must be in the jar, be
+ * concrete and extend the ICN plug-in class, directly or through other classes of
+ * the jar. Only the manifest and the headers of the plug-in class and of its
+ * superclasses are read. When a superclass is not in the jar, as a base class of
+ * a library shared by several plug-ins, the jar is accepted with a warning since
+ * only ICN can tell. This class does not depend on Jenkins, so it can be used
+ * by the {@link PluginWatcher} too.
+ */
+final class PluginJar {
+
+    /**
+     * The manifest entry naming the plug-in class
+     */
+    static final String PLUGIN_CLASS = "Plugin-Class";
+    /**
+     * The class ICN plug-ins extend, in internal form
+     */
+    static final String ICN_PLUGIN = "com/ibm/ecm/extension/Plugin";
+    private static final int MAX_DEPTH = 20;
+    private static final int ACC_INTERFACE = 0x0200;
+    private static final int ACC_ABSTRACT = 0x0400;
+
+    private PluginJar() {
+    }
+
+    /**
+     * Inspect a plug-in jar of this machine.
+     * @param file the jar
+     * @return the result of the inspection
+     * @throws IOException if the jar can't be read, as when it is missing or locked
+     */
+    static Inspection inspect(File file) throws IOException {
+        JarFile jar;
+        try {
+            jar = new JarFile(file, false);
+        } catch (ZipException e) {
+            return Inspection.invalid("it is not a jar (" + e.getMessage() + ")");
+        }
+        try {
+            Manifest manifest = jar.getManifest();
+            if (manifest == null) {
+                return Inspection.invalid("it has no manifest");
+            }
+            String pluginClass = manifest.getMainAttributes().getValue(new Attributes.Name(PLUGIN_CLASS));
+            if (pluginClass == null || pluginClass.trim().isEmpty()) {
+                return Inspection.invalid("its manifest has no " + PLUGIN_CLASS + " entry");
+            }
+            pluginClass = pluginClass.trim();
+
+            String name = pluginClass.replace('.', '/');
+            Set<String> seen = new HashSet<String>();
+            while (!ICN_PLUGIN.equals(name)) {
+                ZipEntry entry = jar.getEntry(name + ".class");
+                if (entry == null) {
+                    if (seen.isEmpty()) {
+                        return Inspection.invalid("its plug-in class " + pluginClass + " is not in the jar");
+                    }
+                    return Inspection.unknown(pluginClass, "its plug-in class " + pluginClass + " extends "
+                            + name.replace('/', '.') + " which is not in the jar, it can't be checked that it extends "
+                            + ICN_PLUGIN.replace('/', '.'));
+                }
+                if (!seen.add(name) || seen.size() > MAX_DEPTH) {
+                    return Inspection.invalid("the superclasses of its plug-in class " + pluginClass + " loop");
+                }
+                ClassHeader header;
+                InputStream in = jar.getInputStream(entry);
+                try {
+                    header = ClassHeader.read(in);
+                } catch (EOFException e) {
+                    header = null;
+                } catch (UTFDataFormatException e) {
+                    header = null;
+                } finally {
+                    in.close();
+                }
+                if (header == null || !name.equals(header.name)) {
+                    return Inspection.invalid(entry.getName() + " is not a valid class file");
+                }
+                if (seen.size() == 1 && (header.access & (ACC_INTERFACE | ACC_ABSTRACT)) != 0) {
+                    return Inspection.invalid("its plug-in class " + pluginClass + " can't be instantiated");
+                }
+                if (header.superName == null || header.superName.startsWith("java/")) {
+                    return Inspection.invalid("its plug-in class " + pluginClass + " does not extend "
+                            + ICN_PLUGIN.replace('/', '.'));
+                }
+                name = header.superName;
+            }
+            return Inspection.valid(pluginClass);
+        } finally {
+            jar.close();
+        }
+    }
+
+    /**
+     * The part of a class file telling what the class is and what it extends.
+     */
+    private static final class ClassHeader {
+        private static final int MAGIC = 0xCAFEBABE;
+
+        private final int access;
+        private final String name;
+        private final String superName;
+
+        private ClassHeader(int access, String name, String superName) {
+            this.access = access;
+            this.name = name;
+            this.superName = superName;
+        }
+
+        /**
+         * Read the header of a class, up to its superclass, skipping the rest of the constant pool.
+         * @return the header, <code>null</code> if this is not a class file
+         */
+        static ClassHeader read(InputStream stream) throws IOException {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(stream));
+            if (in.readInt() != MAGIC) {
+                return null;
+            }
+            in.readUnsignedShort(); // minor version
+            in.readUnsignedShort(); // major version
+            int count = in.readUnsignedShort();
+            String[] utf8 = new String[count];
+            int[] classes = new int[count];
+            for (int i = 1; i < count; i++) {
+                int tag = in.readUnsignedByte();
+                switch (tag) {
+                case 1: // Utf8, in the modified UTF-8 of DataInput
+                    utf8[i] = in.readUTF();
+                    break;
+                case 7: // Class
+                    classes[i] = in.readUnsignedShort();
+                    break;
+                case 8: // String
+                case 16: // MethodType
+                case 19: // Module
+                case 20: // Package
+                    in.skipBytes(2);
+                    break;
+                case 15: // MethodHandle
+                    in.skipBytes(3);
+                    break;
+                case 3: // Integer
+                case 4: // Float
+                case 9: // Fieldref
+                case 10: // Methodref
+                case 11: // InterfaceMethodref
+                case 12: // NameAndType
+                case 17: // Dynamic
+                case 18: // InvokeDynamic
+                    in.skipBytes(4);
+                    break;
+                case 5: // Long
+                case 6: // Double, both take two entries
+                    in.skipBytes(8);
+                    i++;
+                    break;
+                default:
+                    return null;
+                }
+            }
+            int access = in.readUnsignedShort();
+            String name = className(in.readUnsignedShort(), utf8, classes);
+            int superIndex = in.readUnsignedShort();
+            return name == null ? null : new ClassHeader(access, name, superIndex == 0 ? null : className(superIndex, utf8, classes));
+        }
+
+        private static String className(int index, String[] utf8, int[] classes) {
+            if (index <= 0 || index >= classes.length || classes[index] <= 0 || classes[index] >= utf8.length) {
+                return null;
+            }
+            return utf8[classes[index]];
+        }
+    }
+
+    /**
+     * Outcome of the inspection of a jar.
+     */
+    static final class Inspection implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String pluginClass;
+        private final String problem;
+        private final String warning;
+
+        private Inspection(String pluginClass, String problem, String warning) {
+            this.pluginClass = pluginClass;
+            this.problem = problem;
+            this.warning = warning;
+        }
+
+        static Inspection valid(String pluginClass) {
+            return new Inspection(pluginClass, null, null);
+        }
+
+        /**
+         * @return a jar which can be sent to ICN, but could not be fully checked
+         */
+        static Inspection unknown(String pluginClass, String warning) {
+            return new Inspection(pluginClass, null, warning);
+        }
+
+        static Inspection invalid(String problem) {
+            return new Inspection(null, problem, null);
+        }
+
+        boolean isValid() {
+            return problem == null;
+        }
+
+        /**
+         * @return the plug-in class named by the manifest, <code>null</code> if the jar is not valid
+         */
+        String getPluginClass() {
+            return pluginClass;
+        }
+
+        /**
+         * @return what is wrong with the jar, <code>null</code> if it is valid
+         */
+        String getProblem() {
+            return problem;
+        }
+
+        /**
+         * @return what could not be checked in a jar sent anyway, <code>null</code> if it was fully checked
+         */
+        String getWarning() {
+            return warning;
+        }
+    }
+}
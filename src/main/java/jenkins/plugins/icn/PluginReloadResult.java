@@ -0,0 +1,114 @@
+package jenkins.plugins.icn;
+
+import java.io.PrintStream;
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * Outcome of the reload of one plug-in file, used to print the summary
+ * table at the end of the build step.
+ */
+public final class PluginReloadResult implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    public enum Status {
+        OK, UNCHANGED, RELOAD_FAILED, SAVE_FAILED, ROLLED_BACK;
+
+        public boolean isSuccess() {
+            return this == OK || this == UNCHANGED;
+        }
+    }
+
+    private final String file;
+    private final Status status;
+    private final String name;
+    private final String id;
+    private final String version;
+    private final String configClass;
+
+    private PluginReloadResult(String file, Status status, String name, String id, String version, String configClass) {
+        this.file = file;
+        this.status = status;
+        this.name = name;
+        this.id = id;
+        this.version = version;
+        this.configClass = configClass;
+    }
+
+    static PluginReloadResult failed(String file, Status status) {
+        return new PluginReloadResult(file, status, null, null, null, null);
+    }
+
+    /**
+     * Result of a plug-in skipped because its jar is the one already deployed
+     */
+    static PluginReloadResult unchanged(String file, DeployRecords.Record record) {
+        return new PluginReloadResult(file, Status.UNCHANGED, record.getName(), record.getId(), record.getVersion(),
+                record.getConfigClass());
+    }
+
+    /**
+     * @return the same result, for a plug-in rolled back as it made ICN slower
+     */
+    PluginReloadResult rolledBack() {
+        return new PluginReloadResult(file, Status.ROLLED_BACK, name, id, version, configClass);
+    }
+
+    static PluginReloadResult of(String file, IcnResponse loadResult, Status status) {
+        return new PluginReloadResult(file, status, loadResult.get("name"), loadResult.get("id"), loadResult.get("version"),
+                loadResult.get("configClass"));
+    }
+
+    public String getFile() {
+        return file;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getVersion() {
+        return version;
+    }
+
+    public String getConfigClass() {
+        return configClass;
+    }
+
+    public boolean isSuccess() {
+        return status.isSuccess();
+    }
+
+    /**
+     * Print the given results as a table, one line per plug-in.
+     * @param results the results to print
+     * @param log the {@link PrintStream} to print to
+     */
+    static void printTable(List<PluginReloadResult> results, PrintStream log) {
+        int fileWidth = "File".length();
+        for (PluginReloadResult r : results) {
+            fileWidth = Math.max(fileWidth, r.file.length());
+        }
+        String format = "%-" + fileWidth + "s  %-13s  %-20s  %s%n";
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(format, "File", "Status", "Id", "Version"));
+        for (PluginReloadResult r : results) {
+            sb.append(String.format(format, r.file, r.status, dash(r.id), dash(r.version)));
+        }
+        // print in one go so concurrent steps don't interleave lines of the table
+        log.print(sb);
+    }
+
+    private static String dash(String s) {
+        return s == null ? "-" : s;
+    }
+}
@@ -0,0 +1,393 @@
+package jenkins.plugins.icn;
+
+import java.io.Console;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarFile;
+
+/**
+ * Watch mode for plug-in developers: reloads plug-ins on an ICN server each time
+ * their jar is rebuilt, without running a Jenkins job. It does not need Jenkins, only
+ * the classes of this plug-in, its libraries and commons-io on the class path:
+ * <pre>java -cp ... jenkins.plugins.icn.PluginWatcher [--quiet-period ms] [--server-directory dir]
+ *     http://icn:9080/navigator/ admin target/my-plugin.jar</pre>
+ * The password is read from the <code>ICN_PASSWORD</code> environment variable, or
+ * asked for. ICN loads the jars from the same path, through a share, unless a
+ * directory of the server is given.
+ * <p>
+ * Writes to a jar come in bursts: it is only reloaded once no event came for the
+ * quiet period and its size and date stopped changing, and only if its content
+ * differs from the last one reloaded. The ICN session is kept between reloads, and
+ * ICN is logged on again when it expires.
+ * <p>
+ * A clean deletes the directory of the jar with it: its closest existing parent is
+ * watched instead, until the directory is created again.
+ */
+public final class PluginWatcher {
+
+    /**
+     * Default milliseconds without event on a jar before it is reloaded
+     */
+    public static final long DEFAULT_QUIET_PERIOD = 500;
+    /**
+     * Milliseconds between the two looks at a jar telling if it is still written
+     */
+    private static final long SETTLE_TIME = 100;
+    private static final long POLL_TIME = 100;
+
+    private final String url;
+    private final String username;
+    private final String password;
+    /** Locations on the ICN server by local jar */
+    private final Map<Path, String> jars;
+    private final long quietPeriod;
+    private final PrintStream log;
+    private final IcnHttpClient httpClient;
+    private final SessionCache sessions;
+    private final Timeouts timeouts;
+    private final WatchService watchService;
+    /** Keys of the directories watched: the directories of the jars, or their closest existing parents */
+    private final Map<Path, WatchKey> dirs = new HashMap<Path, WatchKey>();
+    /** Time of the last event by jar waiting to be reloaded */
+    private final Map<Path, Long> pending = new LinkedHashMap<Path, Long>();
+    /** Digest of the last jar reloaded or seen at start */
+    private final Map<Path, String> digests = new HashMap<Path, String>();
+
+    /**
+     * @param url the ICN url, ending with a /
+     * @param username the ICN administrator
+     * @param password the password of the administrator
+     * @param jars the locations on the ICN server by local jar
+     * @param quietPeriod the milliseconds without event on a jar before it is reloaded
+     * @param log the {@link PrintStream} to print information to
+     * @throws IOException if the directories of the jars can't be watched
+     */
+    PluginWatcher(String url, String username, String password, Map<Path, String> jars, long quietPeriod,
+            PrintStream log) throws IOException {
+        this.url = url;
+        this.username = username;
+        this.password = password;
+        this.jars = new LinkedHashMap<Path, String>();
+        for (Map.Entry<Path, String> jar : jars.entrySet()) {
+            this.jars.put(jar.getKey().toAbsolutePath().normalize(), jar.getValue());
+        }
+        this.quietPeriod = quietPeriod;
+        this.log = log;
+        this.httpClient = new IcnHttpClient(LoadPluginBuilder.DescriptorImpl.DEFAULT_MAX_CONNECTIONS,
+                LoadPluginBuilder.DescriptorImpl.DEFAULT_MAX_CONNECTIONS_PER_HOST, LoadPluginBuilder.DescriptorImpl.DEFAULT_CONNECT_TIMEOUT,
+                LoadPluginBuilder.DescriptorImpl.DEFAULT_SOCKET_TIMEOUT, LoadPluginBuilder.DescriptorImpl.DEFAULT_MAX_RESPONSE_SIZE);
+        this.sessions = new SessionCache(LoadPluginBuilder.DescriptorImpl.DEFAULT_SESSION_TTL, 1);
+        this.timeouts = new Timeouts(LoadPluginBuilder.DescriptorImpl.DEFAULT_LOGON_TIMEOUT,
+                LoadPluginBuilder.DescriptorImpl.DEFAULT_LOAD_TIMEOUT, LoadPluginBuilder.DescriptorImpl.DEFAULT_SAVE_TIMEOUT, 0);
+        this.watchService = this.jars.keySet().iterator().next().getFileSystem().newWatchService();
+        for (Path jar : this.jars.keySet()) {
+            digests.put(jar, digest(jar));
+        }
+        register(false);
+    }
+
+    /**
+     * Watch the directory of each jar, or its closest existing parent while it doesn't exist.
+     * @param recreated <code>true</code> if directories watched again were deleted before, their jars
+     *                  may have been written before they were watched
+     */
+    private void register(boolean recreated) throws IOException {
+        for (Iterator<WatchKey> it = dirs.values().iterator(); it.hasNext();) {
+            if (!it.next().isValid()) {
+                it.remove();
+            }
+        }
+        for (Path jar : jars.keySet()) {
+            Path dir = jar.getParent();
+            Path watched = dir;
+            boolean added = false;
+            while (!dirs.containsKey(watched)) {
+                try {
+                    dirs.put(watched, watched.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                            StandardWatchEventKinds.ENTRY_MODIFY));
+                    added = true;
+                } catch (NoSuchFileException e) {
+                    watched = watched.getParent();
+                    if (watched == null) {
+                        throw e;
+                    }
+                }
+            }
+            if (!added) {
+                continue;
+            }
+            if (!watched.equals(dir)) {
+                log.println("WARNING: " + dir + " does not exist, watching " + watched + " until it is created.");
+            } else if (recreated && Files.exists(jar)) {
+                pending.put(jar, System.currentTimeMillis());
+            }
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the path was created on the way to the directory of a jar which is not watched
+     */
+    private boolean isMissingDir(Path created) {
+        for (Path jar : jars.keySet()) {
+            if (!dirs.containsKey(jar.getParent()) && jar.getParent().startsWith(created)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reload the jars as they change, until the thread is interrupted or {@link #close()} is called.
+     * @throws InterruptedException if the thread is interrupted
+     * @throws IOException if the directories of the jars can't be watched anymore
+     */
+    void run() throws InterruptedException, IOException {
+        log.println("Watching " + jars.keySet() + ", reloading them on " + url);
+        try {
+            while (true) {
+                WatchKey key = watchService.poll(POLL_TIME, TimeUnit.MILLISECONDS);
+                long now = System.currentTimeMillis();
+                if (key != null) {
+                    Path dir = (Path) key.watchable();
+                    boolean created = false;
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            // Events were lost, look at all jars
+                            for (Path jar : jars.keySet()) {
+                                pending.put(jar, now);
+                            }
+                            created = true;
+                        } else {
+                            Path changed = dir.resolve((Path) event.context());
+                            if (jars.containsKey(changed)) {
+                                pending.put(changed, now);
+                            } else if (isMissingDir(changed)) {
+                                created = true;
+                            }
+                        }
+                    }
+                    if (!key.reset()) {
+                        // Deleted, by a clean deleting the directory of the jar
+                        dirs.remove(dir);
+                        created = true;
+                    }
+                    if (created) {
+                        register(true);
+                    }
+                }
+                List<Path> ready = ready(now);
+                if (!ready.isEmpty()) {
+                    reload(ready);
+                }
+            }
+        } catch (ClosedWatchServiceException e) {
+            // Closed, stop watching
+        }
+    }
+
+    /**
+     * @return the jars quiet for long enough, completely written and changed, removed from the pending ones
+     */
+    private List<Path> ready(long now) throws InterruptedException {
+        List<Path> ready = new ArrayList<Path>();
+        for (Iterator<Map.Entry<Path, Long>> it = pending.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<Path, Long> entry = it.next();
+            if (now - entry.getValue() < quietPeriod) {
+                continue;
+            }
+            Path jar = entry.getKey();
+            if (!Files.exists(jar)) {
+                // Deleted by a clean, it will be created again, maybe with its directory
+                it.remove();
+            } else if (!isSettled(jar)) {
+                entry.setValue(System.currentTimeMillis());
+            } else if (!isJar(jar)) {
+                // Still written, or broken: the next write brings it back
+                it.remove();
+                log.println("WARNING: " + jar + " is not a complete jar, waiting for it to be written.");
+            } else {
+                it.remove();
+                String digest = digest(jar);
+                if (digest != null && digest.equals(digests.get(jar))) {
+                    log.println(jar + " is unchanged, not reloading it.");
+                } else {
+                    digests.put(jar, digest);
+                    ready.add(jar);
+                }
+            }
+        }
+        return ready;
+    }
+
+    /**
+     * @return <code>true</code> if the size and the date of the jar don't change anymore
+     */
+    private static boolean isSettled(Path jar) throws InterruptedException {
+        try {
+            long size = Files.size(jar);
+            long modified = Files.getLastModifiedTime(jar).toMillis();
+            Thread.sleep(SETTLE_TIME);
+            return size > 0 && size == Files.size(jar) && modified == Files.getLastModifiedTime(jar).toMillis();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the jar can be opened, its central directory is written last
+     */
+    private static boolean isJar(Path jar) {
+        try {
+            new JarFile(jar.toFile(), false).close();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void reload(List<Path> changed) throws InterruptedException {
+        long start = System.currentTimeMillis();
+        List<Path> valid = new ArrayList<Path>(changed.size());
+        List<String> files = new ArrayList<String>(changed.size());
+        for (Path jar : changed) {
+            PluginJar.Inspection inspection;
+            try {
+                inspection = PluginJar.inspect(jar.toFile());
+            } catch (IOException e) {
+                inspection = PluginJar.Inspection.invalid("it can't be read: " + e.getMessage());
+            }
+            if (inspection.isValid()) {
+                if (inspection.getWarning() != null) {
+                    log.println("WARNING: " + jar + " may not be a valid ICN plug-in, " + inspection.getWarning() + ".");
+                }
+                valid.add(jar);
+                files.add(jars.get(jar));
+            } else {
+                log.println("ERROR: " + jar + " is not a valid ICN plug-in, " + inspection.getProblem() + ".");
+            }
+        }
+        if (files.isEmpty()) {
+            return;
+        }
+        IcnClient client = new IcnClient(httpClient, url, log, sessions, null, null, timeouts.start());
+        if (!client.connect(username, password)) {
+            digests.keySet().removeAll(valid);
+            return;
+        }
+        List<PluginReloadResult> results = client.reloadAll(files, 1, null);
+        PluginReloadResult.printTable(results, log);
+        for (int i = 0; i < results.size(); i++) {
+            if (!results.get(i).isSuccess()) {
+                // Reload it on the next change even if the jar is the same
+                digests.remove(valid.get(i));
+            }
+        }
+        log.println("Done in " + (System.currentTimeMillis() - start) + " ms, watching for changes...");
+    }
+
+    /**
+     * Stop watching.
+     */
+    void close() throws IOException {
+        watchService.close();
+        httpClient.close();
+    }
+
+    /**
+     * @return the MD5 of the jar, <code>null</code> if it can't be read
+     */
+    private static String digest(Path jar) {
+        try {
+            MessageDigest md5 = MessageDigest.getInstance("MD5");
+            InputStream in = Files.newInputStream(jar);
+            try {
+                byte[] buffer = new byte[8192];
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    md5.update(buffer, 0, n);
+                }
+            } finally {
+                in.close();
+            }
+            StringBuilder sb = new StringBuilder();
+            for (byte b : md5.digest()) {
+                sb.append(String.format("%02x", b & 0xff));
+            }
+            return sb.toString();
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            return null;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        long quietPeriod = DEFAULT_QUIET_PERIOD;
+        String serverDirectory = null;
+        List<String> params = new ArrayList<String>();
+        for (int i = 0; i < args.length; i++) {
+            if ("--quiet-period".equals(args[i]) && i + 1 < args.length) {
+                quietPeriod = Long.parseLong(args[++i]);
+            } else if ("--server-directory".equals(args[i]) && i + 1 < args.length) {
+                serverDirectory = args[++i];
+            } else {
+                params.add(args[i]);
+            }
+        }
+        if (params.size() < 3) {
+            System.err.println("Usage: PluginWatcher [--quiet-period ms] [--server-directory dir] <ICN url> <username> <jar>...");
+            System.exit(2);
+        }
+
+        String password = System.getenv("ICN_PASSWORD");
+        if (password == null) {
+            Console console = System.console();
+            if (console == null) {
+                System.err.println("Set the ICN_PASSWORD environment variable.");
+                System.exit(2);
+            }
+            password = new String(console.readPassword("ICN password of %s: ", params.get(1)));
+        }
+        Map<Path, String> jars = new LinkedHashMap<Path, String>();
+        for (String jar : params.subList(2, params.size())) {
+            Path path = Paths.get(jar).toAbsolutePath().normalize();
+            jars.put(path, serverDirectory == null ? path.toString()
+                    : (serverDirectory.endsWith("/") ? serverDirectory : serverDirectory + "/") + path.getFileName());
+        }
+        String url = params.get(0).endsWith("/") ? params.get(0) : params.get(0) + "/";
+
+        final PluginWatcher watcher = new PluginWatcher(url, params.get(1), password, jars, quietPeriod, System.out);
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                try {
+                    watcher.close();
+                } catch (IOException e) {
+                    // Exiting anyway
+                }
+            }
+        });
+        watcher.run();
+    }
+}
@@ -0,0 +1,131 @@
+package jenkins.plugins.icn;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * What one execution of the step deploys and how, with the variables of the build
+ * expanded. A {@link LoadPluginBuilder} is shared by all the builds of its job, so
+ * nothing specific to a build is ever kept on it: each execution builds its own
+ * context, which never changes afterwards and can be handed to other threads and
+ * to the agent of the build.
+ */
+final class ReloadContext implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final List<String> urls;
+    private final String username;
+    private final String password;
+    private final List<String> files;
+    private final Map<String, String> digests;
+    private final boolean forceReload;
+    private final int concurrency;
+    private final int nodeConcurrency;
+    private final SuccessPolicy successPolicy;
+    private final boolean skipCurrentSave;
+    private final WarmUp warmUp;
+    private final LatencyGate gate;
+    private final Timeouts timeouts;
+
+    /**
+     * @param urls the ICN urls, each one ending with a /
+     * @param username the ICN administrator
+     * @param password the password of the administrator
+     * @param files the plug-in locations on the ICN servers
+     * @param digests the digests of the plug-in jars by location, files without digest are always reloaded
+     * @param forceReload <code>true</code> to reload plug-ins even if their jar is the one already deployed
+     * @param concurrency the maximum number of reloads running at the same time on one node
+     * @param nodeConcurrency the maximum number of nodes processed at the same time
+     * @param successPolicy how many nodes have to succeed for the deployment to succeed
+     * @param skipCurrentSave <code>true</code> to not save a configuration identical to the recorded one
+     * @param warmUp the requests to make once plug-ins are reloaded, <code>null</code> for none
+     * @param gate the latency check rolling back plug-ins making ICN slower, <code>null</code> for none
+     * @param timeouts the maximum durations of the calls and of the deployment, <code>null</code> for no limit
+     */
+    ReloadContext(List<String> urls, String username, String password, List<String> files,
+            Map<String, String> digests, boolean forceReload, int concurrency, int nodeConcurrency, SuccessPolicy successPolicy,
+            boolean skipCurrentSave, WarmUp warmUp, LatencyGate gate, Timeouts timeouts) {
+        this.urls = Collections.unmodifiableList(new ArrayList<String>(urls));
+        this.username = username;
+        this.password = password;
+        this.files = Collections.unmodifiableList(new ArrayList<String>(files));
+        this.digests = Collections.unmodifiableMap(new HashMap<String, String>(digests));
+        this.forceReload = forceReload;
+        this.concurrency = concurrency;
+        this.nodeConcurrency = nodeConcurrency;
+        this.successPolicy = successPolicy;
+        this.skipCurrentSave = skipCurrentSave;
+        this.warmUp = warmUp;
+        this.gate = gate;
+        this.timeouts = timeouts;
+    }
+
+    List<String> getUrls() {
+        return urls;
+    }
+
+    String getUsername() {
+        return username;
+    }
+
+    String getPassword() {
+        return password;
+    }
+
+    List<String> getFiles() {
+        return files;
+    }
+
+    Map<String, String> getDigests() {
+        return digests;
+    }
+
+    /**
+     * @return <code>true</code> to reload plug-ins even if their jar is the one already deployed
+     */
+    boolean isForceReload() {
+        return forceReload;
+    }
+
+    int getConcurrency() {
+        return concurrency;
+    }
+
+    int getNodeConcurrency() {
+        return nodeConcurrency;
+    }
+
+    SuccessPolicy getSuccessPolicy() {
+        return successPolicy;
+    }
+
+    boolean isSkipCurrentSave() {
+        return skipCurrentSave;
+    }
+
+    /**
+     * @return the requests to make once plug-ins are reloaded, <code>null</code> for none
+     */
+    WarmUp getWarmUp() {
+        return warmUp;
+    }
+
+    /**
+     * @return the latency check rolling back plug-ins making ICN slower, <code>null</code> for none
+     */
+    LatencyGate getGate() {
+        return gate;
+    }
+
+    /**
+     * @return the maximum durations of the calls and of the deployment, <code>null</code> for no limit
+     */
+    Timeouts getTimeouts() {
+        return timeouts;
+    }
+}
@@ -0,0 +1,143 @@
+package jenkins.plugins.icn;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Reloads of a plug-in file on an ICN server currently in flight, shared by all
+ * builds, so that builds reloading the same file on the same server at the same
+ * time don't make ICN initialize the plug-in once per build.
+ * <p>
+ * The first build to reload a file leads the flight, the builds coming while it
+ * runs wait for its result. A build whose jar is not the one being reloaded
+ * queues a follow-up flight instead, run by the leader right after the current
+ * one: all builds coming with yet another jar share that single follow-up, which
+ * reloads whatever jar is on the server when it starts. A jar without digest is
+ * considered changed.
+ */
+final class ReloadFlights {
+
+    private final Map<String, Flight> running = new HashMap<String, Flight>();
+
+    /**
+     * Join the flight of a file, starting it if there is none.
+     * @param url the ICN url
+     * @param file the plug-in location on the ICN server
+     * @param digest the digest of the jar to reload, <code>null</code> if unknown
+     * @return the ticket telling if the caller leads the flight or waits for it
+     */
+    synchronized Ticket join(String url, String file, String digest) {
+        String key = url + '\n' + file;
+        Flight flight = running.get(key);
+        if (flight == null) {
+            flight = new Flight(key, file, digest);
+            running.put(key, flight);
+            return new Ticket(flight, true);
+        }
+        if (digest != null && digest.equals(flight.digest)) {
+            return new Ticket(flight, false);
+        }
+        if (flight.followUp == null) {
+            flight.followUp = new Flight(key, file, digest);
+        } else if (digest != null) {
+            // The follow-up reloads the latest jar, record that one
+            flight.followUp.digest = digest;
+        }
+        return new Ticket(flight.followUp, false);
+    }
+
+    /**
+     * Hand the result of a flight to the builds waiting for it.
+     * @param flight a flight led by the caller
+     * @param result the result of the reload
+     * @return the follow-up flight the leader has to run now, <code>null</code> if there is none
+     */
+    synchronized Flight complete(Flight flight, PluginReloadResult result) {
+        flight.result = result;
+        flight.done.countDown();
+        Flight followUp = flight.followUp;
+        if (followUp == null) {
+            running.remove(flight.key);
+        } else {
+            running.put(flight.key, followUp);
+        }
+        return followUp;
+    }
+
+    /**
+     * Fail a flight and its follow-ups which won't be run, as the build leading
+     * them was aborted.
+     */
+    void abandon(Flight flight) {
+        Flight next = flight;
+        while (next != null) {
+            next = complete(next, PluginReloadResult.failed(next.file, PluginReloadResult.Status.RELOAD_FAILED));
+        }
+    }
+
+    /**
+     * @param flight a flight led by another build
+     * @return its result, once the leader completed it
+     * @throws InterruptedException if the build is interrupted while waiting
+     */
+    PluginReloadResult await(Flight flight) throws InterruptedException {
+        flight.done.await();
+        synchronized (this) {
+            return flight.result;
+        }
+    }
+
+    /**
+     * One reload of a file on a server, with the builds waiting for it.
+     */
+    static final class Flight {
+        private final String key;
+        private final String file;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile String digest;
+        private Flight followUp;
+        private PluginReloadResult result;
+
+        private Flight(String key, String file, String digest) {
+            this.key = key;
+            this.file = file;
+            this.digest = digest;
+        }
+
+        String getFile() {
+            return file;
+        }
+
+        /**
+         * @return the digest of the jar reloaded by this flight, <code>null</code> if unknown
+         */
+        String getDigest() {
+            return digest;
+        }
+    }
+
+    /**
+     * A build joining a flight.
+     */
+    static final class Ticket {
+        private final Flight flight;
+        private final boolean leader;
+
+        private Ticket(Flight flight, boolean leader) {
+            this.flight = flight;
+            this.leader = leader;
+        }
+
+        Flight getFlight() {
+            return flight;
+        }
+
+        /**
+         * @return <code>true</code> if the build has to run the reload and complete the flight
+         */
+        boolean isLeader() {
+            return leader;
+        }
+    }
+}
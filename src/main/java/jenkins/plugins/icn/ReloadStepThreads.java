@@ -0,0 +1,81 @@
+package jenkins.plugins.icn;
+
+import hudson.init.Terminator;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import java.io.PrintStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The threads the {@link IcnReloadStep}s wait on ICN from, so they hold no executor.
+ * There are at most {@link #SIZE} of them, steps started when all are busy wait in
+ * arrival order and say so in their log.
+ * <p>
+ * Kept out of the Pipeline step, Jenkins finds the terminator of this class also
+ * when Pipeline is not installed.
+ */
+public final class ReloadStepThreads {
+
+    /** Number of threads, can be set with the system property of the same name */
+    static final int SIZE = Integer.getInteger(ReloadStepThreads.class.getName() + ".size", 8);
+    private static final long KEEP_ALIVE_SECONDS = 60;
+
+    private static ExecutorService pool;
+    /** Steps given to the pool and not done yet, running or waiting */
+    private static final AtomicInteger reloads = new AtomicInteger();
+
+    private ReloadStepThreads() {
+    }
+
+    /**
+     * Run a reload on a thread of the pool, once one is free.
+     * @param reload the reload
+     * @param log the log of the step, told when the reload waits for a thread
+     * @return the future of the reload, to cancel it
+     */
+    static Future<?> submit(Runnable reload, PrintStream log) {
+        FutureTask<Void> task = new FutureTask<Void>(reload, null) {
+            @Override
+            protected void done() {
+                reloads.decrementAndGet();
+            }
+        };
+        if (reloads.incrementAndGet() > SIZE) {
+            log.println("Waiting for a reload thread, the " + SIZE + " of them are busy...");
+        }
+        getPool().execute(task);
+        return task;
+    }
+
+    private static synchronized ExecutorService getPool() {
+        if (pool == null) {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(SIZE, SIZE, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new NamingThreadFactory(new DaemonThreadFactory(), "icnReloadPlugin"));
+            // No thread kept between release waves
+            executor.allowCoreThreadTimeOut(true);
+            pool = executor;
+        }
+        return pool;
+    }
+
+    /**
+     * Interrupt the reloads still running when Jenkins stops.
+     */
+    @Terminator
+    public static synchronized void shutdown() {
+        if (pool != null) {
+            for (Runnable waiting : pool.shutdownNow()) {
+                // Counted as done, the pool is created again if Jenkins is
+                ((Future<?>) waiting).cancel(false);
+            }
+            pool = null;
+        }
+    }
+}
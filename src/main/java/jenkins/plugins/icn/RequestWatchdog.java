@@ -0,0 +1,122 @@
+package jenkins.plugins.icn;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.client.methods.HttpRequestBase;
+
+/**
+ * Aborts HTTP requests to ICN which are past their deadline, or whose thread was
+ * interrupted by the abort of the build. A thread blocked reading a socket doesn't
+ * see its interruption, aborting the request closes the connection, which makes the
+ * read fail at once and takes the connection out of the pool.
+ */
+final class RequestWatchdog {
+
+    /**
+     * How often requests in flight are checked, in milliseconds
+     */
+    private static final long PERIOD = 200;
+
+    private static final Set<Watch> WATCHES = Collections.newSetFromMap(new ConcurrentHashMap<Watch, Boolean>());
+    private static ScheduledExecutorService timer;
+
+    private RequestWatchdog() {
+    }
+
+    /**
+     * Watch a request made by the current thread until {@link Watch#close()} is called.
+     * @param request the request about to be executed
+     * @param deadline the time the request has to be done by, 0 for no limit
+     * @return the watch of the request
+     */
+    static Watch watch(HttpRequestBase request, long deadline) {
+        Watch watch = new Watch(request, Thread.currentThread(), deadline);
+        WATCHES.add(watch);
+        start();
+        return watch;
+    }
+
+    private static synchronized void start() {
+        if (timer == null) {
+            timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "ICN request watchdog");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            timer.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    check();
+                }
+            }, PERIOD, PERIOD, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static void check() {
+        long now = System.currentTimeMillis();
+        for (Watch watch : WATCHES) {
+            if (watch.thread.isInterrupted()) {
+                watch.abort(false);
+            } else if (watch.deadline > 0 && now >= watch.deadline) {
+                watch.abort(true);
+            }
+        }
+    }
+
+    /**
+     * A request in flight.
+     */
+    static final class Watch {
+        private final HttpRequestBase request;
+        private final Thread thread;
+        private final long deadline;
+        private volatile boolean expired;
+        private volatile boolean interrupted;
+
+        private Watch(HttpRequestBase request, Thread thread, long deadline) {
+            this.request = request;
+            this.thread = thread;
+            this.deadline = deadline;
+        }
+
+        private void abort(boolean timeout) {
+            if (timeout) {
+                expired = true;
+            } else {
+                interrupted = true;
+            }
+            WATCHES.remove(this);
+            request.abort();
+        }
+
+        /**
+         * @return <code>true</code> if the request was aborted as it took too long
+         */
+        boolean isExpired() {
+            return expired;
+        }
+
+        /**
+         * @return <code>true</code> if the request was aborted as its thread was interrupted
+         */
+        boolean isInterrupted() {
+            return interrupted;
+        }
+
+        /**
+         * Stop watching the request, once its response was read.
+         */
+        void close() {
+            WATCHES.remove(this);
+        }
+    }
+}
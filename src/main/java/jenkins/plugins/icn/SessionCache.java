@@ -0,0 +1,140 @@
+package jenkins.plugins.icn;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.cookie.Cookie;
+
+/**
+ * Cache of ICN sessions shared by all builds, so that jobs reloading plug-ins
+ * on the same server don't log on each time. Sessions are keyed by url and
+ * username, and only returned when the password matches the one used to
+ * log on. They expire after a fixed time to live and the least recently used
+ * ones are evicted when the cache is full.
+ */
+final class SessionCache {
+
+    private final LinkedHashMap<String, Session> sessions = new LinkedHashMap<String, Session>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Session> eldest) {
+            return size() > maxSessions;
+        }
+    };
+    private long ttl;
+    private int maxSessions;
+
+    /**
+     * @param ttlMinutes how long a session is kept after the logon, 0 disables the cache
+     * @param maxSessions the maximum number of sessions kept
+     */
+    SessionCache(int ttlMinutes, int maxSessions) {
+        configure(ttlMinutes, maxSessions);
+    }
+
+    synchronized void configure(int ttlMinutes, int maxSessions) {
+        this.ttl = TimeUnit.MINUTES.toMillis(Math.max(0, ttlMinutes));
+        this.maxSessions = Math.max(0, maxSessions);
+        if (ttl == 0) {
+            sessions.clear();
+        }
+        // Shrink right away if the maximum was lowered
+        Iterator<Session> it = sessions.values().iterator();
+        while (sessions.size() > this.maxSessions && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    /**
+     * @return a valid session for these credentials, <code>null</code> if there is none
+     */
+    synchronized Session get(String url, String username, String password) {
+        String key = key(url, username);
+        Session session = sessions.get(key);
+        if (session == null) {
+            return null;
+        }
+        if (System.currentTimeMillis() - session.created >= ttl) {
+            sessions.remove(key);
+            return null;
+        }
+        if (!Arrays.equals(session.passwordHash, hash(password))) {
+            return null;
+        }
+        return session;
+    }
+
+    /**
+     * Keep the session obtained by a successful logon.
+     */
+    synchronized void put(String url, String username, String password, String securityToken, List<Cookie> cookies) {
+        if (ttl == 0 || maxSessions == 0) {
+            return;
+        }
+        sessions.put(key(url, username), new Session(securityToken, cookies, hash(password), System.currentTimeMillis()));
+    }
+
+    /**
+     * Forget a session which is no longer accepted by ICN. Nothing is removed if
+     * the session was already replaced by a newer logon.
+     */
+    synchronized void invalidate(String url, String username, String securityToken) {
+        String key = key(url, username);
+        Session session = sessions.get(key);
+        if (session != null && session.securityToken.equals(securityToken)) {
+            sessions.remove(key);
+        }
+    }
+
+    synchronized int size() {
+        return sessions.size();
+    }
+
+    private static String key(String url, String username) {
+        return url + '\n' + username;
+    }
+
+    private static byte[] hash(String password) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(password.getBytes("UTF-8"));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * An authenticated ICN session, the security token and the cookies set by the logon.
+     */
+    static final class Session {
+        private final String securityToken;
+        private final List<Cookie> cookies;
+        private final byte[] passwordHash;
+        private final long created;
+
+        private Session(String securityToken, List<Cookie> cookies, byte[] passwordHash, long created) {
+            this.securityToken = securityToken;
+            this.cookies = cookies;
+            this.passwordHash = passwordHash;
+            this.created = created;
+        }
+
+        String getSecurityToken() {
+            return securityToken;
+        }
+
+        List<Cookie> getCookies() {
+            return cookies;
+        }
+    }
+}
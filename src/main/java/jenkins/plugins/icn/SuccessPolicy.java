@@ -0,0 +1,57 @@
+package jenkins.plugins.icn;
+
+import hudson.util.ListBoxModel;
+
+/**
+ * Decides whether a reload on several ICN nodes is successful, given how
+ * many nodes reloaded all plug-ins.
+ */
+public enum SuccessPolicy {
+
+    ALL("All nodes") {
+        @Override
+        public boolean isMet(int succeeded, int total) {
+            return succeeded == total;
+        }
+    },
+    QUORUM("A majority of nodes") {
+        @Override
+        public boolean isMet(int succeeded, int total) {
+            return succeeded > total / 2;
+        }
+    },
+    ANY("At least one node") {
+        @Override
+        public boolean isMet(int succeeded, int total) {
+            return succeeded > 0;
+        }
+    };
+
+    private final String displayName;
+
+    private SuccessPolicy(String displayName) {
+        this.displayName = displayName;
+    }
+
+    public String getDisplayName() {
+        return displayName;
+    }
+
+    /**
+     * @param succeeded the number of nodes where all plug-ins were reloaded and saved
+     * @param total the number of nodes
+     * @return <code>true</code> if the build step should be considered successful
+     */
+    public abstract boolean isMet(int succeeded, int total);
+
+    /**
+     * @return the policies as items of a select in step configurations
+     */
+    static ListBoxModel listBoxModel() {
+        ListBoxModel items = new ListBoxModel();
+        for (SuccessPolicy policy : values()) {
+            items.add(policy.getDisplayName(), policy.name());
+        }
+        return items;
+    }
+}
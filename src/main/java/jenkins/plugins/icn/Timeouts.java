@@ -0,0 +1,82 @@
+package jenkins.plugins.icn;
+
+import java.io.Serializable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hard limits on the time ICN calls take, on top of the connect and socket
+ * timeouts of the {@link IcnHttpClient} which don't catch a server trickling
+ * data or a request stuck in a pool: a maximum duration per phase, whatever
+ * happens on the connection, and a deadline for the whole deployment.
+ */
+final class Timeouts implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long logon;
+    private final long load;
+    private final long save;
+    private final long deploy;
+    /** When the deployment has to be done by, 0 until started or if there is no limit */
+    private final long deadline;
+
+    /**
+     * @param logonSeconds the maximum duration of a logon, 0 for no limit
+     * @param loadSeconds the maximum duration of a loadPlugin call, 0 for no limit
+     * @param saveSeconds the maximum duration of a configuration save or a warm-up request, 0 for no limit
+     * @param deployMinutes the maximum duration of the whole deployment, 0 for no limit
+     */
+    Timeouts(int logonSeconds, int loadSeconds, int saveSeconds, int deployMinutes) {
+        this(TimeUnit.SECONDS.toMillis(Math.max(0, logonSeconds)), TimeUnit.SECONDS.toMillis(Math.max(0, loadSeconds)),
+                TimeUnit.SECONDS.toMillis(Math.max(0, saveSeconds)), TimeUnit.MINUTES.toMillis(Math.max(0, deployMinutes)), 0);
+    }
+
+    private Timeouts(long logon, long load, long save, long deploy, long deadline) {
+        this.logon = logon;
+        this.load = load;
+        this.save = save;
+        this.deploy = deploy;
+        this.deadline = deadline;
+    }
+
+    /**
+     * @return the same timeouts, with the deadline of a deployment starting now,
+     *         or these ones if the deadline already started
+     */
+    Timeouts start() {
+        if (deadline > 0) {
+            return this;
+        }
+        return new Timeouts(logon, load, save, deploy, deploy > 0 ? System.currentTimeMillis() + deploy : 0);
+    }
+
+    /**
+     * @param phase the phase of a call starting now
+     * @return the time the call has to be done by, 0 for no limit
+     */
+    long deadlineOf(PhaseTiming.Phase phase) {
+        long timeout;
+        switch (phase) {
+        case LOGON:
+            timeout = logon;
+            break;
+        case LOAD:
+            timeout = load;
+            break;
+        default:
+            timeout = save;
+        }
+        long end = timeout > 0 ? System.currentTimeMillis() + timeout : 0;
+        if (deadline > 0 && (end == 0 || deadline < end)) {
+            end = deadline;
+        }
+        return end;
+    }
+
+    /**
+     * @return <code>true</code> if the deadline of the deployment has passed
+     */
+    boolean isOver() {
+        return deadline > 0 && System.currentTimeMillis() >= deadline;
+    }
+}
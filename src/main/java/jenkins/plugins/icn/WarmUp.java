@@ -0,0 +1,60 @@
+package jenkins.plugins.icn;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Requests made to ICN once plug-ins are reloaded and saved, so the first users
+ * don't pay for the loading of the new plug-in classes and resources: the script
+ * and CSS each plug-in declares, plus the paths configured on the step.
+ */
+final class WarmUp implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Where ICN serves the resources of a plug-in, relative to the ICN url
+     */
+    static final String RESOURCE_PATH = "plugin/%s/getResource/%s";
+    /**
+     * Fields of the loadPlugin response naming the resources of the plug-in
+     */
+    static final String[] RESOURCE_FIELDS = { "script", "css" };
+
+    private final List<String> paths;
+    private final int concurrency;
+
+    /**
+     * @param paths other paths to request, relative to the ICN url
+     * @param concurrency the maximum number of requests running at the same time
+     */
+    WarmUp(List<String> paths, int concurrency) {
+        this.paths = paths;
+        this.concurrency = Math.max(1, concurrency);
+    }
+
+    List<String> getPaths() {
+        return paths;
+    }
+
+    int getConcurrency() {
+        return concurrency;
+    }
+
+    /**
+     * @param loadResult the response of the load operation
+     * @return the paths of the resources declared by the plug-in, relative to the ICN url
+     */
+    static List<String> resources(IcnResponse loadResult) {
+        List<String> res = new ArrayList<String>(RESOURCE_FIELDS.length);
+        String id = loadResult.get("id");
+        for (String field : RESOURCE_FIELDS) {
+            String resource = loadResult.get(field);
+            if (id != null && resource != null && !resource.isEmpty()) {
+                res.add(String.format(RESOURCE_PATH, id, resource));
+            }
+        }
+        return res;
+    }
+}
@@ -0,0 +1,290 @@
+package jenkins.plugin.icn;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import hudson.FilePath;
+import hudson.model.Cause;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.ParametersAction;
+import hudson.model.ParametersDefinitionProperty;
+import hudson.model.Result;
+import hudson.model.StringParameterDefinition;
+import hudson.model.StringParameterValue;
+import jenkins.plugins.icn.LoadPluginBuilder;
+
+/**
+ * Concurrent builds of {@link LoadPluginBuilder} against the {@link IcnStandInServer}.
+ * By default a small run checks that parallel deploys work. To size Jenkins and ICN,
+ * run it alone with more builds and realistic latencies, for instance:
+ * <pre>mvn test -Dtest=IcnLoadTest -Dicn.loadtest.builds=300 -Dicn.loadtest.loadLatency=30000
+ *     -Dicn.loadtest.serializeLoads=true -Djenkins.test.timeout=3600</pre>
+ * To run the builds against the latencies of a real ICN instead, give a trace written
+ * by the plug-in, replayed by the {@link IcnReplayServer} as many times faster as the speed:
+ * <pre>mvn test -Dtest=IcnLoadTest#testConcurrentBuilds -Dicn.loadtest.builds=300
+ *     -Dicn.loadtest.trace=/var/jenkins/icn-trace.jsonl -Dicn.loadtest.speed=1</pre>
+ * A report of build durations and server concurrency is printed at the end.
+ */
+public class IcnLoadTest {
+
+    private static final int BUILDS = Integer.getInteger("icn.loadtest.builds", 20);
+    private static final int EXECUTORS = Integer.getInteger("icn.loadtest.executors", BUILDS);
+    private static final long LOGON_LATENCY = Long.getLong("icn.loadtest.logonLatency", 20);
+    private static final long LOAD_LATENCY = Long.getLong("icn.loadtest.loadLatency", 100);
+    private static final long SAVE_LATENCY = Long.getLong("icn.loadtest.saveLatency", 20);
+    private static final double ERROR_RATE = Double.parseDouble(System.getProperty("icn.loadtest.errorRate", "0"));
+    private static final boolean SERIALIZE_LOADS = Boolean.getBoolean("icn.loadtest.serializeLoads");
+    private static final String TRACE = System.getProperty("icn.loadtest.trace");
+    private static final double SPEED = Double.parseDouble(System.getProperty("icn.loadtest.speed", "1"));
+
+    @Rule public JenkinsRule j = new JenkinsRule();
+    private IcnStandInServer icn;
+
+    @Before
+    public void setUp() throws Exception {
+        icn = new IcnStandInServer();
+    }
+
+    @After
+    public void tearDown() {
+        icn.stop();
+    }
+
+    /**
+     * Fire builds of as many jobs at the same time and check they all succeed
+     * @throws Exception
+     */
+    @Test
+    public void testConcurrentBuilds() throws Exception {
+
+        // Latencies vary by +/- 50% around the configured value
+        icn.setLatency(IcnStubServer.LOGON, LOGON_LATENCY / 2, LOGON_LATENCY * 3 / 2)
+                .setLatency(IcnStubServer.LOAD, LOAD_LATENCY / 2, LOAD_LATENCY * 3 / 2)
+                .setLatency(IcnStubServer.SAVE, SAVE_LATENCY / 2, SAVE_LATENCY * 3 / 2)
+                .setErrorRate(IcnStubServer.LOAD, ERROR_RATE)
+                .setSerializeLoads(SERIALIZE_LOADS);
+        IcnReplayServer replay = TRACE == null ? null : new IcnReplayServer(new File(TRACE), SPEED);
+        try {
+            runConcurrentBuilds(replay);
+        } finally {
+            if (replay != null) {
+                replay.stop();
+            }
+        }
+
+    }
+
+    /**
+     * @param replay the server replaying a trace to run the builds against, <code>null</code> for the stand-in server
+     */
+    private void runConcurrentBuilds(IcnReplayServer replay) throws Exception {
+
+        String url = replay == null ? icn.getUrl("node1") : replay.getUrl("node1");
+        j.jenkins.setNumExecutors(EXECUTORS);
+
+        // One job per build, the queue would merge builds of the same job
+        List<FreeStyleProject> projects = new ArrayList<FreeStyleProject>(BUILDS);
+        for (int i = 0; i < BUILDS; i++) {
+            FreeStyleProject project = j.createFreeStyleProject("deploy" + i);
+            project.getBuildersList().add(new LoadPluginBuilder(url, "someadmin", "somepwd",
+                    "/opt/plugins/plugin" + i + ".jar"));
+            projects.add(project);
+        }
+
+        long start = System.currentTimeMillis();
+        List<Future<FreeStyleBuild>> futures = new ArrayList<Future<FreeStyleBuild>>(BUILDS);
+        for (FreeStyleProject project : projects) {
+            futures.add(project.scheduleBuild2(0));
+        }
+        long[] durations = new long[BUILDS];
+        int failed = 0;
+        for (int i = 0; i < BUILDS; i++) {
+            FreeStyleBuild build = futures.get(i).get();
+            durations[i] = build.getDuration();
+            if (build.getResult() != Result.SUCCESS) {
+                failed++;
+            }
+        }
+        long elapsed = System.currentTimeMillis() - start;
+
+        Arrays.sort(durations);
+        System.out.println("===== ICN load test =====");
+        System.out.println(BUILDS + " builds on " + EXECUTORS + " executors in " + elapsed + " ms, " + failed + " failed");
+        System.out.println(String.format("Throughput: %.2f deploys/s", BUILDS * 1000.0 / Math.max(1, elapsed)));
+        System.out.println("Build duration (ms): p50 " + percentile(durations, 50) + ", p95 " + percentile(durations, 95)
+                + ", max " + durations[BUILDS - 1]);
+        for (String service : new String[] { IcnStubServer.LOGON, IcnStubServer.LOAD, IcnStubServer.SAVE }) {
+            if (replay != null) {
+                System.out.println(service + ": " + replay.getRequests(service) + " requests replayed from " + TRACE);
+            } else {
+                System.out.println(service + ": " + icn.getRequests(service) + " requests, " + icn.getErrors(service)
+                        + " errors, " + icn.getMaxConcurrency(service) + " at most at the same time");
+            }
+        }
+
+        // A trace replays the failures it recorded
+        if (replay == null && ERROR_RATE == 0) {
+            Assert.assertEquals(0, failed);
+            Assert.assertEquals(BUILDS, icn.getRequests(IcnStubServer.LOAD));
+            Assert.assertEquals(BUILDS, icn.getRequests(IcnStubServer.SAVE));
+        }
+
+    }
+
+    /**
+     * Check if builds log on again when ICN forgot their session
+     * @throws Exception
+     */
+    @Test
+    public void testSessionExpiredOnServer() throws Exception {
+
+        icn.setPrefix(false);
+        FreeStyleProject project = j.createFreeStyleProject();
+        project.getBuildersList().add(new LoadPluginBuilder(icn.getUrl("node1"), "someadmin", "somepwd", "/opt/plugins/plugin.jar"));
+
+        j.assertBuildStatusSuccess(project.scheduleBuild2(0));
+        icn.expireSessions();
+        j.assertBuildStatusSuccess(project.scheduleBuild2(0));
+
+        Assert.assertEquals(2, icn.getRequests(IcnStubServer.LOGON));
+        Assert.assertEquals(3, icn.getRequests(IcnStubServer.LOAD));
+        Assert.assertEquals(1, icn.getErrors(IcnStubServer.LOAD));
+        // Same configuration the second time, not saved again
+        Assert.assertEquals(1, icn.getRequests(IcnStubServer.SAVE));
+
+    }
+
+    /**
+     * Check if builds reloading the same plug-in at the same time share one call to ICN
+     * @throws Exception
+     */
+    @Test
+    public void testSameFileCoalesced() throws Exception {
+
+        // Jars readable from the controller are digested, all builds reload the same one
+        FilePath jar = j.jenkins.getRootPath().child("plugins-same/plugin.jar");
+        jar.copyFrom(new ByteArrayInputStream(PluginJars.plugin("com.example.Sample", "version 1")));
+        Assert.assertEquals(1, reloadTogether(jar.getRemote(), 5));
+        Assert.assertEquals(1, icn.getRequests(IcnStubServer.SAVE));
+
+    }
+
+    /**
+     * Check if builds reloading the same plug-in from the ICN server share one follow-up reload
+     * @throws Exception
+     */
+    @Test
+    public void testSameFileFollowUp() throws Exception {
+
+        // Jars on the ICN server can't be digested, builds coming during the first reload share one follow-up
+        Assert.assertEquals(2, reloadTogether("/opt/plugins/plugin.jar", 5));
+        Assert.assertEquals(1, icn.getRequests(IcnStubServer.SAVE));
+
+    }
+
+    /**
+     * Run builds of one file each, the first reload is answered once all other builds wait for it
+     * @return the number of reloads ICN got
+     */
+    private long reloadTogether(String file, int builds) throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        icn.holdLoads(release);
+        j.jenkins.setNumExecutors(builds);
+        List<FreeStyleProject> projects = new ArrayList<FreeStyleProject>(builds);
+        List<Future<FreeStyleBuild>> futures = new ArrayList<Future<FreeStyleBuild>>(builds);
+        for (int i = 0; i < builds; i++) {
+            FreeStyleProject project = j.createFreeStyleProject("same" + i);
+            project.getBuildersList().add(new LoadPluginBuilder(icn.getUrl("node1"), "someadmin", "somepwd", file));
+            projects.add(project);
+            futures.add(project.scheduleBuild2(0));
+        }
+        try {
+            long end = System.currentTimeMillis() + 30000;
+            while ((waiting(projects) < builds - 1 || icn.getRequests(IcnStubServer.LOAD) == 0) && System.currentTimeMillis() < end) {
+                Thread.sleep(50);
+            }
+            Assert.assertEquals(builds - 1, waiting(projects));
+            Assert.assertEquals(1, icn.getRequests(IcnStubServer.LOAD));
+        } finally {
+            release.countDown();
+        }
+        for (Future<FreeStyleBuild> future : futures) {
+            j.assertBuildStatusSuccess(future);
+        }
+        return icn.getRequests(IcnStubServer.LOAD);
+    }
+
+    /**
+     * @return the number of builds waiting for the reload of another one
+     */
+    private static int waiting(List<FreeStyleProject> projects) throws IOException {
+        int waiting = 0;
+        for (FreeStyleProject project : projects) {
+            FreeStyleBuild build = project.getLastBuild();
+            if (build != null && JenkinsRule.getLog(build).contains("is being reloaded by another build")) {
+                waiting++;
+            }
+        }
+        return waiting;
+    }
+
+    /**
+     * Check if concurrent builds of the same job, so of the same build step, each
+     * deploy their own plug-in to their own node
+     * @throws Exception
+     */
+    @Test
+    public void testConcurrentBuildsOfOneJob() throws Exception {
+
+        icn.setLatency(IcnStubServer.LOGON, LOGON_LATENCY / 2, LOGON_LATENCY * 3 / 2)
+                .setLatency(IcnStubServer.LOAD, LOAD_LATENCY / 2, LOAD_LATENCY * 3 / 2)
+                .setLatency(IcnStubServer.SAVE, SAVE_LATENCY / 2, SAVE_LATENCY * 3 / 2);
+        j.jenkins.setNumExecutors(EXECUTORS);
+
+        FreeStyleProject project = j.createFreeStyleProject();
+        project.setConcurrentBuild(true);
+        project.addProperty(new ParametersDefinitionProperty(new StringParameterDefinition("NODE", ""),
+                new StringParameterDefinition("PLUGIN", "")));
+        project.getBuildersList().add(new LoadPluginBuilder(icn.getUrl("${NODE}"), "someadmin", "somepwd",
+                "/opt/plugins/${PLUGIN}.jar"));
+
+        // Builds with different parameters are not merged by the queue
+        List<Future<FreeStyleBuild>> futures = new ArrayList<Future<FreeStyleBuild>>(BUILDS);
+        for (int i = 0; i < BUILDS; i++) {
+            futures.add(project.scheduleBuild2(0, new Cause.UserIdCause(), new ParametersAction(
+                    new StringParameterValue("NODE", "node" + i), new StringParameterValue("PLUGIN", "plugin" + i))));
+        }
+
+        for (int i = 0; i < BUILDS; i++) {
+            FreeStyleBuild build = j.assertBuildStatusSuccess(futures.get(i));
+            String log = JenkinsRule.getLog(build);
+            for (int k = 0; k < BUILDS; k++) {
+                // Each build only sees its own plug-in
+                Assert.assertEquals(log, k == i, log.contains("/opt/plugins/plugin" + k + ".jar "));
+            }
+        }
+        Assert.assertEquals(BUILDS, icn.getRequests(IcnStubServer.LOGON));
+        Assert.assertEquals(BUILDS, icn.getRequests(IcnStubServer.LOAD));
+        Assert.assertEquals(BUILDS, icn.getRequests(IcnStubServer.SAVE));
+
+    }
+
+    private static long percentile(long[] sorted, int percentile) {
+        return sorted[Math.max(0, (int) Math.ceil(sorted.length * percentile / 100.0) - 1)];
+    }
+
+}
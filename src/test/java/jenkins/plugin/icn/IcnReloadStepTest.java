@@ -0,0 +1,120 @@
+package jenkins.plugin.icn;
+
+import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import hudson.model.Result;
+
+public class IcnReloadStepTest {
+
+    @Rule public JenkinsRule j = new JenkinsRule();
+    private IcnStubServer icn;
+    private WorkflowJob job;
+
+    @Before
+    public void setUp() throws Exception {
+        icn = new IcnStubServer();
+        icn.respond(IcnStubServer.LOGON, 200, "{}&&{\"security_token\":\"567465876\"}");
+        icn.respond(IcnStubServer.LOAD, 200, "{}&&{\"name\":\"plugin-name\",\"id\":\"plugin-id\","
+                + "\"version\":\"plugin-version\",\"configClass\":\"plugin-config-class\"}");
+        icn.respond(IcnStubServer.SAVE, 200, "{}&&{\"messages\":[{\"text\":\"This means success\"}]}");
+        job = j.jenkins.createProject(WorkflowJob.class, "pipeline");
+    }
+
+    @After
+    public void tearDown() {
+        icn.stop();
+    }
+
+    private void setScript(String file) {
+        job.setDefinition(new CpsFlowDefinition("icnReloadPlugin url: '" + icn.getUrl("node1") + "', "
+                + "username: 'someadmin', password: 'somepwd', file: '" + file + "'"));
+    }
+
+    /**
+     * Check if the step reloads plug-ins outside of a node block
+     * @throws Exception
+     */
+    @Test
+    public void testReload() throws Exception {
+
+        setScript("/some/path");
+        WorkflowRun run = j.assertBuildStatusSuccess(job.scheduleBuild2(0));
+
+        Assert.assertEquals(1, icn.getRequests(IcnStubServer.LOAD).size());
+        Assert.assertEquals("/some/path", icn.getRequests(IcnStubServer.LOAD).get(0).params.get("fileName"));
+        Assert.assertEquals(1, icn.getRequests(IcnStubServer.SAVE).size());
+        j.assertLogContains("successfully reloaded", run);
+
+    }
+
+    /**
+     * Check if a failed reload fails the Pipeline
+     * @throws Exception
+     */
+    @Test
+    public void testFailure() throws Exception {
+
+        icn.respond(IcnStubServer.LOGON, 500, "");
+        setScript("/some/path");
+        WorkflowRun run = j.assertBuildStatus(Result.FAILURE, job.scheduleBuild2(0));
+
+        Assert.assertEquals(0, icn.getRequests(IcnStubServer.LOAD).size());
+        j.assertLogContains("ICN plug-in reload failed", run);
+
+    }
+
+    /**
+     * Check if steps over the number of reload threads wait for one and say so, and
+     * if aborting the Pipeline while ICN is slow aborts the step once
+     * @throws Exception
+     */
+    @Test
+    public void testAbort() throws Exception {
+
+        // 8 reload threads by default
+        int threads = 8;
+        IcnStandInServer slow = new IcnStandInServer().setLatency(IcnStubServer.LOAD, 3000, 3000);
+        try {
+            job.setDefinition(new CpsFlowDefinition("icnReloadPlugin url: '" + slow.getUrl("node1") + "', "
+                    + "username: 'someadmin', password: 'somepwd', file: '/some/path'"));
+            WorkflowRun[] runs = new WorkflowRun[threads + 2];
+            job.setConcurrentBuild(true);
+            for (int i = 0; i < runs.length; i++) {
+                runs[i] = job.scheduleBuild2(0).getStartCondition().get();
+            }
+            long end = System.currentTimeMillis() + 10000;
+            while (slow.getRequests(IcnStubServer.LOAD) < threads && System.currentTimeMillis() < end) {
+                Thread.sleep(50);
+            }
+            Thread.sleep(500);
+            // The other steps wait for a thread
+            Assert.assertEquals(threads, slow.getRequests(IcnStubServer.LOAD));
+
+            runs[0].doStop();
+            j.assertBuildStatus(Result.ABORTED, j.waitForCompletion(runs[0]));
+            for (int i = 1; i < runs.length; i++) {
+                j.assertBuildStatusSuccess(j.waitForCompletion(runs[i]));
+            }
+            int waited = 0;
+            for (WorkflowRun run : runs) {
+                if (JenkinsRule.getLog(run).contains("Waiting for a reload thread")) {
+                    waited++;
+                }
+            }
+            Assert.assertEquals(2, waited);
+            j.assertLogNotContains("IllegalStateException", runs[0]);
+        } finally {
+            slow.stop();
+        }
+
+    }
+
+}
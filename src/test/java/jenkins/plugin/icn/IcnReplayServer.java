@@ -0,0 +1,258 @@
+package jenkins.plugin.icn;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local server answering like the ICN server a trace of the plug-in was recorded
+ * on: each call gets the next recorded response of its method and path, in the
+ * order of the trace and starting over once they were all used. The responses come
+ * after the recorded duration divided by the speed, with the recorded status, the
+ * recorded fields and a body of the recorded size. Calls which got no response are
+ * answered by closing the connection.
+ * <p>
+ * Retries are replayed as recorded: after an answer which failed, with a 5xx or no
+ * response, the next call of the same method and path gets the next attempt if one
+ * was recorded. A client retrying less than the recorded one gets the attempts left
+ * for its next calls, and calls made in parallel may get each other's attempts.
+ * <p>
+ * Sessions are not checked, and a logon gets a new security token and cookie since
+ * the trace has none. The node part of the url is ignored.
+ */
+public class IcnReplayServer {
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    /** Recorded calls by method and path, each with its attempts */
+    private final Map<String, Calls> calls = new LinkedHashMap<String, Calls>();
+    private final double speed;
+
+    /**
+     * @param trace the trace written by the plug-in
+     * @param speed how many times faster than recorded to answer, 1 for the real speed
+     * @throws IOException if the trace can't be read
+     */
+    public IcnReplayServer(File trace, double speed) throws IOException {
+        this.speed = speed;
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(trace), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                JSONObject call;
+                try {
+                    call = new JSONObject(line);
+                } catch (JSONException e) {
+                    // Cut while written
+                    continue;
+                }
+                String key = call.optString("method") + " " + call.optString("path");
+                Calls list = calls.get(key);
+                if (list == null) {
+                    list = new Calls(call.optString("method"), call.optString("path"));
+                    calls.put(key, list);
+                }
+                list.add(call);
+            }
+        } finally {
+            reader.close();
+        }
+        server = LocalHttpServers.start(new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                IcnReplayServer.this.handle(exchange);
+            }
+        }, executor);
+    }
+
+    /**
+     * @param node a path to tell nodes apart, as node1
+     * @return the url of ICN on this server, ending with a /
+     */
+    public String getUrl(String node) {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/" + node + "/navigator/";
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * @param path the path of the calls, relative to the ICN url, as {@link IcnStubServer#LOAD}
+     * @return the number of calls answered for this path, all methods together
+     */
+    public long getRequests(String path) {
+        long requests = 0;
+        for (Calls list : calls.values()) {
+            if (list.path.equals(path)) {
+                requests += list.requests.get();
+            }
+        }
+        return requests;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        drain(exchange.getRequestBody());
+        Calls list = null;
+        for (Calls c : calls.values()) {
+            if (c.method.equals(exchange.getRequestMethod()) && path.endsWith("/" + c.path)) {
+                list = c;
+            }
+        }
+        if (list == null) {
+            LocalHttpServers.send(exchange, 404, new byte[0]);
+            return;
+        }
+        JSONObject call = list.next();
+        try {
+            TimeUnit.MICROSECONDS.sleep((long) (call.optLong("ms") * 1000 / speed));
+        } catch (InterruptedException e) {
+            exchange.close();
+            return;
+        }
+        int status = (int) call.optLong("status");
+        if (status < 0) {
+            exchange.close();
+            return;
+        }
+        StringBuilder body = new StringBuilder();
+        JSONObject fields = call.optJSONObject("fields");
+        if (fields != null) {
+            body.append("{}&&");
+            try {
+                body.append(response(exchange, fields, call));
+            } catch (JSONException e) {
+                throw new IOException(e);
+            }
+        }
+        LocalHttpServers.send(exchange, status, pad(body, call.optLong("rsp")));
+    }
+
+    private static String response(HttpExchange exchange, JSONObject fields, JSONObject call) throws JSONException {
+        JSONObject json = new JSONObject();
+        for (Iterator<?> it = fields.keys(); it.hasNext();) {
+            String name = (String) it.next();
+            json.put(name, fields.get(name));
+        }
+        if (json.has("security_token")) {
+            json.put("security_token", UUID.randomUUID().toString());
+            exchange.getResponseHeaders().add("Set-Cookie", "JSESSIONID=" + UUID.randomUUID() + "; Path=/; HttpOnly");
+        }
+        for (String array : new String[] { "messages", "errors" }) {
+            JSONArray texts = call.optJSONArray(array);
+            if (texts != null) {
+                JSONArray messages = new JSONArray();
+                for (int i = 0; i < texts.length(); i++) {
+                    messages.put(new JSONObject().put("text", texts.getString(i)));
+                }
+                json.put(array, messages);
+            }
+        }
+        return json.toString();
+    }
+
+    /**
+     * @return the body, made as long as the recorded one with spaces ICN would ignore
+     */
+    private static byte[] pad(StringBuilder body, long size) throws IOException {
+        byte[] bytes = body.toString().getBytes("UTF-8");
+        if (bytes.length >= size) {
+            return bytes;
+        }
+        byte[] padded = new byte[(int) size];
+        System.arraycopy(bytes, 0, padded, 0, bytes.length);
+        for (int i = bytes.length; i < padded.length; i++) {
+            padded[i] = ' ';
+        }
+        return padded;
+    }
+
+    private static void drain(InputStream in) throws IOException {
+        byte[] buffer = new byte[4096];
+        while (in.read(buffer) != -1) {
+            // the recorded response doesn't depend on the request
+        }
+    }
+
+    /**
+     * The recorded calls of one method and path, and the next one to replay.
+     */
+    private static final class Calls {
+        private final String method;
+        private final String path;
+        /** The attempts of each call, in the order of their first attempt */
+        private final List<List<JSONObject>> recorded = new ArrayList<List<JSONObject>>();
+        private final AtomicInteger requests = new AtomicInteger();
+        private int next;
+        private List<JSONObject> current;
+        private int attempt;
+
+        Calls(String method, String path) {
+            this.method = method;
+            this.path = path;
+        }
+
+        /**
+         * Add a recorded line, as a retry of the last call to the same url and file
+         * if it is not a first attempt.
+         */
+        void add(JSONObject call) {
+            long attempt = call.optLong("attempt", 1);
+            if (attempt > 1) {
+                for (int i = recorded.size() - 1; i >= 0; i--) {
+                    List<JSONObject> attempts = recorded.get(i);
+                    JSONObject first = attempts.get(0);
+                    if (attempts.size() == attempt - 1 && first.optString("url").equals(call.optString("url"))
+                            && first.optString("file").equals(call.optString("file"))) {
+                        attempts.add(call);
+                        return;
+                    }
+                }
+            }
+            List<JSONObject> attempts = new ArrayList<JSONObject>();
+            attempts.add(call);
+            recorded.add(attempts);
+        }
+
+        /**
+         * @return the next attempt of the current call if the last one failed, the first attempt of the next call otherwise
+         */
+        synchronized JSONObject next() {
+            requests.incrementAndGet();
+            if (current != null && attempt < current.size() && isFailure(current.get(attempt - 1))) {
+                return current.get(attempt++);
+            }
+            current = recorded.get(next++ % recorded.size());
+            attempt = 1;
+            return current.get(0);
+        }
+
+        private static boolean isFailure(JSONObject call) {
+            long status = call.optLong("status");
+            return status < 0 || status >= 500;
+        }
+    }
+}
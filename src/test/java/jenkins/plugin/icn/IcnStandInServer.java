@@ -0,0 +1,294 @@
+package jenkins.plugin.icn;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local server emulating the ICN services used by the plug-in, unlike
+ * {@link IcnStubServer} which only plays scripted responses. It keeps real
+ * sessions, answers like ICN does and can be made slow, unreliable or strict,
+ * to test concurrency and size deployments:
+ * <ul>
+ * <li>latency, as a random duration in a range, per service</li>
+ * <li>error rate, as the probability of a 500, per service</li>
+ * <li>the <code>{}&amp;&amp;</code> secure prefix, on or off</li>
+ * <li>session expiry after a time to live, or on demand</li>
+ * <li>loadPlugin calls serialized as in ICN, or not</li>
+ * <li>loadPlugin calls held until the test releases them</li>
+ * </ul>
+ * Counters of requests, errors and concurrent requests are kept per service.
+ */
+public class IcnStandInServer {
+
+    private static final String SESSION_COOKIE = "JSESSIONID";
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final Map<String, Session> sessions = new ConcurrentHashMap<String, Session>();
+    private final Map<String, long[]> latencies = new ConcurrentHashMap<String, long[]>();
+    private final Map<String, Double> errorRates = new ConcurrentHashMap<String, Double>();
+    private final Map<String, Stats> stats = new ConcurrentHashMap<String, Stats>();
+    private final ReentrantLock loadLock = new ReentrantLock(true);
+    private volatile boolean prefix = true;
+    private volatile long sessionTtl;
+    private volatile boolean serializeLoads;
+    private volatile CountDownLatch loadRelease;
+
+    public IcnStandInServer() throws IOException {
+        for (String service : new String[] { IcnStubServer.LOGON, IcnStubServer.LOAD, IcnStubServer.SAVE }) {
+            stats.put(service, new Stats());
+        }
+        server = LocalHttpServers.start(new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                IcnStandInServer.this.handle(exchange);
+            }
+        }, executor);
+    }
+
+    /**
+     * @param node a path to tell nodes apart, as node1
+     * @return the url of ICN on this server, ending with a /
+     */
+    public String getUrl(String node) {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/" + node + "/navigator/";
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * Make a service take a random time between the given bounds to answer.
+     */
+    public IcnStandInServer setLatency(String service, long minMillis, long maxMillis) {
+        latencies.put(service, new long[] { minMillis, Math.max(minMillis, maxMillis) });
+        return this;
+    }
+
+    /**
+     * Make a service fail with a 500 with the given probability, between 0 and 1.
+     */
+    public IcnStandInServer setErrorRate(String service, double rate) {
+        errorRates.put(service, rate);
+        return this;
+    }
+
+    /**
+     * Turn the <code>{}&amp;&amp;</code> secure prefix of the responses on or off, on by default.
+     */
+    public IcnStandInServer setPrefix(boolean prefix) {
+        this.prefix = prefix;
+        return this;
+    }
+
+    /**
+     * Expire sessions this long after the logon, 0 (default) to keep them forever.
+     */
+    public IcnStandInServer setSessionTtl(long millis) {
+        this.sessionTtl = millis;
+        return this;
+    }
+
+    /**
+     * Process loadPlugin calls one at a time, in arrival order, as ICN does.
+     */
+    public IcnStandInServer setSerializeLoads(boolean serializeLoads) {
+        this.serializeLoads = serializeLoads;
+        return this;
+    }
+
+    /**
+     * Make loadPlugin calls wait until the latch is released before answering.
+     */
+    public IcnStandInServer holdLoads(CountDownLatch release) {
+        this.loadRelease = release;
+        return this;
+    }
+
+    /**
+     * Expire all current sessions, as a restart of ICN would.
+     */
+    public void expireSessions() {
+        sessions.clear();
+    }
+
+    public long getRequests(String service) {
+        return stats.get(service).requests.get();
+    }
+
+    /**
+     * @return the number of requests answered with something else than a success
+     */
+    public long getErrors(String service) {
+        return stats.get(service).errors.get();
+    }
+
+    /**
+     * @return the highest number of requests the service processed at the same time
+     */
+    public int getMaxConcurrency(String service) {
+        return stats.get(service).maxInFlight.get();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        String service = null;
+        for (String s : stats.keySet()) {
+            if (path.endsWith("/" + s)) {
+                service = s;
+            }
+        }
+        Map<String, String> params = LocalHttpServers.readParams(exchange.getRequestBody());
+        if (service == null) {
+            LocalHttpServers.send(exchange, 404, "");
+            return;
+        }
+
+        Stats st = stats.get(service);
+        st.requests.incrementAndGet();
+        st.enter();
+        boolean locked = false;
+        try {
+            if (IcnStubServer.LOAD.equals(service) && serializeLoads) {
+                loadLock.lockInterruptibly();
+                locked = true;
+            }
+            sleep(service);
+            CountDownLatch release = loadRelease;
+            if (IcnStubServer.LOAD.equals(service) && release != null) {
+                release.await();
+            }
+            int status;
+            String body;
+            Double errorRate = errorRates.get(service);
+            if (errorRate != null && ThreadLocalRandom.current().nextDouble() < errorRate) {
+                status = 500;
+                body = "{\"errors\":[{\"text\":\"Internal error\"}]}";
+            } else if (IcnStubServer.LOGON.equals(service)) {
+                status = 200;
+                body = logon(exchange, params);
+            } else if (!hasSession(exchange)) {
+                status = 401;
+                body = "";
+            } else if (IcnStubServer.LOAD.equals(service)) {
+                status = 200;
+                body = loadPlugin(params);
+            } else {
+                status = 200;
+                body = saveConfiguration(params);
+            }
+            if (status != 200 || body.contains("\"errors\"")) {
+                st.errors.incrementAndGet();
+            }
+            LocalHttpServers.send(exchange, status, body.isEmpty() || !prefix ? body : "{}&&" + body);
+        } catch (InterruptedException e) {
+            LocalHttpServers.send(exchange, 503, "");
+        } finally {
+            if (locked) {
+                loadLock.unlock();
+            }
+            st.leave();
+        }
+    }
+
+    private String logon(HttpExchange exchange, Map<String, String> params) {
+        String userid = params.get("userid");
+        if (userid == null || userid.isEmpty() || params.get("password") == null || params.get("password").isEmpty()) {
+            return "{\"errors\":[{\"text\":\"The user ID or password is not valid.\"}]}";
+        }
+        String id = UUID.randomUUID().toString();
+        Session session = new Session(UUID.randomUUID().toString(), System.currentTimeMillis());
+        sessions.put(id, session);
+        exchange.getResponseHeaders().add("Set-Cookie", SESSION_COOKIE + "=" + id + "; Path=/; HttpOnly");
+        return "{\"security_token\":\"" + session.token + "\",\"userid\":\"" + userid + "\",\"desktop\":\"admin\"}";
+    }
+
+    private boolean hasSession(HttpExchange exchange) {
+        String cookies = exchange.getRequestHeaders().getFirst("Cookie");
+        if (cookies == null) {
+            return false;
+        }
+        for (String cookie : cookies.split(";\\s*")) {
+            if (cookie.startsWith(SESSION_COOKIE + "=")) {
+                String id = cookie.substring(SESSION_COOKIE.length() + 1);
+                Session session = sessions.get(id);
+                if (session != null && sessionTtl > 0 && System.currentTimeMillis() - session.created > sessionTtl) {
+                    sessions.remove(id);
+                    session = null;
+                }
+                return session != null && session.token.equals(exchange.getRequestHeaders().getFirst("security_token"));
+            }
+        }
+        return false;
+    }
+
+    private static String loadPlugin(Map<String, String> params) {
+        String file = params.get("fileName");
+        if (file == null || !file.endsWith(".jar")) {
+            return "{\"errors\":[{\"text\":\"The plug-in file " + file + " could not be loaded.\"}]}";
+        }
+        String id = file.substring(file.lastIndexOf('/') + 1, file.length() - ".jar".length());
+        return "{\"name\":\"" + id + " plug-in\",\"id\":\"" + id + "\",\"version\":\"1.0\","
+                + "\"configClass\":\"com.example." + id + ".ConfigurationPane\","
+                + "\"features\":[{\"id\":\"" + id + "Feature\",\"iconUrl\":\"featureIcon\"}],\"actions\":[]}";
+    }
+
+    private static String saveConfiguration(Map<String, String> params) {
+        if (!"update".equals(params.get("action")) || params.get("json_post") == null) {
+            return "{\"errors\":[{\"text\":\"Missing configuration.\"}]}";
+        }
+        return "{\"messages\":[{\"number\":\"1000\",\"text\":\"The " + params.get("id") + " plug-in configuration was saved.\"}]}";
+    }
+
+    private void sleep(String service) throws InterruptedException {
+        long[] latency = latencies.get(service);
+        if (latency != null && latency[1] > 0) {
+            TimeUnit.MILLISECONDS.sleep(latency[0] + ThreadLocalRandom.current().nextLong(latency[1] - latency[0] + 1));
+        }
+    }
+
+    private static final class Session {
+        private final String token;
+        private final long created;
+
+        Session(String token, long created) {
+            this.token = token;
+            this.created = created;
+        }
+    }
+
+    private static final class Stats {
+        private final AtomicLong requests = new AtomicLong();
+        private final AtomicLong errors = new AtomicLong();
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicInteger maxInFlight = new AtomicInteger();
+
+        void enter() {
+            int n = inFlight.incrementAndGet();
+            int max;
+            while ((max = maxInFlight.get()) < n && !maxInFlight.compareAndSet(max, n)) {
+                // retry
+            }
+        }
+
+        void leave() {
+            inFlight.decrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package jenkins.plugin.icn;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Minimal HTTP server answering the ICN services used by the plug-in, so
+ * tests go through real HTTP requests. Responses are set per service and
+ * every request is recorded.
+ */
+public class IcnStubServer {
+
+    public static final String LOGON = "jaxrs/logon";
+    public static final String LOAD = "jaxrs/admin/loadPlugin";
+    public static final String SAVE = "jaxrs/admin/configuration";
+    /**
+     * Files PUT under /dav/ are accepted and only their size is recorded
+     */
+    public static final String UPLOAD = "dav";
+
+    private final HttpServer server;
+    private final Map<String, Response> responses = new ConcurrentHashMap<String, Response>();
+    private final Map<String, LinkedList<Response>> nextResponses = new HashMap<String, LinkedList<Response>>();
+    private final List<Request> requests = Collections.synchronizedList(new ArrayList<Request>());
+    /** Latency of other paths answered with 200, by path then by plug-in file last loaded */
+    private final Map<String, Map<String, Long>> pages = new ConcurrentHashMap<String, Map<String, Long>>();
+    private volatile String lastLoaded = "";
+
+    public IcnStubServer() throws IOException {
+        server = LocalHttpServers.start(new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                IcnStubServer.this.handle(exchange);
+            }
+        }, Executors.newCachedThreadPool());
+    }
+
+    /**
+     * @param node a path to tell nodes apart, as node1
+     * @return the url of ICN on this server, ending with a /
+     */
+    public String getUrl(String node) {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/" + node + "/navigator/";
+    }
+
+    public void stop() {
+        server.stop(0);
+    }
+
+    /**
+     * @return the url to upload files to on this server, ending with a /
+     */
+    public String getUploadUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/" + UPLOAD + "/";
+    }
+
+    /**
+     * Set the response of a service for all next calls.
+     */
+    public void respond(String service, int status, String body) {
+        responses.put(service, new Response(status, body));
+    }
+
+    /**
+     * Set the response of the next call to a service only, before going back
+     * to the one set by {@link #respond(String, int, String)}.
+     */
+    public synchronized void respondOnce(String service, int status, String body) {
+        LinkedList<Response> queue = nextResponses.get(service);
+        if (queue == null) {
+            queue = new LinkedList<Response>();
+            nextResponses.put(service, queue);
+        }
+        queue.add(new Response(status, body));
+    }
+
+    /**
+     * Answer the requests to a path with 200, after the given time while the given
+     * plug-in file is the last one loaded.
+     * @param path the end of the path
+     * @param file the plug-in file, as sent to loadPlugin
+     * @param millis the latency of the path while the file is loaded
+     */
+    public synchronized void setLatency(String path, String file, long millis) {
+        Map<String, Long> byFile = pages.get(path);
+        if (byFile == null) {
+            byFile = new ConcurrentHashMap<String, Long>();
+            pages.put(path, byFile);
+        }
+        byFile.put(file, millis);
+    }
+
+    /**
+     * @return the requests received for a service, in order
+     */
+    public List<Request> getRequests(String service) {
+        List<Request> res = new ArrayList<Request>();
+        synchronized (requests) {
+            for (Request r : requests) {
+                if (service.equals(r.service)) {
+                    res.add(r);
+                }
+            }
+        }
+        return res;
+    }
+
+    /**
+     * @return the requests received for a path ending with the given one, in order
+     */
+    public List<Request> getRequestsTo(String path) {
+        List<Request> res = new ArrayList<Request>();
+        synchronized (requests) {
+            for (Request r : requests) {
+                if (r.path.endsWith(path)) {
+                    res.add(r);
+                }
+            }
+        }
+        return res;
+    }
+
+    private synchronized Response nextResponse(String service) {
+        LinkedList<Response> queue = nextResponses.get(service);
+        if (queue != null && !queue.isEmpty()) {
+            return queue.removeFirst();
+        }
+        return responses.get(service);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        if ("PUT".equals(exchange.getRequestMethod()) && path.startsWith("/" + UPLOAD + "/")) {
+            handleUpload(exchange, path);
+            return;
+        }
+        String service = null;
+        for (String s : new String[] { LOGON, LOAD, SAVE }) {
+            if (path.endsWith("/" + s)) {
+                service = s;
+            }
+        }
+        Request request = new Request(service, path, LocalHttpServers.readParams(exchange.getRequestBody()),
+                exchange.getRequestHeaders().getFirst("security_token"),
+                exchange.getRequestHeaders().getFirst("Cookie"), exchange.getRequestHeaders().getFirst("Authorization"));
+        requests.add(request);
+        if (LOAD.equals(service) && request.params.get("fileName") != null) {
+            lastLoaded = request.params.get("fileName");
+        }
+        if (service == null && servePage(exchange, path)) {
+            return;
+        }
+
+        Response response = service == null ? null : nextResponse(service);
+        if (response == null) {
+            response = new Response(404, "");
+        }
+        if (LOGON.equals(service) && response.status == 200) {
+            exchange.getResponseHeaders().add("Set-Cookie", "JSESSIONID=session" + requests.size() + "; Path=/");
+        }
+        LocalHttpServers.send(exchange, response.status, response.body);
+    }
+
+    private boolean servePage(HttpExchange exchange, String path) throws IOException {
+        for (Map.Entry<String, Map<String, Long>> page : pages.entrySet()) {
+            if (path.endsWith(page.getKey())) {
+                Long latency = page.getValue().get(lastLoaded);
+                if (latency != null) {
+                    try {
+                        Thread.sleep(latency);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                LocalHttpServers.send(exchange, 200, "ok");
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void handleUpload(HttpExchange exchange, String path) throws IOException {
+        InputStream in = exchange.getRequestBody();
+        byte[] buffer = new byte[4096];
+        long size = 0;
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            size += n;
+        }
+        Map<String, String> params = new HashMap<String, String>();
+        params.put("size", String.valueOf(size));
+        requests.add(new Request(UPLOAD, path, params, null, exchange.getRequestHeaders().getFirst("Cookie"),
+                exchange.getRequestHeaders().getFirst("Authorization")));
+        exchange.sendResponseHeaders(201, -1);
+        exchange.close();
+    }
+
+    private static class Response {
+        private final int status;
+        private final String body;
+
+        Response(int status, String body) {
+            this.status = status;
+            this.body = body;
+        }
+    }
+
+    /**
+     * A request received by the server.
+     */
+    public static class Request {
+        public final String service;
+        public final String path;
+        public final Map<String, String> params;
+        public final String securityToken;
+        public final String cookie;
+        public final String authorization;
+
+        Request(String service, String path, Map<String, String> params, String securityToken, String cookie,
+                String authorization) {
+            this.service = service;
+            this.path = path;
+            this.params = params;
+            this.securityToken = securityToken;
+            this.cookie = cookie;
+            this.authorization = authorization;
+        }
+    }
+}
@@ -1,167 +1,670 @@
 package jenkins.plugin.icn;
 
+import java.io.ByteArrayInputStream;
 import java.nio.file.Files;
+import java.util.List;
 
-import org.apache.commons.httpclient.HttpClient;
-import org.apache.commons.httpclient.NameValuePair;
-import org.apache.commons.httpclient.methods.PostMethod;
-import org.apache.commons.httpclient.params.HttpClientParams;
-import org.apache.tools.ant.filters.StringInputStream;
+import org.apache.commons.codec.binary.Base64;
 import org.json.JSONArray;
 import org.json.JSONObject;
+import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
-import org.junit.runner.RunWith;
 import org.jvnet.hudson.test.JenkinsRule;
-import org.mockito.Matchers;
-import org.mockito.Mockito;
-import org.mockito.invocation.InvocationOnMock;
-import org.mockito.stubbing.Answer;
-import org.powermock.api.mockito.PowerMockito;
-import org.powermock.core.classloader.annotations.PowerMockIgnore;
-import org.powermock.core.classloader.annotations.PrepareForTest;
-import org.powermock.modules.junit4.PowerMockRunner;
 
+import hudson.FilePath;
 import hudson.model.FreeStyleBuild;
 import hudson.model.FreeStyleProject;
+import hudson.model.Result;
+import jenkins.plugin.icn.IcnStubServer.Request;
+import jenkins.plugins.icn.IcnReloadAction;
 import jenkins.plugins.icn.LoadPluginBuilder;
+import jenkins.plugins.icn.PhaseTiming;
+import jenkins.plugins.icn.SuccessPolicy;
 
-@RunWith(PowerMockRunner.class)
-@PrepareForTest(LoadPluginBuilder.class)
-@PowerMockIgnore({"javax.crypto.*" })
 public class LoadPluginBuilderTest {
 
     @Rule public JenkinsRule j = new JenkinsRule();
     private FreeStyleProject project;
     private FreeStyleBuild build;
-    
+
     private LoadPluginBuilder buildStep;
-    private HttpClient c;
-    private PostMethod logonPost;
-    private PostMethod loadPost;
-    private PostMethod savePost;
+    private IcnStubServer icn;
     private JSONObject rsp1;
     private JSONObject rsp2;
     private JSONObject rsp3;
-    
+
     @Before
     public void setUp() throws Exception {
-        
+
+        icn = new IcnStubServer();
+
         // Create a Freestyle job with our build step
         project = j.createFreeStyleProject();
-        buildStep = new LoadPluginBuilder("http://nevermind/navigator/", "someadmin", "somepwd", "/some/path");
+        buildStep = new LoadPluginBuilder(icn.getUrl("node1"), "someadmin", "somepwd", "/some/path");
         project.getBuildersList().add(buildStep);
-        
-        // Common mock code
-        c = Mockito.mock(HttpClient.class);
-        logonPost = Mockito.mock(PostMethod.class);
-        loadPost = Mockito.mock(PostMethod.class);
-        savePost = Mockito.mock(PostMethod.class);
-        
-        Mockito.when(c.getParams()).thenReturn(Mockito.mock(HttpClientParams.class));
-        PowerMockito.whenNew(HttpClient.class).withNoArguments().thenReturn(c);
-        PowerMockito.whenNew(PostMethod.class).withArguments(Matchers.anyString()).then(new Answer<PostMethod>() {
-          @Override
-            public PostMethod answer(InvocationOnMock invocation) throws Throwable {
-                String url = invocation.getArgumentAt(0, String.class);
-                if (url.contains("logon")) {
-                    return logonPost;
-                } else if (url.contains("loadPlugin")) {
-                    return loadPost;
-                } else if (url.contains("configuration")) {
-                    return savePost;
-                } else {
-                    throw new Exception("Unexpected call to url " + url);
-                }
-            }  
-        });
-        
-        Mockito.when(logonPost.getStatusCode()).thenReturn(200);
-        Mockito.when(loadPost.getStatusCode()).thenReturn(200);
-        Mockito.when(savePost.getStatusCode()).thenReturn(200);
 
         rsp1 = new JSONObject();
         rsp1.put("security_token", "567465876");
-        
+
         rsp2 = new JSONObject();
         rsp2.put("name", "plugin-name");
         rsp2.put("id", "plugin-id");
         rsp2.put("version", "plugin-version");
         rsp2.put("configClass", "plugin-config-class");
-        
+
         rsp3 = new JSONObject();
         JSONArray ar = new JSONArray();
         rsp3.put("messages", ar);
         JSONObject mes = new JSONObject();
         ar.put(mes);
         mes.put("text", "This means success");
-        Mockito.when(logonPost.getResponseBodyAsStream()).thenReturn(new StringInputStream("{}&&" + rsp1.toString()));
-        Mockito.when(loadPost.getResponseBodyAsStream()).thenReturn(new StringInputStream("{}&&" + rsp2.toString()));
-        Mockito.when(savePost.getResponseBodyAsStream()).thenReturn(new StringInputStream("{}&&" + rsp3.toString()));
-        
+        icn.respond(IcnStubServer.LOGON, 200, "{}&&" + rsp1.toString());
+        icn.respond(IcnStubServer.LOAD, 200, "{}&&" + rsp2.toString());
+        icn.respond(IcnStubServer.SAVE, 200, "{}&&" + rsp3.toString());
+
+    }
+
+    @After
+    public void tearDown() {
+        icn.stop();
     }
-    
+
     /**
      * Check if the logon is correctly applied and used in future requests
      * @throws Exception
      */
     @Test
     public void testLogon() throws Exception {
-        
+
         build = project.scheduleBuild2(0).get();
-        
-        Mockito.verify(logonPost).addParameter(Matchers.eq(new NameValuePair("userid", "someadmin")));
-        Mockito.verify(logonPost).addParameter(Matchers.eq(new NameValuePair("password", "somepwd")));
-        Mockito.verify(logonPost).addParameter(Matchers.eq(new NameValuePair("desktop", "admin")));
-        Mockito.verify(c).executeMethod(Matchers.eq(logonPost));
-        
-        // All future requests should embed the security_token
-        Mockito.verify(loadPost).addRequestHeader(Matchers.matches("^security_token$"), Matchers.matches("^567465876$"));
-        Mockito.verify(savePost).addRequestHeader(Matchers.matches("^security_token$"), Matchers.matches("^567465876$"));
-        
+
+        List<Request> logons = icn.getRequests(IcnStubServer.LOGON);
+        Assert.assertEquals(1, logons.size());
+        Assert.assertEquals("someadmin", logons.get(0).params.get("userid"));
+        Assert.assertEquals("somepwd", logons.get(0).params.get("password"));
+        Assert.assertEquals("admin", logons.get(0).params.get("desktop"));
+
+        // All future requests should embed the security_token and the session cookie
+        Request load = icn.getRequests(IcnStubServer.LOAD).get(0);
+        Request save = icn.getRequests(IcnStubServer.SAVE).get(0);
+        Assert.assertEquals("567465876", load.securityToken);
+        Assert.assertEquals("567465876", save.securityToken);
+        Assert.assertTrue(load.cookie.contains("JSESSIONID="));
+        Assert.assertTrue(save.cookie.contains("JSESSIONID="));
+
         Assert.assertTrue(Files.readAllLines(build.getLogFile().toPath()).contains("Finished: SUCCESS"));
-        
+
     }
-    
+
     /**
      * Check if all three are chained correctly
      * @throws Exception
      */
     @Test
     public void testAll() throws Exception {
-        
+
         build = project.scheduleBuild2(0).get();
-        
-        Mockito.verify(loadPost).addParameter(Matchers.eq(new NameValuePair("fileName", "/some/path")));
-        Mockito.verify(logonPost).addParameter(Matchers.eq(new NameValuePair("desktop", "admin")));
-        Mockito.verify(c).executeMethod(Matchers.eq(loadPost));
-        
-        Mockito.verify(savePost).addParameter(Matchers.eq(new NameValuePair("action", "update")));
-        Mockito.verify(savePost).addParameter(Matchers.eq(new NameValuePair("id", "plugin-id")));
-        Mockito.verify(savePost).addParameter(Matchers.eq(new NameValuePair("configuration", "PluginConfig")));
-        Mockito.verify(c).executeMethod(Matchers.eq(savePost));
-        
+
+        List<Request> loads = icn.getRequests(IcnStubServer.LOAD);
+        Assert.assertEquals(1, loads.size());
+        Assert.assertEquals("/some/path", loads.get(0).params.get("fileName"));
+        Assert.assertEquals("admin", icn.getRequests(IcnStubServer.LOGON).get(0).params.get("desktop"));
+
+        List<Request> saves = icn.getRequests(IcnStubServer.SAVE);
+        Assert.assertEquals(1, saves.size());
+        Assert.assertEquals("update", saves.get(0).params.get("action"));
+        Assert.assertEquals("plugin-id", saves.get(0).params.get("id"));
+        Assert.assertEquals("PluginConfig", saves.get(0).params.get("configuration"));
+
         Assert.assertTrue(Files.readAllLines(build.getLogFile().toPath()).contains("Finished: SUCCESS"));
-        
+
     }
-    
+
     /**
      * Check if build is failed when login is failing
      * @throws Exception
      */
     @Test
     public void testFailOnLogonFailure() throws Exception {
-        
+
         rsp1.remove("security_token");
-        Mockito.when(logonPost.getResponseBodyAsStream()).thenReturn(new StringInputStream("{}&&" + rsp1.toString()));
+        icn.respond(IcnStubServer.LOGON, 200, "{}&&" + rsp1.toString());
         build = project.scheduleBuild2(0).get();
         System.out.println(Files.readAllLines(build.getLogFile().toPath()));
-        Mockito.verify(c, Mockito.never()).executeMethod(Matchers.eq(loadPost));
-        Mockito.verify(c, Mockito.never()).executeMethod(Matchers.eq(savePost));
+        Assert.assertTrue(icn.getRequests(IcnStubServer.LOAD).isEmpty());
+        Assert.assertTrue(icn.getRequests(IcnStubServer.SAVE).isEmpty());
         Assert.assertTrue(Files.readAllLines(build.getLogFile().toPath()).contains("Finished: FAILURE"));
-        
+
+    }
+
+    /**
+     * Check if several plug-ins are reloaded with one logon
+     * @throws Exception
+     */
+    @Test
+    public void testBatchReload() throws Exception {
+
+        buildStep = new LoadPluginBuilder(icn.getUrl("node1"), "someadmin", "somepwd", "/some/path\n/other/path, /third/path");
+        buildStep.setConcurrency(2);
+        project.getBuildersList().replace(buildStep);
+        build = project.scheduleBuild2(0).get();
+
+        Assert.assertEquals(1, icn.getRequests(IcnStubServer.LOGON).size());
+        List<Request> loads = icn.getRequests(IcnStubServer.LOAD);
+        Assert.assertEquals(3, loads.size());
+        Assert.assertTrue(hasParam(loads, "fileName", "/some/path"));
+        Assert.assertTrue(hasParam(loads, "fileName", "/other/path"));
+        Assert.assertTrue(hasParam(loads, "fileName", "/third/path"));
+        Assert.assertEquals(3, icn.getRequests(IcnStubServer.SAVE).size());
+
+        Assert.assertTrue(Files.readAllLines(build.getLogFile().toPath()).contains("Finished: SUCCESS"));
+
+    }
+
+    /**
+     * Check if all nodes of a cluster get their own session and reload
+     * @throws Exception
+     */
+    @Test
+    public void testClusterReload() throws Exception {
+
+        buildStep = new LoadPluginBuilder(icn.getUrl("node1") + "\n" + icn.getUrl("node2"), "someadmin", "somepwd", "/some/path");
+        project.getBuildersList().replace(buildStep);
+        build = project.scheduleBuild2(0).get();
+
+        List<Request> logons = icn.getRequests(IcnStubServer.LOGON);
+        Assert.assertEquals(2, logons.size());
+        Assert.assertNotEquals(logons.get(0).path, logons.get(1).path);
+        Assert.assertEquals(2, icn.getRequests(IcnStubServer.LOAD).size());
+        Assert.assertEquals(2, icn.getRequests(IcnStubServer.SAVE).size());
+
+        Assert.assertTrue(Files.readAllLines(build.getLogFile().toPath()).contains("Finished: SUCCESS"));
+
+    }
+
+    /**
+     * Check if the success policy is applied when a node fails
+     * @throws Exception
+     */
+    @Test
+    public void testClusterSuccessPolicy() throws Exception {
+
+        // Second logon fails, only one node out of two reloads the plug-in
+        icn.respondOnce(IcnStubServer.LOGON, 200, "{}&&" + rsp1.toString());
+        icn.respondOnce(IcnStubServer.LOGON, 200, "{}&&{}");
+        buildStep = new LoadPluginBuilder(icn.getUrl("node1") + "," + icn.getUrl("node2"), "someadmin", "somepwd", "/some/path");
+        buildStep.setNodeConcurrency(1);
+        buildStep.setSuccessPolicy(SuccessPolicy.ALL);
+        project.getBuildersList().replace(buildStep);
+        build = project.scheduleBuild2(0).get();
+        Assert.assertTrue(Files.readAllLines(build.getLogFile().toPath()).contains("Finished: FAILURE"));
+
+        // node1 reuses its session, node2 fails again
+        icn.respondOnce(IcnStubServer.LOGON, 200, "{}&&{}");
+        buildStep.setSuccessPolicy(SuccessPolicy.ANY);
+        build = project.scheduleBuild2(0).get();
+        Assert.assertTrue(Files.readAllLines(build.getLogFile().toPath()).contains("Finished: SUCCESS"));
+
+    }
+
+    /**
+     * Check if the ICN session is reused by the next build
+     * @throws Exception
+     */
+    @Test
+    public void testSessionReuse() throws Exception {
+
+        build = project.scheduleBuild2(0).get();
+        Assert.assertTrue(Files.readAllLines(build.getLogFile().toPath()).contains("Finished: SUCCESS"));
+        build = project.scheduleBuild2(0).get();
+        Assert.assertTrue(Files.readAllLines(build.getLogFile().toPath()).contains("Finished: SUCCESS"));
+
+        Assert.assertEquals(1, icn.getRequests(IcnStubServer.LOGON).size());
+        List<Request> loads = icn.getRequests(IcnStubServer.LOAD);
+        Assert.assertEquals(2, loads.size());
+        Assert.assertEquals("567465876", loads.get(1).securityToken);
+        Assert.assertEquals(loads.get(0).cookie, loads.get(1).cookie);
+
+    }
+
+    /**
+     * Check if the build logs on again when the cached session has expired
+     * @throws Exception
+     */
+    @Test
+    public void testExpiredSession() throws Exception {
+
+        build = project.scheduleBuild2(0).get();
+        // Second build gets a 401 on the first call with the cached session
+        icn.respondOnce(IcnStubServer.LOAD, 401, "");
+        build = project.scheduleBuild2(0).get();
+
+        Assert.assertEquals(2, icn.getRequests(IcnStubServer.LOGON).size());
+        Assert.assertEquals(3, icn.getRequests(IcnStubServer.LOAD).size());
+        // The configuration did not change, it is saved once
+        Assert.assertEquals(1, icn.getRequests(IcnStubServer.SAVE).size());
+        Assert.assertTrue(Files.readAllLines(build.getLogFile().toPath()).contains("Finished: SUCCESS"));
+
+    }
+
+    /**
+     * Check if the session cache can be disabled
+     * @throws Exception
+     */
+    @Test
+    public void testSessionCacheDisabled() throws Exception {
+
+        LoadPluginBuilder.DescriptorImpl descriptor = j.jenkins.getDescriptorByType(LoadPluginBuilder.DescriptorImpl.class);
+        descriptor.setSessionTtl(0);
+        j.submit(j.createWebClient().goTo("configure").getFormByName("config"));
+
+        project.scheduleBuild2(0).get();
+        build = project.scheduleBuild2(0).get();
+
+        Assert.assertEquals(2, icn.getRequests(IcnStubServer.LOGON).size());
+        Assert.assertTrue(Files.readAllLines(build.getLogFile().toPath()).contains("Finished: SUCCESS"));
+
+    }
+
+    /**
+     * Check if jars of the workspace are uploaded and then loaded from the server directory
+     * @throws Exception
+     */
+    @Test
+    public void testUpload() throws Exception {
+
+        FilePath workspace = j.jenkins.getWorkspaceFor(project);
+        byte[] jar = PluginJars.plugin("com.example.Sample", "version 1");
+        workspace.child("target/plugin.jar").copyFrom(new ByteArrayInputStream(jar));
+        workspace.child("target/other.txt").write("not a jar", "UTF-8");
+        LoadPluginBuilder step = new LoadPluginBuilder(icn.getUrl("node1"), "someadmin", "somepwd", "target/*.jar");
+        step.setUploadUrl(icn.getUploadUrl());
+        step.setServerDirectory("/opt/icn/plugins");
+        project.getBuildersList().replace(step);
+
+        build = project.scheduleBuild2(0).get();
+
+        List<Request> uploads = icn.getRequests(IcnStubServer.UPLOAD);
+        Assert.assertEquals(1, uploads.size());
+        Assert.assertEquals("/dav/plugin.jar", uploads.get(0).path);
+        Assert.assertEquals(String.valueOf(jar.length), uploads.get(0).params.get("size"));
+        Assert.assertTrue(hasParam(icn.getRequests(IcnStubServer.LOAD), "fileName", "/opt/icn/plugins/plugin.jar"));
+        Assert.assertTrue(Files.readAllLines(build.getLogFile().toPath()).contains("Finished: SUCCESS"));
+
+    }
+
+    /**
+     * Check if the name of an uploaded jar is encoded in the url, and credentials are only sent in a header
+     * @throws Exception
+     */
+    @Test
+    public void testUploadEncoded() throws Exception {
+
+        FilePath workspace = j.jenkins.getWorkspaceFor(project);
+        workspace.child("target/my plugin.jar").copyFrom(new ByteArrayInputStream(PluginJars.plugin("com.example.Sample", "version 1")));
+        LoadPluginBuilder step = new LoadPluginBuilder(icn.getUrl("node1"), "someadmin", "somepwd", "target/*.jar");
+        step.setUploadUrl(icn.getUploadUrl().replace("http://", "http://davuser:davpwd@"));
+        project.getBuildersList().replace(step);
+
+        build = j.assertBuildStatusSuccess(project.scheduleBuild2(0));
+
+        List<Request> uploads = icn.getRequests(IcnStubServer.UPLOAD);
+        Assert.assertEquals(1, uploads.size());
+        Assert.assertEquals("/dav/my plugin.jar", uploads.get(0).path);
+        Assert.assertEquals("Basic " + Base64.encodeBase64String("davuser:davpwd".getBytes("UTF-8")), uploads.get(0).authorization);
+        Assert.assertNull(icn.getRequests(IcnStubServer.LOAD).get(0).authorization);
+        Assert.assertTrue(hasParam(icn.getRequests(IcnStubServer.LOAD), "fileName", icn.getUploadUrl() + "my%20plugin.jar"));
+        Assert.assertFalse(hasLine(Files.readAllLines(build.getLogFile().toPath()), "davpwd"));
+
+    }
+
+    /**
+     * Check if a broken jar fails the build before ICN is called
+     * @throws Exception
+     */
+    @Test
+    public void testInvalidJar() throws Exception {
+
+        FilePath workspace = j.jenkins.getWorkspaceFor(project);
+        workspace.child("target/plugin.jar").write("not really a jar", "UTF-8");
+        LoadPluginBuilder step = new LoadPluginBuilder(icn.getUrl("node1"), "someadmin", "somepwd", "target/plugin.jar");
+        step.setUploadUrl(icn.getUploadUrl());
+        project.getBuildersList().replace(step);
+
+        build = j.assertBuildStatus(Result.FAILURE, project.scheduleBuild2(0));
+
+        Assert.assertTrue(hasLine(Files.readAllLines(build.getLogFile().toPath()), "is not a valid ICN plug-in, it is not a jar"));
+        Assert.assertEquals(0, icn.getRequests(IcnStubServer.UPLOAD).size());
+        Assert.assertEquals(0, icn.getRequests(IcnStubServer.LOGON).size());
+
+        // Unless the check is disabled
+        j.jenkins.getDescriptorByType(LoadPluginBuilder.DescriptorImpl.class).setInspectPlugins(false);
+        j.assertBuildStatusSuccess(project.scheduleBuild2(0));
+        Assert.assertEquals(1, icn.getRequests(IcnStubServer.LOAD).size());
+
+    }
+
+    /**
+     * Check if a plug-in whose jar did not change is not uploaded nor reloaded again
+     * @throws Exception
+     */
+    @Test
+    public void testUnchangedSkipped() throws Exception {
+
+        FilePath jar = j.jenkins.getWorkspaceFor(project).child("target/plugin.jar");
+        jar.copyFrom(new ByteArrayInputStream(PluginJars.plugin("com.example.Sample", "version 1")));
+        LoadPluginBuilder step = new LoadPluginBuilder(icn.getUrl("node1"), "someadmin", "somepwd", "target/plugin.jar");
+        step.setUploadUrl(icn.getUploadUrl());
+        project.getBuildersList().replace(step);
+
+        project.scheduleBuild2(0).get();
+        build = project.scheduleBuild2(0).get();
+
+        Assert.assertEquals(1, icn.getRequests(IcnStubServer.UPLOAD).size());
+        Assert.assertEquals(1, icn.getRequests(IcnStubServer.LOGON).size());
+        Assert.assertEquals(1, icn.getRequests(IcnStubServer.LOAD).size());
+        Assert.assertEquals(1, icn.getRequests(IcnStubServer.SAVE).size());
+        List<String> lines = Files.readAllLines(build.getLogFile().toPath());
+        Assert.assertTrue(lines.contains("Finished: SUCCESS"));
+        Assert.assertTrue(hasLine(lines, "not uploading it"));
+        Assert.assertTrue(hasLine(lines, "UNCHANGED"));
+
+        // A new jar is reloaded
+        jar.copyFrom(new ByteArrayInputStream(PluginJars.plugin("com.example.Sample", "version 2")));
+        project.scheduleBuild2(0).get();
+        Assert.assertEquals(2, icn.getRequests(IcnStubServer.UPLOAD).size());
+        Assert.assertEquals(2, icn.getRequests(IcnStubServer.LOAD).size());
+
+        // Unless the reload is forced
+        step.setForceReload(true);
+        project.scheduleBuild2(0).get();
+        Assert.assertEquals(3, icn.getRequests(IcnStubServer.UPLOAD).size());
+        Assert.assertEquals(3, icn.getRequests(IcnStubServer.LOAD).size());
+
+        // A forced reload is recorded: the jar it replaced is not taken for the deployed one
+        jar.copyFrom(new ByteArrayInputStream(PluginJars.plugin("com.example.Sample", "version 1")));
+        project.scheduleBuild2(0).get();
+        Assert.assertEquals(4, icn.getRequests(IcnStubServer.LOAD).size());
+        step.setForceReload(false);
+        jar.copyFrom(new ByteArrayInputStream(PluginJars.plugin("com.example.Sample", "version 2")));
+        project.scheduleBuild2(0).get();
+        Assert.assertEquals(5, icn.getRequests(IcnStubServer.LOAD).size());
+
+    }
+
+    /**
+     * Check if a configuration is only saved when it changed
+     * @throws Exception
+     */
+    @Test
+    public void testCurrentSaveSkipped() throws Exception {
+
+        project.scheduleBuild2(0).get();
+        build = j.assertBuildStatusSuccess(project.scheduleBuild2(0));
+
+        Assert.assertEquals(2, icn.getRequests(IcnStubServer.LOAD).size());
+        Assert.assertEquals(1, icn.getRequests(IcnStubServer.SAVE).size());
+        Assert.assertTrue(hasLine(Files.readAllLines(build.getLogFile().toPath()), "already current"));
+
+        // A new version is saved
+        rsp2.put("version", "plugin-version-2");
+        icn.respondOnce(IcnStubServer.LOAD, 200, "{}&&" + rsp2.toString());
+        j.assertBuildStatusSuccess(project.scheduleBuild2(0));
+        Assert.assertEquals(2, icn.getRequests(IcnStubServer.SAVE).size());
+        Assert.assertTrue(icn.getRequests(IcnStubServer.SAVE).get(1).params.get("json_post").contains("plugin-version-2"));
+
+        // Always saved when disabled
+        LoadPluginBuilder.DescriptorImpl descriptor = j.jenkins.getDescriptorByType(LoadPluginBuilder.DescriptorImpl.class);
+        descriptor.setSkipCurrentSave(false);
+        j.assertBuildStatusSuccess(project.scheduleBuild2(0));
+        Assert.assertEquals(3, icn.getRequests(IcnStubServer.SAVE).size());
+
+    }
+
+    /**
+     * Check if ICN can be called from the agent running the build
+     * @throws Exception
+     */
+    @Test
+    public void testRunOnAgent() throws Exception {
+
+        project.setAssignedNode(j.createOnlineSlave());
+        buildStep.setRunOnAgent(true);
+
+        project.scheduleBuild2(0).get();
+        build = j.assertBuildStatusSuccess(project.scheduleBuild2(0));
+
+        Assert.assertTrue(hasLine(Files.readAllLines(build.getLogFile().toPath()), "Calling ICN from the agent"));
+        // The agent keeps its session, the controller gets the timings and the deploy records
+        Assert.assertEquals(1, icn.getRequests(IcnStubServer.LOGON).size());
+        Assert.assertEquals(2, icn.getRequests(IcnStubServer.LOAD).size());
+        Assert.assertEquals(1, icn.getRequests(IcnStubServer.SAVE).size());
+        Assert.assertEquals(1, build.getAction(IcnReloadAction.class).getTimings().size());
+
+    }
+
+    /**
+     * Check if the plug-in resources and the configured paths are requested after the reload
+     * @throws Exception
+     */
+    @Test
+    public void testWarmUp() throws Exception {
+
+        rsp2.put("script", "plugin.js");
+        rsp2.put("css", "plugin.css");
+        icn.respond(IcnStubServer.LOAD, 200, "{}&&" + rsp2.toString());
+        buildStep.setWarmUp(true);
+        buildStep.setWarmUpPaths("desktop\n/other");
+
+        build = j.assertBuildStatusSuccess(project.scheduleBuild2(0));
+
+        List<Request> script = icn.getRequestsTo("/navigator/plugin/plugin-id/getResource/plugin.js");
+        Assert.assertEquals(1, script.size());
+        Assert.assertEquals("567465876", script.get(0).securityToken);
+        Assert.assertEquals(1, icn.getRequestsTo("/navigator/plugin/plugin-id/getResource/plugin.css").size());
+        Assert.assertEquals(1, icn.getRequestsTo("/navigator/desktop").size());
+        Assert.assertEquals(1, icn.getRequestsTo("/navigator/other").size());
+        // Not found on the stub, reported without failing the build
+        Assert.assertTrue(hasLine(Files.readAllLines(build.getLogFile().toPath()), "WARNING: desktop returned 404"));
+        int warmUps = 0;
+        for (PhaseTiming timing : build.getAction(IcnReloadAction.class).getTimings()) {
+            if (timing.getPhase() == PhaseTiming.Phase.WARM_UP) {
+                warmUps++;
+            }
+        }
+        Assert.assertEquals(4, warmUps);
+
+    }
+
+    /**
+     * Check if a plug-in making ICN slower is rolled back to the previous jar
+     * @throws Exception
+     */
+    @Test
+    public void testLatencyGate() throws Exception {
+
+        j.jenkins.getDescriptorByType(LoadPluginBuilder.DescriptorImpl.class).setGateSamples(3);
+        icn.setLatency("/navigator/desktop", "/opt/plugins/plugin-1.jar", 0);
+        icn.setLatency("/navigator/desktop", "/opt/plugins/plugin-2.jar", 300);
+        project.getBuildersList().replace(gatedStep("/opt/plugins/plugin-1.jar"));
+        j.assertBuildStatusSuccess(project.scheduleBuild2(0));
+
+        project.getBuildersList().replace(gatedStep("/opt/plugins/plugin-2.jar"));
+        build = j.assertBuildStatus(Result.FAILURE, project.scheduleBuild2(0));
+
+        List<String> lines = Files.readAllLines(build.getLogFile().toPath());
+        Assert.assertTrue(hasLine(lines, "more than 50% slower"));
+        Assert.assertTrue(hasLine(lines, "ROLLED_BACK"));
+        List<Request> loads = icn.getRequests(IcnStubServer.LOAD);
+        Assert.assertEquals(3, loads.size());
+        Assert.assertEquals("/opt/plugins/plugin-1.jar", loads.get(2).params.get("fileName"));
+        // The configuration of the previous jar is saved again
+        List<Request> saves = icn.getRequests(IcnStubServer.SAVE);
+        Assert.assertEquals(3, saves.size());
+        Assert.assertTrue(saves.get(2).params.get("json_post").contains("plugin-1.jar"));
+        // 3 samples and one round not measured, before and after each reload
+        Assert.assertEquals(16, icn.getRequestsTo("/navigator/desktop").size());
+
+    }
+
+    /**
+     * Check if a forced reload making ICN slower is rolled back to the previous jar too
+     * @throws Exception
+     */
+    @Test
+    public void testLatencyGateForced() throws Exception {
+
+        j.jenkins.getDescriptorByType(LoadPluginBuilder.DescriptorImpl.class).setGateSamples(3);
+        icn.setLatency("/navigator/desktop", "/opt/plugins/plugin-1.jar", 0);
+        icn.setLatency("/navigator/desktop", "/opt/plugins/plugin-2.jar", 300);
+        project.getBuildersList().replace(gatedStep("/opt/plugins/plugin-1.jar"));
+        j.assertBuildStatusSuccess(project.scheduleBuild2(0));
+
+        LoadPluginBuilder step = gatedStep("/opt/plugins/plugin-2.jar");
+        step.setForceReload(true);
+        project.getBuildersList().replace(step);
+        build = j.assertBuildStatus(Result.FAILURE, project.scheduleBuild2(0));
+
+        List<String> lines = Files.readAllLines(build.getLogFile().toPath());
+        Assert.assertTrue(hasLine(lines, "ROLLED_BACK"));
+        List<Request> loads = icn.getRequests(IcnStubServer.LOAD);
+        Assert.assertEquals(3, loads.size());
+        Assert.assertEquals("/opt/plugins/plugin-1.jar", loads.get(2).params.get("fileName"));
+
+    }
+
+    /**
+     * Check if a plug-in whose rollback failed is not taken for unchanged by the next build
+     * @throws Exception
+     */
+    @Test
+    public void testLatencyGateRollbackFailed() throws Exception {
+
+        LoadPluginBuilder.DescriptorImpl descriptor = j.jenkins.getDescriptorByType(LoadPluginBuilder.DescriptorImpl.class);
+        descriptor.setGateSamples(3);
+        descriptor.setMaxRetries(0);
+        j.submit(j.createWebClient().goTo("configure").getFormByName("config"));
+        // Jars readable from the controller are digested
+        FilePath dir = j.jenkins.getRootPath().child("plugins-" + project.getName());
+        FilePath jar1 = dir.child("plugin-1.jar");
+        FilePath jar2 = dir.child("plugin-2.jar");
+        jar1.copyFrom(new ByteArrayInputStream(PluginJars.plugin("com.example.Sample", "version 1")));
+        jar2.copyFrom(new ByteArrayInputStream(PluginJars.plugin("com.example.Sample", "version 2")));
+        icn.setLatency("/navigator/desktop", jar1.getRemote(), 0);
+        icn.setLatency("/navigator/desktop", jar2.getRemote(), 300);
+        project.getBuildersList().replace(gatedStep(jar1.getRemote()));
+        j.assertBuildStatusSuccess(project.scheduleBuild2(0));
+
+        // The reload of plugin-2 works, its rollback doesn't
+        icn.respondOnce(IcnStubServer.LOAD, 200, "{}&&" + rsp2.toString());
+        icn.respondOnce(IcnStubServer.LOAD, 500, "");
+        project.getBuildersList().replace(gatedStep(jar2.getRemote()));
+        build = j.assertBuildStatus(Result.FAILURE, project.scheduleBuild2(0));
+        Assert.assertTrue(hasLine(Files.readAllLines(build.getLogFile().toPath()), "ERROR: Rollback to"));
+        Assert.assertEquals(3, icn.getRequests(IcnStubServer.LOAD).size());
+
+        // plugin-2 may still be deployed, the next build reloads it
+        build = project.scheduleBuild2(0).get();
+        Assert.assertFalse(hasLine(Files.readAllLines(build.getLogFile().toPath()), "UNCHANGED"));
+        Assert.assertEquals(jar2.getRemote(), icn.getRequests(IcnStubServer.LOAD).get(3).params.get("fileName"));
+
+    }
+
+    /**
+     * Check if each call to ICN is timed and recorded on the build
+     * @throws Exception
+     */
+    @Test
+    public void testTimings() throws Exception {
+
+        build = j.assertBuildStatusSuccess(project.scheduleBuild2(0));
+
+        IcnReloadAction action = build.getAction(IcnReloadAction.class);
+        Assert.assertNotNull(action);
+        List<PhaseTiming> timings = action.getTimings();
+        Assert.assertEquals(3, timings.size());
+        Assert.assertEquals(PhaseTiming.Phase.LOGON, timings.get(0).getPhase());
+        Assert.assertEquals(PhaseTiming.Phase.LOAD, timings.get(1).getPhase());
+        Assert.assertEquals("/some/path", timings.get(1).getFile());
+        Assert.assertEquals(PhaseTiming.Phase.SAVE, timings.get(2).getPhase());
+        for (PhaseTiming timing : timings) {
+            Assert.assertEquals(200, timing.getStatus());
+            Assert.assertTrue(timing.getResponseSize() > 0);
+        }
+        Assert.assertEquals(3, action.getTotals().size());
+
+        String metrics = j.createWebClient().goTo("icn-metrics/", "application/json").getWebResponse().getContentAsString();
+        Assert.assertTrue(metrics.contains("127.0.0.1:"));
+        Assert.assertTrue(metrics.contains("\"LOAD\""));
+
+    }
+
+    /**
+     * Check if a call failing with a server error is made again
+     * @throws Exception
+     */
+    @Test
+    public void testRetryOnServerError() throws Exception {
+
+        LoadPluginBuilder.DescriptorImpl descriptor = j.jenkins.getDescriptorByType(LoadPluginBuilder.DescriptorImpl.class);
+        descriptor.setRetryDelay(0);
+        j.submit(j.createWebClient().goTo("configure").getFormByName("config"));
+        icn.respondOnce(IcnStubServer.LOAD, 503, "");
+
+        build = j.assertBuildStatusSuccess(project.scheduleBuild2(0));
+
+        Assert.assertEquals(2, icn.getRequests(IcnStubServer.LOAD).size());
+        Assert.assertTrue(hasLine(Files.readAllLines(build.getLogFile().toPath()), "retrying"));
+
+    }
+
+    /**
+     * Check if an ICN host failing too often is not called anymore
+     * @throws Exception
+     */
+    @Test
+    public void testUnavailableHost() throws Exception {
+
+        LoadPluginBuilder.DescriptorImpl descriptor = j.jenkins.getDescriptorByType(LoadPluginBuilder.DescriptorImpl.class);
+        descriptor.setMaxRetries(0);
+        descriptor.setFailureThreshold(1);
+        j.submit(j.createWebClient().goTo("configure").getFormByName("config"));
+        icn.respond(IcnStubServer.LOGON, 500, "");
+
+        j.assertBuildStatus(Result.FAILURE, project.scheduleBuild2(0));
+        build = j.assertBuildStatus(Result.FAILURE, project.scheduleBuild2(0));
+
+        Assert.assertEquals(1, icn.getRequests(IcnStubServer.LOGON).size());
+        Assert.assertTrue(hasLine(Files.readAllLines(build.getLogFile().toPath()), "is unavailable"));
+
+    }
+
+    private LoadPluginBuilder gatedStep(String file) {
+        LoadPluginBuilder step = new LoadPluginBuilder(icn.getUrl("node1"), "someadmin", "somepwd", file);
+        step.setLatencyGate(true);
+        step.setGatePaths("desktop");
+        return step;
+    }
+
+    private static boolean hasLine(List<String> lines, String text) {
+        for (String line : lines) {
+            if (line.contains(text)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean hasParam(List<Request> requests, String name, String value) {
+        for (Request r : requests) {
+            if (value.equals(r.params.get(name))) {
+                return true;
+            }
+        }
+        return false;
     }
 
 }
@@ -0,0 +1,81 @@
+package jenkins.plugin.icn;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * HTTP plumbing shared by the local servers answering for ICN in tests.
+ */
+final class LocalHttpServers {
+
+    static {
+        // Headers and body are written separately, without this each response waits for a delayed ACK
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+    }
+
+    private LocalHttpServers() {
+    }
+
+    /**
+     * @param handler the handler of all requests
+     * @param executor the threads to handle requests on
+     * @return a started server on a free local port
+     * @throws IOException if the server can't be created
+     */
+    static HttpServer start(HttpHandler handler, Executor executor) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", handler);
+        server.setExecutor(executor);
+        server.start();
+        return server;
+    }
+
+    /**
+     * @return the parameters of a form posted to the server
+     */
+    static Map<String, String> readParams(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+        Map<String, String> params = new HashMap<String, String>();
+        for (String pair : out.toString("UTF-8").split("&")) {
+            int i = pair.indexOf('=');
+            if (i > 0) {
+                params.put(URLDecoder.decode(pair.substring(0, i), "UTF-8"), URLDecoder.decode(pair.substring(i + 1), "UTF-8"));
+            }
+        }
+        return params;
+    }
+
+    static void send(HttpExchange exchange, int status, String response) throws IOException {
+        send(exchange, status, response.getBytes("UTF-8"));
+    }
+
+    /**
+     * Send a text response. An empty body is sent chunked, the connection stays usable like with ICN.
+     */
+    static void send(HttpExchange exchange, int status, byte[] body) throws IOException {
+        exchange.getResponseHeaders().add("Content-Type", "text/plain; charset=UTF-8");
+        exchange.sendResponseHeaders(status, body.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(body);
+        out.close();
+    }
+
+}
@@ -0,0 +1,113 @@
+package jenkins.plugin.icn;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+/**
+ * Builds ICN plug-in jars for tests, with class files reduced to their header.
+ */
+public final class PluginJars {
+
+    public static final String ICN_PLUGIN = "com.ibm.ecm.extension.Plugin";
+    public static final int ACC_PUBLIC = 0x0001;
+    public static final int ACC_ABSTRACT = 0x0400;
+    private static final long TIME = 1485734400000L;
+
+    private PluginJars() {
+    }
+
+    /**
+     * @param pluginClass the plug-in class, extending the ICN plug-in class
+     * @param content something making the jar unique
+     * @return a valid plug-in jar
+     * @throws IOException
+     */
+    public static byte[] plugin(String pluginClass, String content) throws IOException {
+        Map<String, byte[]> entries = new LinkedHashMap<String, byte[]>();
+        entries.put(entryName(pluginClass), classFile(pluginClass, ICN_PLUGIN, ACC_PUBLIC));
+        entries.put("content.txt", content.getBytes("UTF-8"));
+        return jar(pluginClass, entries);
+    }
+
+    /**
+     * @param pluginClass the Plugin-Class of the manifest, <code>null</code> for none
+     * @param entries the other entries by name
+     * @return the jar
+     * @throws IOException
+     */
+    public static byte[] jar(String pluginClass, Map<String, byte[]> entries) throws IOException {
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        if (pluginClass != null) {
+            manifest.getMainAttributes().putValue("Plugin-Class", pluginClass);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        JarOutputStream out = new JarOutputStream(bytes);
+        JarEntry manifestEntry = new JarEntry("META-INF/MANIFEST.MF");
+        manifestEntry.setTime(TIME);
+        out.putNextEntry(manifestEntry);
+        manifest.write(out);
+        out.closeEntry();
+        for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+            JarEntry jarEntry = new JarEntry(entry.getKey());
+            jarEntry.setTime(TIME);
+            out.putNextEntry(jarEntry);
+            out.write(entry.getValue());
+            out.closeEntry();
+        }
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @param className the name of the class
+     * @return the name of the entry of the class in a jar
+     */
+    public static String entryName(String className) {
+        return className.replace('.', '/') + ".class";
+    }
+
+    /**
+     * @param className the name of the class
+     * @param superName the name of its superclass
+     * @param access the access flags of the class
+     * @return a class file without fields nor methods
+     * @throws IOException
+     */
+    public static byte[] classFile(String className, String superName, int access) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0xCAFEBABE);
+        out.writeShort(0);
+        out.writeShort(51);
+        // Constant pool: a long taking two entries, then the names and classes
+        out.writeShort(7);
+        out.writeByte(5);
+        out.writeLong(42);
+        out.writeByte(1);
+        out.writeUTF(className.replace('.', '/'));
+        out.writeByte(7);
+        out.writeShort(3);
+        out.writeByte(1);
+        out.writeUTF(superName.replace('.', '/'));
+        out.writeByte(7);
+        out.writeShort(5);
+        out.writeShort(access);
+        out.writeShort(4);
+        out.writeShort(6);
+        // No interfaces, fields, methods nor attributes
+        out.writeShort(0);
+        out.writeShort(0);
+        out.writeShort(0);
+        out.writeShort(0);
+        out.close();
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,230 @@
+package jenkins.plugins.icn;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import jenkins.plugin.icn.IcnStandInServer;
+import jenkins.plugin.icn.IcnStubServer;
+
+public class HostGuardTest {
+
+    /**
+     * Check if the breaker opens after consecutive failures, then lets one call through
+     * @throws Exception
+     */
+    @Test
+    public void testBreaker() throws Exception {
+        HostGuard guard = new HostGuard("icn:9080", 1, 2, 100);
+        guard.checkAvailable();
+        guard.onFailure();
+        guard.onSuccess();
+        guard.onFailure();
+        Assert.assertFalse(guard.isOpen());
+        guard.onFailure();
+        Assert.assertTrue(guard.isOpen());
+        try {
+            guard.checkAvailable();
+            Assert.fail("Calls should fail fast");
+        } catch (IOException e) {
+            Assert.assertTrue(e.getMessage().contains("icn:9080"));
+        }
+
+        Thread.sleep(150);
+        // One trial call, others still fail fast until it is done
+        guard.checkAvailable();
+        try {
+            guard.checkAvailable();
+            Assert.fail("Only one call should be let through");
+        } catch (IOException e) {
+            // expected
+        }
+        guard.onSuccess();
+        Assert.assertFalse(guard.isOpen());
+        guard.checkAvailable();
+    }
+
+    /**
+     * Check if reloads over the limit wait for a slot
+     * @throws Exception
+     */
+    @Test
+    public void testReloadSlots() throws Exception {
+        final HostGuard guard = new HostGuard("icn:9080", 1, 0, 0);
+        final PrintStream log = new PrintStream(new ByteArrayOutputStream());
+        guard.acquireReload(log);
+        final CountDownLatch acquired = new CountDownLatch(1);
+        Thread waiting = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    guard.acquireReload(log);
+                    acquired.countDown();
+                } catch (InterruptedException e) {
+                    // test failed
+                }
+            }
+        };
+        waiting.start();
+        Assert.assertFalse(acquired.await(100, TimeUnit.MILLISECONDS));
+        guard.releaseReload();
+        Assert.assertTrue(acquired.await(5, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Check if a new configuration keeps the breaker state and the slots held by running reloads
+     * @throws Exception
+     */
+    @Test
+    public void testConfigure() throws Exception {
+        HostGuards guards = new HostGuards(1, 1, 60, 0, 0, 0);
+        final HostGuard guard = guards.get("http://icn:9080/navigator/");
+        guard.onFailure();
+        final PrintStream log = new PrintStream(new ByteArrayOutputStream());
+        guard.acquireReload(log);
+
+        guards.configure(1, 1, 60, 3, 1, 5);
+        Assert.assertSame(guard, guards.get("http://icn:9080/navigator/"));
+        Assert.assertTrue(guard.isOpen());
+
+        guards.configure(2, 2, 60, 3, 1, 5);
+        Assert.assertSame(guard, guards.get("http://icn:9080/navigator/"));
+        Assert.assertFalse(guard.isOpen());
+        guard.acquireReload(log);
+
+        // Both slots are held, the lower limit applies once they are given back
+        guards.configure(1, 2, 60, 3, 1, 5);
+        guard.releaseReload();
+        final CountDownLatch acquired = new CountDownLatch(1);
+        Thread waiting = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    guard.acquireReload(log);
+                    acquired.countDown();
+                } catch (InterruptedException e) {
+                    // test failed
+                }
+            }
+        };
+        waiting.start();
+        Assert.assertFalse(acquired.await(100, TimeUnit.MILLISECONDS));
+        guard.releaseReload();
+        Assert.assertTrue(acquired.await(5, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Check if the trial call of a half open breaker is given back when the call fails before reaching ICN
+     * @throws Exception
+     */
+    @Test
+    public void testTrialReleased() throws Exception {
+        String url = "http://icn:9080/navigator/";
+        HostGuards guards = new HostGuards(1, 1, 0, 0, 0, 0);
+        guards.get(url).onFailure();
+        IcnHttpClient httpClient = new IcnHttpClient(1, 1, 5, 5, 1024);
+        httpClient.close();
+        IcnClient client = new IcnClient(httpClient, url, new PrintStream(new ByteArrayOutputStream()), null, null, guards, null);
+        Assert.assertFalse(client.connect("someadmin", "somepwd"));
+        // Still half open, the next call is the trial
+        guards.get(url).checkAvailable();
+    }
+
+    /**
+     * Check if a plug-in holds its reload slot until its configuration is saved, without
+     * a deployment of more plug-ins than slots waiting for itself
+     * @throws Exception
+     */
+    @Test
+    public void testSlotUntilSave() throws Exception {
+        IcnStubServer icn = new IcnStubServer();
+        IcnHttpClient httpClient = new IcnHttpClient(10, 10, 5, 60, 1024);
+        try {
+            icn.respond(IcnStubServer.LOGON, 200, "{}&&{\"security_token\":\"567465876\"}");
+            icn.respond(IcnStubServer.LOAD, 200, "{}&&{\"name\":\"plugin-name\",\"id\":\"plugin-id\","
+                    + "\"version\":\"plugin-version\",\"configClass\":\"plugin-config-class\"}");
+            icn.respond(IcnStubServer.SAVE, 200, "{}&&{\"messages\":[{\"text\":\"This means success\"}]}");
+            HostGuards guards = new HostGuards(1, 0, 0, 0, 0, 0);
+            IcnClient client = new IcnClient(httpClient, icn.getUrl("node1"), new PrintStream(new ByteArrayOutputStream()),
+                    null, null, guards, null);
+            Assert.assertTrue(client.connect("someadmin", "somepwd"));
+            List<PluginReloadResult> results = client.reloadAll(Arrays.asList("/opt/a.jar", "/opt/b.jar", "/opt/c.jar"), 3, null);
+            for (PluginReloadResult result : results) {
+                Assert.assertTrue(result.isSuccess());
+            }
+            List<String> calls = new ArrayList<String>();
+            // Every path ends with "", all requests in order
+            for (IcnStubServer.Request request : icn.getRequestsTo("")) {
+                if (!IcnStubServer.LOGON.equals(request.service)) {
+                    calls.add(request.service);
+                }
+            }
+            Assert.assertEquals(Arrays.asList(IcnStubServer.LOAD, IcnStubServer.SAVE, IcnStubServer.LOAD, IcnStubServer.SAVE,
+                    IcnStubServer.LOAD, IcnStubServer.SAVE), calls);
+            // All slots given back
+            Assert.assertTrue(guards.get(icn.getUrl("node1")).tryAcquireReload());
+        } finally {
+            httpClient.close();
+            icn.stop();
+        }
+    }
+
+    /**
+     * Check if a loadPlugin call without answer in time is not made again, ICN may still run it
+     * @throws Exception
+     */
+    @Test
+    public void testLoadNotRetriedAfterTimeout() throws Exception {
+        IcnStandInServer icn = new IcnStandInServer().setLatency(IcnStubServer.LOAD, 2000, 2000);
+        IcnHttpClient httpClient = new IcnHttpClient(10, 10, 5, 1, 1024);
+        try {
+            IcnClient client = new IcnClient(httpClient, icn.getUrl("node1"), new PrintStream(new ByteArrayOutputStream()),
+                    null, null, new HostGuards(1, 0, 0, 2, 0, 0), null);
+            Assert.assertTrue(client.connect("someadmin", "somepwd"));
+            List<PluginReloadResult> results = client.reloadAll(Collections.singletonList("/opt/a.jar"), 1, null);
+            Assert.assertEquals(PluginReloadResult.Status.RELOAD_FAILED, results.get(0).getStatus());
+            Assert.assertEquals(1, icn.getRequests(IcnStubServer.LOAD));
+        } finally {
+            httpClient.close();
+            icn.stop();
+        }
+    }
+
+    /**
+     * Check if retry delays grow and stay under the maximum
+     */
+    @Test
+    public void testRetryDelay() {
+        HostGuards guards = new HostGuards(1, 0, 0, 5, 1, 3);
+        for (int i = 0; i < 100; i++) {
+            Assert.assertTrue(guards.getRetryDelay(1) <= 1000);
+            Assert.assertTrue(guards.getRetryDelay(2) <= 2000);
+            Assert.assertTrue(guards.getRetryDelay(5) <= 3000);
+            Assert.assertTrue(guards.getRetryDelay(40) >= 0);
+        }
+        Assert.assertSame(guards.get("http://icn:9080/navigator/"), guards.get("http://icn:9080/other/"));
+    }
+
+    /**
+     * Check if guards and timings group urls by the same host, even urls without one
+     */
+    @Test
+    public void testHostOf() {
+        Assert.assertEquals("icn:9080", HostGuards.hostOf("http://icn:9080/navigator/"));
+        Assert.assertEquals("icn", HostGuards.hostOf("https://icn/navigator/"));
+        Assert.assertEquals("navigator", HostGuards.hostOf("navigator"));
+        Assert.assertEquals("", HostGuards.hostOf(null));
+        Assert.assertEquals("navigator", new PhaseTiming("navigator", PhaseTiming.Phase.LOGON, null, 1, 200, 0).getHost());
+        Assert.assertEquals("", new PhaseTiming(null, PhaseTiming.Phase.LOGON, null, 1, 200, 0).getHost());
+    }
+
+}
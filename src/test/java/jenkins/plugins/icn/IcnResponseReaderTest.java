@@ -0,0 +1,103 @@
+package jenkins.plugins.icn;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class IcnResponseReaderTest {
+
+    private static final Set<String> LOAD_FIELDS = new HashSet<String>(Arrays.asList("name", "id", "version", "configClass"));
+
+    private static InputStream body(String s) throws IOException {
+        return new ByteArrayInputStream(s.getBytes("UTF-8"));
+    }
+
+    /**
+     * Check if the secure prefix is skipped and only the wanted fields are kept
+     * @throws Exception
+     */
+    @Test
+    public void testPrefixAndFields() throws Exception {
+        IcnResponse res = IcnResponseReader.read(body("{}&&{\"name\":\"Sample\",\"id\":\"SamplePlugin\","
+                + "\"version\":\"2.0.1\",\"configClass\":\"com.ibm.Config\",\"features\":[{\"id\":\"f1\",\"x\":[1,[2,{}]]}],"
+                + "\"enabled\":true,\"size\":12}"), LOAD_FIELDS, 1024);
+        Assert.assertEquals("Sample", res.get("name"));
+        Assert.assertEquals("SamplePlugin", res.get("id"));
+        Assert.assertEquals("2.0.1", res.get("version"));
+        Assert.assertEquals("com.ibm.Config", res.get("configClass"));
+        Assert.assertFalse(res.has("features"));
+        Assert.assertFalse(res.has("enabled"));
+    }
+
+    /**
+     * Check if pretty printed responses, without prefix, are read
+     * @throws Exception
+     */
+    @Test
+    public void testPrettyPrinted() throws Exception {
+        IcnResponse res = IcnResponseReader.read(body("{\n  \"security_token\" : \"123\\u0041\\n\",\n"
+                + "  \"messages\" : [\n    { \"number\" : 1, \"text\" : \"Saved \\\"ok\\\"\" },\n    { \"text\" : \"second\" }\n  ]\n}\n"),
+                new HashSet<String>(Arrays.asList("security_token")), 1024);
+        Assert.assertEquals("123A\n", res.get("security_token"));
+        Assert.assertTrue(res.hasMessages());
+        Assert.assertEquals(Arrays.asList("Saved \"ok\"", "second"), res.getMessages());
+    }
+
+    /**
+     * Check if errors are kept and a missing messages array is told apart from an empty one
+     * @throws Exception
+     */
+    @Test
+    public void testErrorsAndEmptyMessages() throws Exception {
+        IcnResponse res = IcnResponseReader.read(body("{}&&{\"errors\":[{\"text\":\"Your session expired\"}]}"), LOAD_FIELDS, 1024);
+        Assert.assertEquals(Arrays.asList("Your session expired"), res.getErrors());
+        Assert.assertFalse(res.hasMessages());
+
+        res = IcnResponseReader.read(body("{\"messages\":[]}"), LOAD_FIELDS, 1024);
+        Assert.assertTrue(res.hasMessages());
+        Assert.assertTrue(res.getMessages().isEmpty());
+    }
+
+    /**
+     * Check if responses over the size limit are refused
+     * @throws Exception
+     */
+    @Test(expected = IOException.class)
+    public void testSizeLimit() throws Exception {
+        StringBuilder sb = new StringBuilder("{}&&{\"id\":\"a\",\"messages\":[");
+        for (int i = 0; i < 1000; i++) {
+            sb.append("{\"text\":\"message ").append(i).append("\"},");
+        }
+        sb.append("{}]}");
+        IcnResponseReader.read(body(sb.toString()), LOAD_FIELDS, 4096);
+    }
+
+    /**
+     * Check if an empty object followed or surrounded by whitespace is read as an empty response
+     * @throws Exception
+     */
+    @Test
+    public void testEmptyObjectWithWhitespace() throws Exception {
+        for (String json : new String[] { "{}\n", " { } ", "{}\r\n" }) {
+            IcnResponse res = IcnResponseReader.read(body(json), LOAD_FIELDS, 1024);
+            Assert.assertFalse(res.has("id"));
+            Assert.assertTrue(res.getErrors().isEmpty());
+        }
+    }
+
+    /**
+     * Check if something else than a JSON object is refused
+     * @throws Exception
+     */
+    @Test(expected = IOException.class)
+    public void testNotJson() throws Exception {
+        IcnResponseReader.read(body("<html>Error 500</html>"), LOAD_FIELDS, 1024);
+    }
+
+}
@@ -0,0 +1,186 @@
+package jenkins.plugins.icn;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import jenkins.plugin.icn.IcnReplayServer;
+import jenkins.plugin.icn.IcnStandInServer;
+import jenkins.plugin.icn.IcnStubServer;
+
+public class IcnTraceTest {
+
+    private static final List<String> FILES = Arrays.asList("/opt/plugins/first.jar", "/opt/plugins/second.jar");
+
+    private IcnStandInServer icn;
+    private IcnReplayServer replay;
+    private IcnHttpClient httpClient;
+    private File file;
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    @Before
+    public void setUp() throws Exception {
+        icn = new IcnStandInServer().setLatency(IcnStubServer.LOAD, 300, 300);
+        httpClient = new IcnHttpClient(10, 10, 5, 60, 1024);
+        file = File.createTempFile("icn", ".trace");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        IcnTrace trace = httpClient.setTrace(null);
+        if (trace != null) {
+            trace.close();
+        }
+        httpClient.close();
+        icn.stop();
+        if (replay != null) {
+            replay.stop();
+        }
+        file.delete();
+    }
+
+    /**
+     * Check if each call is written with its timing and sizes, and without secrets
+     * @throws Exception
+     */
+    @Test
+    public void testRecord() throws Exception {
+        record();
+
+        List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+        Assert.assertEquals(5, lines.size());
+        JSONObject logon = new JSONObject(lines.get(0));
+        Assert.assertEquals(IcnStubServer.LOGON, logon.optString("path"));
+        Assert.assertEquals("POST", logon.optString("method"));
+        Assert.assertEquals(200, logon.optLong("status"));
+        Assert.assertEquals(IcnTrace.REDACTED, logon.optJSONObject("fields").optString("security_token"));
+
+        JSONObject load = new JSONObject(lines.get(1));
+        Assert.assertEquals(IcnStubServer.LOAD, load.optString("path"));
+        Assert.assertEquals(FILES.get(0), load.optString("file"));
+        Assert.assertEquals("first", load.optJSONObject("fields").optString("id"));
+        Assert.assertTrue(load.optLong("ms") >= 300);
+        Assert.assertTrue(load.optLong("req") > 0);
+        Assert.assertTrue(load.optLong("rsp") > 0);
+        Assert.assertEquals(IcnStubServer.SAVE, new JSONObject(lines.get(3)).optString("path"));
+
+        String trace = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+        Assert.assertFalse(trace.contains("someadmin"));
+        Assert.assertFalse(trace.contains("somepwd"));
+        Assert.assertFalse(trace.contains("JSESSIONID"));
+    }
+
+    /**
+     * Check if a trace replayed at real speed and faster gives the recorded responses and latencies
+     * @throws Exception
+     */
+    @Test
+    public void testReplay() throws Exception {
+        record();
+        httpClient.setTrace(null).close();
+
+        replay = new IcnReplayServer(file, 1);
+        long start = System.currentTimeMillis();
+        List<PluginReloadResult> results = reload(replay.getUrl("node1"));
+        long duration = System.currentTimeMillis() - start;
+        Assert.assertTrue(results.get(0).isSuccess());
+        Assert.assertTrue(results.get(1).isSuccess());
+        Assert.assertEquals("second", results.get(1).getId());
+        Assert.assertEquals(2, replay.getRequests(IcnStubServer.LOAD));
+        Assert.assertTrue("took " + duration + " ms", duration >= 600);
+        replay.stop();
+
+        replay = new IcnReplayServer(file, 10);
+        start = System.currentTimeMillis();
+        results = reload(replay.getUrl("node1"));
+        duration = System.currentTimeMillis() - start;
+        Assert.assertTrue(results.get(0).isSuccess());
+        Assert.assertTrue("took " + duration + " ms", duration < 600);
+    }
+
+    /**
+     * Check if retries are traced as attempts of the same call, and replayed as retries
+     * @throws Exception
+     */
+    @Test
+    public void testRetries() throws Exception {
+        IcnStubServer stub = new IcnStubServer();
+        try {
+            stub.respond(IcnStubServer.LOGON, 200, "{}&&{\"security_token\":\"567465876\"}");
+            stub.respond(IcnStubServer.LOAD, 200, "{}&&{\"name\":\"plugin-name\",\"id\":\"plugin-id\","
+                    + "\"version\":\"plugin-version\",\"configClass\":\"plugin-config-class\"}");
+            stub.respond(IcnStubServer.SAVE, 200, "{}&&{\"messages\":[{\"text\":\"This means success\"}]}");
+            stub.respondOnce(IcnStubServer.LOAD, 503, "busy");
+            Assert.assertNull(httpClient.setTrace(new IcnTrace(file)));
+            List<PluginReloadResult> results = reload(stub.getUrl("node1"), new HostGuards(10, 0, 0, 2, 0, 0));
+            Assert.assertTrue(out.toString(), results.get(0).isSuccess());
+        } finally {
+            stub.stop();
+        }
+        httpClient.setTrace(null).close();
+
+        List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+        JSONObject failed = new JSONObject(lines.get(1));
+        JSONObject retried = new JSONObject(lines.get(2));
+        Assert.assertEquals(IcnStubServer.LOAD, retried.optString("path"));
+        Assert.assertEquals(503, failed.optLong("status"));
+        Assert.assertEquals(1, failed.optLong("attempt"));
+        Assert.assertEquals(200, retried.optLong("status"));
+        Assert.assertEquals(2, retried.optLong("attempt"));
+        Assert.assertEquals(failed.optString("file"), retried.optString("file"));
+
+        replay = new IcnReplayServer(file, 10);
+        List<PluginReloadResult> results = reload(replay.getUrl("node1"), new HostGuards(10, 0, 0, 2, 0, 0));
+        Assert.assertTrue(results.get(0).isSuccess());
+        Assert.assertTrue(results.get(1).isSuccess());
+        Assert.assertEquals(3, replay.getRequests(IcnStubServer.LOAD));
+    }
+
+    /**
+     * Check if lines kept in memory, as on an agent, end up in the trace file as if written there
+     * @throws Exception
+     */
+    @Test
+    public void testDrain() throws Exception {
+        IcnTrace agent = new IcnTrace();
+        Assert.assertNull(httpClient.setTrace(agent));
+        Assert.assertTrue(reload(icn.getUrl("node1")).get(1).isSuccess());
+        List<String> lines = agent.drain();
+        Assert.assertEquals(5, lines.size());
+        Assert.assertTrue(agent.drain().isEmpty());
+        httpClient.setTrace(null).close();
+
+        IcnTrace controller = new IcnTrace(file);
+        controller.write(lines);
+        controller.close();
+        Assert.assertEquals(lines, Files.readAllLines(file.toPath(), StandardCharsets.UTF_8));
+        Assert.assertEquals(FILES.get(0), new JSONObject(lines.get(1)).optString("file"));
+    }
+
+    private void record() throws Exception {
+        Assert.assertNull(httpClient.setTrace(new IcnTrace(file)));
+        List<PluginReloadResult> results = reload(icn.getUrl("node1"));
+        Assert.assertTrue(results.get(1).isSuccess());
+    }
+
+    private List<PluginReloadResult> reload(String url) throws Exception {
+        return reload(url, null);
+    }
+
+    private List<PluginReloadResult> reload(String url, HostGuards guards) throws Exception {
+        IcnClient client = new IcnClient(httpClient, url, new PrintStream(out, true), null, null, guards, null);
+        Assert.assertTrue(client.connect("someadmin", "somepwd"));
+        return client.reloadAll(FILES, 1, Collections.<String, DeployRecords.Record>emptyMap());
+    }
+}
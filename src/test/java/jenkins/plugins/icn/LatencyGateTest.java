@@ -0,0 +1,35 @@
+package jenkins.plugins.icn;
+
+import java.util.Collections;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LatencyGateTest {
+
+    /**
+     * Check if the percentile is taken from the sorted samples
+     */
+    @Test
+    public void testPercentile() {
+        LatencyGate gate = new LatencyGate(Collections.singletonList("desktop"), 10, 90, 50);
+        Assert.assertEquals(-1, gate.percentileOf(new long[0]));
+        Assert.assertEquals(90, gate.percentileOf(new long[] { 100, 90, 80, 70, 60, 50, 40, 30, 20, 10 }));
+        Assert.assertEquals(7, gate.percentileOf(new long[] { 7 }));
+        Assert.assertEquals(30, new LatencyGate(Collections.<String>emptyList(), 1, 50, 0).percentileOf(new long[] { 40, 10, 30, 20, 50 }));
+    }
+
+    /**
+     * Check if only a slowdown above both the threshold and the noise floor is a regression
+     */
+    @Test
+    public void testRegression() {
+        LatencyGate gate = new LatencyGate(Collections.singletonList("desktop"), 10, 90, 50);
+        Assert.assertFalse(gate.isRegression(1000, 1500));
+        Assert.assertTrue(gate.isRegression(1000, 1501));
+        Assert.assertFalse(gate.isRegression(1000, 800));
+        // Fast paths may always get a little slower
+        Assert.assertFalse(gate.isRegression(10, 60));
+        Assert.assertTrue(gate.isRegression(10, 61));
+    }
+}
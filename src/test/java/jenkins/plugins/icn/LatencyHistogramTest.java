@@ -0,0 +1,40 @@
+package jenkins.plugins.icn;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+    /**
+     * Check if percentiles are the upper bound of their bucket, capped by the maximum
+     */
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        Assert.assertEquals(0, histogram.getPercentile(50));
+        for (int i = 0; i < 90; i++) {
+            histogram.add(80);
+        }
+        for (int i = 0; i < 10; i++) {
+            histogram.add(4000);
+        }
+        Assert.assertEquals(100, histogram.getCount());
+        Assert.assertEquals(100, histogram.getPercentile(50));
+        Assert.assertEquals(100, histogram.getPercentile(90));
+        Assert.assertEquals(4000, histogram.getPercentile(95));
+        Assert.assertEquals(4000, histogram.getPercentile(100));
+    }
+
+    /**
+     * Check if durations over the last bound are counted and reported as the maximum
+     */
+    @Test
+    public void testOverLastBound() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.add(10);
+        histogram.add(600000);
+        Assert.assertEquals(50, histogram.getPercentile(50));
+        Assert.assertEquals(600000, histogram.getPercentile(99));
+    }
+
+}
@@ -0,0 +1,67 @@
+package jenkins.plugins.icn;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PipelineOptionalTest {
+
+    /**
+     * Check if the build step and its descriptor load without the Pipeline classes, as on a
+     * Jenkins without Pipeline, while the Pipeline step needs them
+     * @throws Exception
+     */
+    @Test
+    public void testBuilderWithoutPipeline() throws Exception {
+        ClassLoader loader = new WithoutPipeline(LoadPluginBuilder.class.getProtectionDomain().getCodeSource().getLocation(),
+                getClass().getClassLoader());
+        for (String name : new String[] { LoadPluginBuilder.class.getName(), LoadPluginBuilder.DescriptorImpl.class.getName(),
+                AgentDeployment.class.getName(), IcnDeployment.class.getName(), ReloadStepThreads.class.getName() }) {
+            Class<?> c = Class.forName(name, false, loader);
+            Assert.assertSame(loader, c.getClassLoader());
+            // Resolves the types of all members
+            c.getDeclaredMethods();
+            c.getDeclaredFields();
+            c.getDeclaredConstructors();
+        }
+
+        try {
+            Class.forName(IcnReloadStep.DescriptorImpl.class.getName(), false, loader).getDeclaredMethods();
+            Assert.fail("The Pipeline step should need Pipeline");
+        } catch (NoClassDefFoundError e) {
+            // expected
+        } catch (ClassNotFoundException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Loads the classes of this plug-in again, without seeing the classes of Pipeline.
+     */
+    private static final class WithoutPipeline extends URLClassLoader {
+
+        WithoutPipeline(URL classes, ClassLoader parent) {
+            super(new URL[] { classes }, parent);
+        }
+
+        @Override
+        protected synchronized Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            if (name.startsWith("org.jenkinsci.plugins.workflow.")) {
+                throw new ClassNotFoundException(name);
+            }
+            if (!name.startsWith("jenkins.plugins.icn.")) {
+                return super.loadClass(name, resolve);
+            }
+            Class<?> c = findLoadedClass(name);
+            if (c == null) {
+                c = findClass(name);
+            }
+            if (resolve) {
+                resolveClass(c);
+            }
+            return c;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package jenkins.plugins.icn;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import hudson.FilePath;
+import jenkins.plugin.icn.PluginJars;
+
+public class PluginJarTest {
+
+    private final List<File> jars = new ArrayList<File>();
+
+    @After
+    public void tearDown() {
+        for (File jar : jars) {
+            jar.delete();
+        }
+    }
+
+    /**
+     * Check if a plug-in class extending the ICN plug-in class is accepted
+     * @throws Exception
+     */
+    @Test
+    public void testValid() throws Exception {
+        PluginJar.Inspection inspection = PluginJar.inspect(write(PluginJars.plugin("com.example.Sample", "1")));
+        Assert.assertTrue(inspection.isValid());
+        Assert.assertEquals("com.example.Sample", inspection.getPluginClass());
+    }
+
+    /**
+     * Check if the plug-in class can extend the ICN plug-in class through other classes of the jar
+     * @throws Exception
+     */
+    @Test
+    public void testIndirectSuperclass() throws Exception {
+        Map<String, byte[]> entries = new LinkedHashMap<String, byte[]>();
+        entries.put(PluginJars.entryName("com.example.Sample"),
+                PluginJars.classFile("com.example.Sample", "com.example.Base", PluginJars.ACC_PUBLIC));
+        entries.put(PluginJars.entryName("com.example.Base"),
+                PluginJars.classFile("com.example.Base", PluginJars.ICN_PLUGIN, PluginJars.ACC_PUBLIC | PluginJars.ACC_ABSTRACT));
+        Assert.assertTrue(PluginJar.inspect(write(PluginJars.jar("com.example.Sample", entries))).isValid());
+    }
+
+    /**
+     * Check if a superclass out of the jar, as in a shared library, gives a warning instead of rejecting the jar
+     * @throws Exception
+     */
+    @Test
+    public void testSuperclassOutOfJar() throws Exception {
+        Map<String, byte[]> entries = new LinkedHashMap<String, byte[]>();
+        entries.put(PluginJars.entryName("com.example.Sample"),
+                PluginJars.classFile("com.example.Sample", "com.example.shared.BasePlugin", PluginJars.ACC_PUBLIC));
+        PluginJar.Inspection inspection = PluginJar.inspect(write(PluginJars.jar("com.example.Sample", entries)));
+        Assert.assertTrue(inspection.isValid());
+        Assert.assertEquals("com.example.Sample", inspection.getPluginClass());
+        Assert.assertTrue(inspection.getWarning(),
+                inspection.getWarning().contains("com.example.shared.BasePlugin which is not in the jar"));
+        Assert.assertNull(PluginJar.inspect(write(PluginJars.plugin("com.example.Sample", "1"))).getWarning());
+    }
+
+    /**
+     * Check if broken jars are rejected with the reason
+     * @throws Exception
+     */
+    @Test
+    public void testInvalid() throws Exception {
+        Map<String, byte[]> entries = new LinkedHashMap<String, byte[]>();
+        assertInvalid("not a jar", write("not really a jar".getBytes("UTF-8")));
+        assertInvalid("no Plugin-Class", write(PluginJars.jar(null, entries)));
+        assertInvalid("not in the jar", write(PluginJars.jar("com.example.Sample", entries)));
+
+        entries.put(PluginJars.entryName("com.example.Sample"), "garbage".getBytes("UTF-8"));
+        assertInvalid("not a valid class file", write(PluginJars.jar("com.example.Sample", entries)));
+
+        entries.put(PluginJars.entryName("com.example.Sample"),
+                PluginJars.classFile("com.example.Other", PluginJars.ICN_PLUGIN, PluginJars.ACC_PUBLIC));
+        assertInvalid("not a valid class file", write(PluginJars.jar("com.example.Sample", entries)));
+
+        entries.put(PluginJars.entryName("com.example.Sample"),
+                PluginJars.classFile("com.example.Sample", "java.lang.Object", PluginJars.ACC_PUBLIC));
+        assertInvalid("does not extend com.ibm.ecm.extension.Plugin", write(PluginJars.jar("com.example.Sample", entries)));
+
+        entries.put(PluginJars.entryName("com.example.Sample"),
+                PluginJars.classFile("com.example.Sample", "java.util.ArrayList", PluginJars.ACC_PUBLIC));
+        assertInvalid("does not extend com.ibm.ecm.extension.Plugin", write(PluginJars.jar("com.example.Sample", entries)));
+
+        entries.put(PluginJars.entryName("com.example.Sample"),
+                PluginJars.classFile("com.example.Sample", PluginJars.ICN_PLUGIN, PluginJars.ACC_PUBLIC | PluginJars.ACC_ABSTRACT));
+        assertInvalid("can't be instantiated", write(PluginJars.jar("com.example.Sample", entries)));
+
+        entries.put(PluginJars.entryName("com.example.Sample"),
+                PluginJars.classFile("com.example.Sample", "com.example.Sample", PluginJars.ACC_PUBLIC));
+        assertInvalid("loop", write(PluginJars.jar("com.example.Sample", entries)));
+    }
+
+    /**
+     * Check if a jar which can't be read is not taken for invalid by the next inspections
+     * @throws Exception
+     */
+    @Test
+    public void testUnreadableNotKept() throws Exception {
+        File jar = File.createTempFile("plugin", ".jar");
+        jars.add(jar);
+        Assert.assertTrue(jar.delete());
+        PluginInspector inspector = new PluginInspector();
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+
+        Assert.assertFalse(inspector.inspect(new FilePath(jar), "digest", new PrintStream(log, true)));
+        Assert.assertTrue(log.toString("UTF-8").contains("can't be read"));
+
+        // Readable again, with the same digest
+        FilePath readable = new FilePath(write(PluginJars.plugin("com.example.Sample", "1")));
+        new FilePath(jar).copyFrom(readable);
+        Assert.assertTrue(inspector.inspect(new FilePath(jar), "digest", new PrintStream(new ByteArrayOutputStream())));
+    }
+
+    private static void assertInvalid(String problem, File jar) throws IOException {
+        PluginJar.Inspection inspection = PluginJar.inspect(jar);
+        Assert.assertFalse(inspection.isValid());
+        Assert.assertTrue(inspection.getProblem(), inspection.getProblem().contains(problem));
+    }
+
+    private File write(byte[] content) throws IOException {
+        File jar = File.createTempFile("plugin", ".jar");
+        jars.add(jar);
+        OutputStream out = new FileOutputStream(jar);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+        return jar;
+    }
+}
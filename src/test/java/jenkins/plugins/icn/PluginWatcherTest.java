@@ -0,0 +1,168 @@
+package jenkins.plugins.icn;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import jenkins.plugin.icn.IcnStubServer;
+import jenkins.plugin.icn.PluginJars;
+
+public class PluginWatcherTest {
+
+    private static final long TIMEOUT = 10000;
+
+    private IcnStubServer icn;
+    private Path dir;
+    private Path jar;
+    private PluginWatcher watcher;
+    private Thread thread;
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    @Before
+    public void setUp() throws Exception {
+        icn = new IcnStubServer();
+        icn.respond(IcnStubServer.LOGON, 200, "{}&&{\"security_token\":\"567465876\"}");
+        icn.respond(IcnStubServer.LOAD, 200, "{}&&{\"name\":\"plugin-name\",\"id\":\"plugin-id\","
+                + "\"version\":\"plugin-version\",\"configClass\":\"plugin-config-class\"}");
+        icn.respond(IcnStubServer.SAVE, 200, "{}&&{\"messages\":[{\"text\":\"This means success\"}]}");
+        dir = Files.createTempDirectory("watch");
+        jar = dir.resolve("target").resolve("sample.jar");
+        Files.createDirectory(jar.getParent());
+        Files.write(jar, PluginJars.plugin("com.example.Sample", "1"));
+        watcher = new PluginWatcher(icn.getUrl("node1"), "admin", "pwd",
+                Collections.singletonMap(jar, "/server/sample.jar"), 200, new PrintStream(out, true));
+        thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    watcher.run();
+                } catch (InterruptedException e) {
+                    // Stopped
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        thread.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        watcher.close();
+        thread.join(TIMEOUT);
+        icn.stop();
+        delete(dir.toFile());
+    }
+
+    /**
+     * Check if a jar written in several bursts is reloaded once, over one session,
+     * and if writing the same content again does not reload it
+     * @throws Exception
+     */
+    @Test
+    public void testReloadOncePerBuild() throws Exception {
+        writeSlowly(PluginJars.plugin("com.example.Sample", "2"));
+        waitForLoads(1);
+        List<IcnStubServer.Request> loads = icn.getRequests(IcnStubServer.LOAD);
+        Assert.assertEquals("/server/sample.jar", loads.get(0).params.get("fileName"));
+        Assert.assertEquals(1, icn.getRequests(IcnStubServer.SAVE).size());
+
+        // Same build output again
+        writeSlowly(PluginJars.plugin("com.example.Sample", "2"));
+        Thread.sleep(1000);
+        Assert.assertEquals(1, icn.getRequests(IcnStubServer.LOAD).size());
+        Assert.assertTrue(out.toString("UTF-8").contains("is unchanged"));
+
+        writeSlowly(PluginJars.plugin("com.example.Sample", "3"));
+        waitForLoads(2);
+        Thread.sleep(500);
+        Assert.assertEquals(2, icn.getRequests(IcnStubServer.LOAD).size());
+        Assert.assertEquals(1, icn.getRequests(IcnStubServer.LOGON).size());
+    }
+
+    /**
+     * Check if incomplete jars and jars which are not ICN plug-ins are not reloaded
+     * @throws Exception
+     */
+    @Test
+    public void testInvalidJar() throws Exception {
+        writeSlowly("not a jar".getBytes("UTF-8"));
+        Thread.sleep(1000);
+        Assert.assertTrue(out.toString("UTF-8").contains("is not a complete jar"));
+
+        writeSlowly(PluginJars.jar(null, new HashMap<String, byte[]>()));
+        Thread.sleep(1000);
+        Assert.assertTrue(out.toString("UTF-8").contains("is not a valid ICN plug-in"));
+        Assert.assertEquals(0, icn.getRequests(IcnStubServer.LOGON).size());
+
+        writeSlowly(PluginJars.plugin("com.example.Sample", "2"));
+        waitForLoads(1);
+    }
+
+    /**
+     * Check if the jar is still watched after a clean deleted its directory
+     * @throws Exception
+     */
+    @Test
+    public void testDirectoryDeleted() throws Exception {
+        delete(jar.getParent().toFile());
+        Thread.sleep(500);
+        Assert.assertTrue(out.toString("UTF-8").contains("does not exist, watching " + dir));
+
+        Files.createDirectories(jar.getParent());
+        writeSlowly(PluginJars.plugin("com.example.Sample", "2"));
+        waitForLoads(1);
+
+        // And once watched again, on a rebuild in place
+        writeSlowly(PluginJars.plugin("com.example.Sample", "3"));
+        waitForLoads(2);
+    }
+
+    /**
+     * Write the jar in chunks, the way a build does.
+     */
+    private void writeSlowly(byte[] content) throws IOException, InterruptedException {
+        OutputStream stream = new FileOutputStream(jar.toFile());
+        try {
+            int chunk = content.length / 4 + 1;
+            for (int i = 0; i < content.length; i += chunk) {
+                stream.write(content, i, Math.min(chunk, content.length - i));
+                stream.flush();
+                Thread.sleep(50);
+            }
+        } finally {
+            stream.close();
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private void waitForLoads(int count) throws InterruptedException {
+        long end = System.currentTimeMillis() + TIMEOUT;
+        while (icn.getRequests(IcnStubServer.LOAD).size() < count && System.currentTimeMillis() < end) {
+            Thread.sleep(50);
+        }
+        Assert.assertEquals(count, icn.getRequests(IcnStubServer.LOAD).size());
+    }
+}
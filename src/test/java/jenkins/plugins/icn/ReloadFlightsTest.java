@@ -0,0 +1,74 @@
+package jenkins.plugins.icn;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ReloadFlightsTest {
+
+    private static final String URL = "http://icn:9080/navigator/";
+    private static final String FILE = "/opt/plugins/plugin.jar";
+
+    /**
+     * Check if builds reloading the same jar share the reload
+     * @throws Exception
+     */
+    @Test
+    public void testSameJarShared() throws Exception {
+        ReloadFlights flights = new ReloadFlights();
+        ReloadFlights.Ticket leader = flights.join(URL, FILE, "abc");
+        ReloadFlights.Ticket follower = flights.join(URL, FILE, "abc");
+        ReloadFlights.Ticket other = flights.join("http://icn2:9080/navigator/", FILE, "abc");
+        Assert.assertTrue(leader.isLeader());
+        Assert.assertFalse(follower.isLeader());
+        Assert.assertSame(leader.getFlight(), follower.getFlight());
+        Assert.assertTrue(other.isLeader());
+
+        PluginReloadResult result = PluginReloadResult.failed(FILE, PluginReloadResult.Status.SAVE_FAILED);
+        Assert.assertNull(flights.complete(leader.getFlight(), result));
+        Assert.assertSame(result, flights.await(follower.getFlight()));
+        Assert.assertTrue(flights.join(URL, FILE, "abc").isLeader());
+    }
+
+    /**
+     * Check if builds with another jar share a single follow-up reload
+     * @throws Exception
+     */
+    @Test
+    public void testChangedJarFollowUp() throws Exception {
+        ReloadFlights flights = new ReloadFlights();
+        ReloadFlights.Ticket leader = flights.join(URL, FILE, "abc");
+        ReloadFlights.Ticket changed = flights.join(URL, FILE, "def");
+        ReloadFlights.Ticket unknown = flights.join(URL, FILE, null);
+        ReloadFlights.Ticket changedAgain = flights.join(URL, FILE, "ghi");
+        Assert.assertFalse(changed.isLeader());
+        Assert.assertNotSame(leader.getFlight(), changed.getFlight());
+        Assert.assertSame(changed.getFlight(), unknown.getFlight());
+        Assert.assertSame(changed.getFlight(), changedAgain.getFlight());
+
+        ReloadFlights.Flight followUp = flights.complete(leader.getFlight(),
+                PluginReloadResult.failed(FILE, PluginReloadResult.Status.RELOAD_FAILED));
+        Assert.assertSame(changed.getFlight(), followUp);
+        Assert.assertEquals("ghi", followUp.getDigest());
+        // The follow-up is now the flight in progress
+        Assert.assertSame(followUp, flights.join(URL, FILE, "ghi").getFlight());
+    }
+
+    /**
+     * Check if builds waiting for an aborted build don't wait forever
+     * @throws Exception
+     */
+    @Test
+    public void testAbandon() throws Exception {
+        ReloadFlights flights = new ReloadFlights();
+        ReloadFlights.Ticket leader = flights.join(URL, FILE, "abc");
+        ReloadFlights.Ticket follower = flights.join(URL, FILE, "abc");
+        ReloadFlights.Ticket changed = flights.join(URL, FILE, "def");
+
+        flights.abandon(leader.getFlight());
+
+        Assert.assertEquals(PluginReloadResult.Status.RELOAD_FAILED, flights.await(follower.getFlight()).getStatus());
+        Assert.assertEquals(PluginReloadResult.Status.RELOAD_FAILED, flights.await(changed.getFlight()).getStatus());
+        Assert.assertTrue(flights.join(URL, FILE, "abc").isLeader());
+    }
+
+}
@@ -0,0 +1,64 @@
+package jenkins.plugins.icn;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import jenkins.plugin.icn.IcnStandInServer;
+import jenkins.plugin.icn.IcnStubServer;
+
+public class SessionCacheTest {
+
+    private IcnStandInServer icn;
+    private IcnHttpClient httpClient;
+
+    @Before
+    public void setUp() throws Exception {
+        icn = new IcnStandInServer();
+        httpClient = new IcnHttpClient(10, 10, 5, 60, 1024);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        httpClient.close();
+        icn.stop();
+    }
+
+    /**
+     * Check if parallel reloads all refused with an expired cached session are made again,
+     * also the ones answered after another reload logged on again
+     * @throws Exception
+     */
+    @Test
+    public void testExpiredWhileInFlight() throws Exception {
+        SessionCache sessions = new SessionCache(60, 10);
+        Assert.assertTrue(client(sessions).connect("someadmin", "somepwd"));
+        icn.expireSessions();
+        // Refusals spread over time, most arrive once the first one logged on again
+        icn.setLatency(IcnStubServer.LOAD, 100, 800);
+
+        IcnClient client = client(sessions);
+        Assert.assertTrue(client.connect("someadmin", "somepwd"));
+        List<String> files = Arrays.asList("/opt/a.jar", "/opt/b.jar", "/opt/c.jar", "/opt/d.jar", "/opt/e.jar", "/opt/f.jar");
+        List<PluginReloadResult> results = client.reloadAll(files, files.size(), null);
+
+        for (PluginReloadResult result : results) {
+            Assert.assertEquals(PluginReloadResult.Status.OK, result.getStatus());
+        }
+        // One logon to cache the session, one after it expired
+        Assert.assertEquals(2, icn.getRequests(IcnStubServer.LOGON));
+        Assert.assertEquals(2 * files.size(), icn.getRequests(IcnStubServer.LOAD));
+    }
+
+    private IcnClient client(SessionCache sessions) {
+        return new IcnClient(httpClient, icn.getUrl("node1"), new PrintStream(new ByteArrayOutputStream()), sessions,
+                null, null, null);
+    }
+
+}
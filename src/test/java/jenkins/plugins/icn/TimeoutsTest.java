@@ -0,0 +1,122 @@
+package jenkins.plugins.icn;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import jenkins.plugin.icn.IcnStandInServer;
+import jenkins.plugin.icn.IcnStubServer;
+
+public class TimeoutsTest {
+
+    private IcnStandInServer icn;
+    private IcnHttpClient httpClient;
+
+    @Before
+    public void setUp() throws Exception {
+        icn = new IcnStandInServer();
+        // Socket timeout well above the load latency, only the hard timeouts can stop the call
+        httpClient = new IcnHttpClient(10, 10, 5, 60, 1024);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        httpClient.close();
+        icn.stop();
+    }
+
+    /**
+     * Check if the deadline of a call is the earliest of its phase timeout and of the deployment deadline
+     */
+    @Test
+    public void testDeadlines() {
+        Assert.assertEquals(0, new Timeouts(0, 0, 0, 0).start().deadlineOf(PhaseTiming.Phase.LOAD));
+        long now = System.currentTimeMillis();
+        Timeouts timeouts = new Timeouts(1, 100, 0, 1).start();
+        assertAround(now + 1000, timeouts.deadlineOf(PhaseTiming.Phase.LOGON));
+        assertAround(now + 60000, timeouts.deadlineOf(PhaseTiming.Phase.LOAD));
+        assertAround(now + 60000, timeouts.deadlineOf(PhaseTiming.Phase.WARM_UP));
+        Assert.assertFalse(timeouts.isOver());
+    }
+
+    /**
+     * Check if a deployment started before, as a Pipeline step waiting for a thread, keeps its deadline
+     * @throws Exception
+     */
+    @Test
+    public void testStartedBefore() throws Exception {
+        Timeouts started = new Timeouts(0, 0, 0, 1).start();
+        Thread.sleep(1500);
+        long deadline = started.deadlineOf(PhaseTiming.Phase.LOAD);
+        Assert.assertEquals(deadline, started.start().deadlineOf(PhaseTiming.Phase.LOAD));
+        assertAround(System.currentTimeMillis() + 60000 - 1500, deadline);
+    }
+
+    /**
+     * Check if a loadPlugin call taking too long is aborted
+     * @throws Exception
+     */
+    @Test
+    public void testLoadTimeout() throws Exception {
+        icn.setLatency(IcnStubServer.LOAD, 10000, 10000);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        IcnClient client = client(new PrintStream(out, true), new Timeouts(0, 1, 0, 0));
+
+        long start = System.currentTimeMillis();
+        List<PluginReloadResult> results = client.reloadAll(Collections.singletonList("/opt/plugins/plugin.jar"), 1, null);
+
+        Assert.assertTrue(System.currentTimeMillis() - start < 5000);
+        Assert.assertEquals(PluginReloadResult.Status.RELOAD_FAILED, results.get(0).getStatus());
+        Assert.assertTrue(out.toString("UTF-8").contains("took longer than allowed"));
+    }
+
+    /**
+     * Check if interrupting the build aborts the call in flight
+     * @throws Exception
+     */
+    @Test
+    public void testInterrupt() throws Exception {
+        icn.setLatency(IcnStubServer.LOAD, 10000, 10000);
+        final IcnClient client = client(new PrintStream(new ByteArrayOutputStream(), true), null);
+        final AtomicReference<Object> result = new AtomicReference<Object>();
+        Thread build = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    result.set(client.reloadAll(Collections.singletonList("/opt/plugins/plugin.jar"), 1, null));
+                } catch (InterruptedException e) {
+                    result.set(e);
+                }
+            }
+        };
+
+        long start = System.currentTimeMillis();
+        build.start();
+        Thread.sleep(500);
+        build.interrupt();
+        build.join(5000);
+
+        Assert.assertFalse(build.isAlive());
+        Assert.assertTrue(System.currentTimeMillis() - start < 5000);
+        Assert.assertNotNull(result.get());
+    }
+
+    private IcnClient client(PrintStream log, Timeouts timeouts) {
+        IcnClient client = new IcnClient(httpClient, icn.getUrl("node1"), log, null, null, null,
+                timeouts == null ? null : timeouts.start());
+        Assert.assertTrue(client.connect("someadmin", "somepwd"));
+        return client;
+    }
+
+    private static void assertAround(long expected, long actual) {
+        Assert.assertTrue("expected about " + expected + " but was " + actual, Math.abs(expected - actual) < 1000);
+    }
+
+}